@@ -0,0 +1,27 @@
+package net.rhizomik.rhizomer.config;
+
+import net.rhizomik.rhizomer.handler.ClientConnectionValve;
+import net.rhizomik.rhizomer.service.ClientDisconnectDetector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class AsyncSupportConfig implements WebMvcConfigurer {
+
+  @Autowired private ClientDisconnectDetector disconnectDetector;
+
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.registerCallableInterceptors(disconnectDetector);
+  }
+
+  @Bean
+  public WebServerFactoryCustomizer<TomcatServletWebServerFactory> clientConnectionCustomizer() {
+    return factory -> factory.addContextValves(new ClientConnectionValve());
+  }
+}
@@ -0,0 +1,23 @@
+package net.rhizomik.rhizomer.config;
+
+import net.rhizomik.rhizomer.handler.ConditionalReadInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class ConditionalReadConfig implements WebMvcConfigurer {
+
+  @Autowired private ConditionalReadInterceptor conditionalReadInterceptor;
+
+  @Override
+  public void addInterceptors(InterceptorRegistry registry) {
+    registry.addInterceptor(conditionalReadInterceptor).addPathPatterns(
+        "/datasets/*/classes",
+        "/datasets/*/classes/*/count",
+        "/datasets/*/classes/*/facets",
+        "/datasets/*/classes/*/facetsValues",
+        "/datasets/*/classes/*/facets/*/ranges/*/values");
+  }
+}
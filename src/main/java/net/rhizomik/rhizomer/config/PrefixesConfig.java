@@ -0,0 +1,18 @@
+package net.rhizomik.rhizomer.config;
+
+import net.rhizomik.rhizomer.model.Curie;
+import net.rhizomik.rhizomer.service.PrefixCCMap;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class PrefixesConfig {
+
+  /**
+   * The same prefixes used by {@link Curie}, so curies are the same wherever they are generated.
+   */
+  @Bean
+  PrefixCCMap prefixCCMap() {
+    return Curie.prefix;
+  }
+}
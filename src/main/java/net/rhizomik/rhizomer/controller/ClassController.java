@@ -7,11 +7,17 @@ package net.rhizomik.rhizomer.controller;
 import net.rhizomik.rhizomer.model.Class;
 import net.rhizomik.rhizomer.model.Curie;
 import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.model.InstancesCount;
 import net.rhizomik.rhizomer.model.id.DatasetClassId;
 import net.rhizomik.rhizomer.repository.ClassRepository;
 import net.rhizomik.rhizomer.repository.DatasetRepository;
 import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
 import net.rhizomik.rhizomer.service.AnalizeDataset;
+import net.rhizomik.rhizomer.service.CacheWarmUp;
+import net.rhizomik.rhizomer.service.CachedResponses;
+import net.rhizomik.rhizomer.service.ClientDisconnectDetector;
+import net.rhizomik.rhizomer.service.Filters;
+import net.rhizomik.rhizomer.service.QueryResultCaches;
 import net.rhizomik.rhizomer.service.SecurityController;
 import org.apache.commons.lang3.Validate;
 import org.apache.jena.riot.RDFFormat;
@@ -31,6 +37,7 @@ import javax.validation.Valid;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 public class ClassController {
@@ -41,6 +48,10 @@ public class ClassController {
     @Autowired private ClassRepository classRepository;
     @Autowired private AnalizeDataset analizeDataset;
     @Autowired private SecurityController securityController;
+    @Autowired private ClientDisconnectDetector disconnectDetector;
+    @Autowired private QueryResultCaches caches;
+    @Autowired private CachedResponses responses;
+    @Autowired private CacheWarmUp warmUp;
 
     @RequestMapping(value = "/datasets/{datasetId}/classes", method = RequestMethod.GET)
     public @ResponseBody List<Class> searchDatasetClass(@PathVariable String datasetId,
@@ -50,8 +61,10 @@ public class ClassController {
         Dataset dataset = getDataset(datasetId);
         securityController.checkPublicOrOwner(dataset, auth);
         logger.info("Retrieving top {} classes in Dataset {} containing '{}'", top, datasetId, containing);
-        if (dataset.getClasses().isEmpty() && endPointRepository.existsByDataset(dataset))
+        if (dataset.getClasses().isEmpty() && endPointRepository.existsByDataset(dataset)) {
             analizeDataset.detectDatasetClasses(dataset);
+            warmUp.warmUp(datasetId);
+        }
         return dataset.getClassesContaining(containing, top, lang);
     }
 
@@ -108,14 +121,16 @@ public class ClassController {
                 "\n";
         filters.remove("page");
         filters.remove("size");
+        Filters facetFilters = Filters.of(filters);
         /*
         StreamingResponseBody stream = outputStream ->
                 analizeDataset.retrieveClassInstances(outputStream,
-                        dataset, datasetClass, filters, page, size, RDFFormat.JSONLD);
+                        dataset, datasetClass, facetFilters, page, size, RDFFormat.JSONLD);
         */
-        StreamingResponseBody stream = outputStream ->
-                analizeDataset.retrieveClassInstancesString(outputStream,
-                        dataset, datasetClass, filters, page, size, RDFFormat.JSONLD, line);
+        StreamingResponseBody stream = disconnectDetector.cancelOnDisconnect(responses.cached(dataset,
+                "instances " + datasetClass.getUri() + " " + page + " " + size + " " + facetFilters.canonical(),
+                outputStream -> analizeDataset.retrieveClassInstancesString(outputStream,
+                        dataset, datasetClass, facetFilters, page, size, RDFFormat.JSONLD, line)));
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(stream);
@@ -134,9 +149,11 @@ public class ClassController {
         logger.info("Describe instances for Class {} in Dataset {}", classCurie, datasetId);
         filters.remove("page");
         filters.remove("size");
-        StreamingResponseBody stream = outputStream ->
-            analizeDataset.retrieveClassDescriptions(outputStream,
-                dataset, datasetClass, filters, page, size, RDFFormat.JSONLD);
+        Filters facetFilters = Filters.of(filters);
+        StreamingResponseBody stream = disconnectDetector.cancelOnDisconnect(responses.cached(dataset,
+            "describe " + datasetClass.getUri() + " " + page + " " + size + " " + facetFilters.canonical(),
+            outputStream -> analizeDataset.retrieveClassDescriptions(outputStream,
+                dataset, datasetClass, facetFilters, page, size, RDFFormat.JSONLD)));
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(stream);
@@ -155,23 +172,37 @@ public class ClassController {
         logger.info("Retrieve instances labels for Class {} in Dataset {}", classCurie, datasetId);
         filters.remove("page");
         filters.remove("size");
-        StreamingResponseBody stream = outputStream ->
+        StreamingResponseBody stream = disconnectDetector.cancelOnDisconnect(outputStream ->
             analizeDataset.getLinkedResourcesLabels(outputStream,
-                dataset, datasetClass, filters, page, size, RDFFormat.JSONLD);
+                dataset, datasetClass, Filters.of(filters), page, size, RDFFormat.JSONLD));
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(stream);
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/count", method = RequestMethod.GET)
-    public @ResponseBody int retrieveClassFacetedInstancesCount(
+    public @ResponseBody CompletableFuture<Integer> retrieveClassFacetedInstancesCount(
         @PathVariable String datasetId, @PathVariable String classCurie,
         @RequestParam MultiValueMap<String, String> filters, Authentication auth) {
         Dataset dataset = getDataset(datasetId);
         securityController.checkPublicOrOwner(dataset, auth);
         Class datasetClass = getClass(classCurie, dataset);
         logger.info("Retrieved instances count for Class {} in Dataset {}", classCurie, datasetId);
-        return analizeDataset.retrieveClassInstancesCount(dataset, datasetClass, filters);
+        filters.remove("approximate");
+        return analizeDataset.retrieveClassInstancesCount(dataset, datasetClass, Filters.of(filters));
+    }
+
+    @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/count", method = RequestMethod.GET,
+            params = "approximate=true")
+    public @ResponseBody InstancesCount retrieveClassFacetedInstancesApproximateCount(
+        @PathVariable String datasetId, @PathVariable String classCurie,
+        @RequestParam MultiValueMap<String, String> filters, Authentication auth) {
+        Dataset dataset = getDataset(datasetId);
+        securityController.checkPublicOrOwner(dataset, auth);
+        Class datasetClass = getClass(classCurie, dataset);
+        logger.info("Retrieved approximate instances count for Class {} in Dataset {}", classCurie, datasetId);
+        filters.remove("approximate");
+        return analizeDataset.retrieveApproximateClassInstancesCount(dataset, datasetClass, Filters.of(filters));
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/classes", method = RequestMethod.POST)
@@ -185,6 +216,7 @@ public class ClassController {
                 "Class with URI '%s' already exists in Dataset '%s'", newClass.getUri(), datasetId);
         newClass.setDataset(dataset);
         logger.info("Creating Class: {}", newClass.toString());
+        caches.evict(datasetId);
         return classRepository.save(newClass);
     }
 
@@ -202,6 +234,7 @@ public class ClassController {
             classRepository.save(newClass);
         });
         logger.info("Updated Dataset {} classes to {}", datasetId, newClasses.toString());
+        caches.evict(datasetId);
         return datasetRepository.save(dataset).getClasses();
     }
 
@@ -8,7 +8,12 @@ import net.rhizomik.rhizomer.model.*;
 import net.rhizomik.rhizomer.repository.DatasetRepository;
 import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
 import net.rhizomik.rhizomer.service.AnalizeDataset;
+import net.rhizomik.rhizomer.service.CachedResponses;
+import net.rhizomik.rhizomer.service.ClientDisconnectDetector;
+import net.rhizomik.rhizomer.service.DatasetCache;
 import net.rhizomik.rhizomer.service.HttpClient;
+import net.rhizomik.rhizomer.service.QueryResultCaches;
+import net.rhizomik.rhizomer.service.SPARQLClientRegistry;
 import net.rhizomik.rhizomer.service.SecurityController;
 import org.apache.commons.lang3.Validate;
 import org.apache.jena.rdf.model.Model;
@@ -33,6 +38,7 @@ import java.io.InputStream;
 import java.net.*;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 public class DatasetController {
@@ -43,6 +49,10 @@ public class DatasetController {
     @Autowired private SecurityController securityController;
     @Autowired private AnalizeDataset analizeDataset;
     @Autowired private HttpClient httpClient;
+    @Autowired private SPARQLClientRegistry clientRegistry;
+    @Autowired private ClientDisconnectDetector disconnectDetector;
+    @Autowired private QueryResultCaches caches;
+    @Autowired private CachedResponses responses;
 
     @RequestMapping(value = "/datasets", method = RequestMethod.GET)
     public @ResponseBody
@@ -62,6 +72,7 @@ public class DatasetController {
                 "Dataset with id '%s' already exists", newDataset.getId());
         logger.info("Creating Dataset: {}", newDataset.getId());
         newDataset.setOwner(auth.getName());
+        caches.evict(newDataset.getId());
         return datasetRepository.save(newDataset);
     }
 
@@ -81,6 +92,7 @@ public class DatasetController {
         Dataset dataset = getDataset(datasetId);
         securityController.checkOwner(dataset, auth);
         logger.info("Updating Dataset: {}", datasetId);
+        caches.evict(datasetId);
         return datasetRepository.save(updatedDataset);
     }
 
@@ -96,9 +108,28 @@ public class DatasetController {
             logger.info("Deleting endpoints for dataset {}", datasetId);
             SPARQLEndPoint defaultEndPoint = endPointRepository.findByDataset(dataset).get(0);
             analizeDataset.dropGraph(defaultEndPoint, defaultEndPoint.getDatasetInferenceGraph());
+            endPointRepository.findByDataset(dataset).forEach(clientRegistry::evict);
             endPointRepository.deleteByDataset(dataset);
         }
         datasetRepository.delete(dataset);
+        caches.evict(datasetId);
+    }
+
+    @RequestMapping(value = "/datasets/{datasetId}/cache", method = RequestMethod.GET)
+    public @ResponseBody Map<String, DatasetCache.Stats> retrieveDatasetCacheStats(
+            @PathVariable String datasetId, Authentication auth) {
+        Dataset dataset = getDataset(datasetId);
+        securityController.checkOwner(dataset, auth);
+        return caches.getStats(datasetId);
+    }
+
+    @RequestMapping(value = "/datasets/{datasetId}/cache", method = RequestMethod.DELETE)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void flushDatasetCache(@PathVariable String datasetId, Authentication auth) {
+        Dataset dataset = getDataset(datasetId);
+        securityController.checkOwner(dataset, auth);
+        logger.info("Flushing cached query results of dataset {}", datasetId);
+        caches.evict(datasetId);
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/describe", method = RequestMethod.GET,
@@ -109,9 +140,10 @@ public class DatasetController {
         Dataset dataset = getDataset(datasetId);
         securityController.checkPublicOrOwner(dataset, auth);
         logger.info("Retrieved description for {}", resourceUri);
-        StreamingResponseBody stream = outputStream ->
-                analizeDataset.describeDatasetResource(outputStream,
-                        dataset, resourceUri, RDFFormat.JSONLD);
+        StreamingResponseBody stream = disconnectDetector.cancelOnDisconnect(responses.cached(dataset,
+                "describe " + resourceUri,
+                outputStream -> analizeDataset.describeDatasetResource(outputStream,
+                        dataset, resourceUri, RDFFormat.JSONLD)));
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(stream);
@@ -126,8 +158,9 @@ public class DatasetController {
         Dataset dataset = getDataset(datasetId);
         securityController.checkPublicOrOwner(dataset, auth);
         logger.info("Search instances containing {}", text);
-        StreamingResponseBody stream = outputStream ->
-            analizeDataset.searchInstances(outputStream, dataset, text, size, RDFFormat.JSONLD);
+        StreamingResponseBody stream = disconnectDetector.cancelOnDisconnect(responses.cached(dataset,
+            "search " + size + " " + text,
+            outputStream -> analizeDataset.searchInstances(outputStream, dataset, text, size, RDFFormat.JSONLD)));
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(stream);
@@ -8,13 +8,22 @@ import java.net.URI;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.model.EndPointHealth;
 import net.rhizomik.rhizomer.model.SPARQLEndPoint;
 import net.rhizomik.rhizomer.repository.DatasetRepository;
 import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
 import net.rhizomik.rhizomer.service.AnalizeDataset;
+import net.rhizomik.rhizomer.service.EndPointBulkhead;
+import net.rhizomik.rhizomer.service.EndPointCircuitBreaker;
+import net.rhizomik.rhizomer.service.QueryHedging;
+import net.rhizomik.rhizomer.service.QueryPriority;
+import net.rhizomik.rhizomer.service.QueryResultCaches;
+import net.rhizomik.rhizomer.service.QueryTimeouts;
+import net.rhizomik.rhizomer.service.SPARQLClientRegistry;
 import net.rhizomik.rhizomer.service.SecurityController;
 import org.apache.commons.lang3.Validate;
 import org.apache.jena.rdf.model.Model;
@@ -45,6 +54,12 @@ public class EndPointController {
     @Autowired private DatasetRepository datasetRepository;
     @Autowired private SPARQLEndPointRepository endPointRepository;
     @Autowired private AnalizeDataset analizeDataset;
+    @Autowired private SPARQLClientRegistry clientRegistry;
+    @Autowired private EndPointBulkhead bulkhead;
+    @Autowired private EndPointCircuitBreaker circuitBreaker;
+    @Autowired private QueryHedging hedging;
+    @Autowired private QueryTimeouts timeouts;
+    @Autowired private QueryResultCaches caches;
     @Autowired private SecurityController securityController;
 
 
@@ -53,7 +68,9 @@ public class EndPointController {
         Dataset dataset = getDataset(datasetId);
         securityController.checkOwner(dataset, auth);
         logger.info("List Dataset {} endpoints", datasetId);
-        return endPointRepository.findByDataset(dataset);
+        List<SPARQLEndPoint> endPoints = endPointRepository.findByDataset(dataset);
+        endPoints.forEach(this::setHealth);
+        return endPoints;
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/endpoints", method = RequestMethod.POST)
@@ -67,7 +84,10 @@ public class EndPointController {
         endPoint.setDataset(dataset);
         if (endPoint.getTimeout() == null)
             endPoint.setTimeout(TIMEOUT);
-        return endPointRepository.save(endPoint);
+        SPARQLEndPoint created = endPointRepository.save(endPoint);
+        analizeDataset.negotiateResultFormats(created);
+        caches.evict(datasetId);
+        return endPointRepository.save(created);
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/endpoints/{endPointId}", method = RequestMethod.GET)
@@ -77,6 +97,7 @@ public class EndPointController {
         securityController.checkOwner(dataset, auth);
         SPARQLEndPoint endPoint = getServer(endPointId);
         logger.info("Retrieve Dataset {} endpoint {}", datasetId, endPoint.getQueryEndPoint());
+        setHealth(endPoint);
         return endPoint;
     }
 
@@ -86,10 +107,19 @@ public class EndPointController {
         Dataset dataset = getDataset(datasetId);
         securityController.checkOwner(dataset, auth);
         logger.info("Updating endpoint: {}", updatedEndPoint.getQueryEndPoint());
+        getServer(endPointId);
+        updatedEndPoint.setId(endPointId);
         updatedEndPoint.setDataset(dataset);
         if (updatedEndPoint.getTimeout() == null)
             updatedEndPoint.setTimeout(TIMEOUT);
-        return endPointRepository.save(updatedEndPoint);
+        clientRegistry.evict(endPointId);
+        bulkhead.evict(endPointId);
+        circuitBreaker.evict(endPointId);
+        timeouts.evict(endPointId);
+        caches.evict(datasetId);
+        SPARQLEndPoint updated = endPointRepository.save(updatedEndPoint);
+        analizeDataset.negotiateResultFormats(updated);
+        return endPointRepository.save(updated);
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/endpoints/{endPointId}", method = RequestMethod.DELETE)
@@ -98,9 +128,24 @@ public class EndPointController {
         securityController.checkOwner(dataset, auth);
         SPARQLEndPoint endPoint = getServer(endPointId);
         logger.info("Deleting endpoint: {}", endPoint.getQueryEndPoint());
+        clientRegistry.evict(endPoint);
+        bulkhead.evict(endPointId);
+        circuitBreaker.evict(endPointId);
+        timeouts.evict(endPointId);
+        caches.evict(datasetId);
         endPointRepository.delete(endPoint);
     }
 
+    @RequestMapping(value = "/datasets/{datasetId}/endpoints/{endPointId}/load", method = RequestMethod.GET)
+    public @ResponseBody Map<QueryPriority, EndPointBulkhead.LaneStats> retrieveEndPointLoad(
+            @PathVariable String datasetId, @PathVariable Integer endPointId, Authentication auth) {
+        Dataset dataset = getDataset(datasetId);
+        securityController.checkOwner(dataset, auth);
+        SPARQLEndPoint endPoint = getServer(endPointId);
+        logger.info("Retrieve Dataset {} endpoint {} load", datasetId, endPoint.getQueryEndPoint());
+        return bulkhead.getStats(endPoint);
+    }
+
     @RequestMapping(value = "/datasets/{datasetId}/endpoints/{endPointId}/graphs",method = RequestMethod.POST)
     @ResponseStatus(HttpStatus.CREATED)
     public @ResponseBody List<String> addGraph(@RequestBody List<String> addGraphs, @PathVariable Integer endPointId,
@@ -110,6 +155,7 @@ public class EndPointController {
         SPARQLEndPoint endPoint = getServer(endPointId);
         logger.info("Add graphs {} to endpoint {}", addGraphs.toString(), endPoint.getQueryEndPoint());
         addGraphs.forEach(endPoint::addGraph);
+        caches.evict(datasetId);
         return endPointRepository.save(endPoint).getGraphs();
     }
 
@@ -131,6 +177,7 @@ public class EndPointController {
         SPARQLEndPoint endPoint = getServer(endPointId);
         logger.info("Updated endpoint {} graphs to {}", endPoint.getQueryEndPoint(), updatedGraphs.toString());
         endPoint.setGraphs(updatedGraphs);
+        caches.evict(datasetId);
         return endPointRepository.save(endPoint).getGraphs();
     }
 
@@ -143,6 +190,7 @@ public class EndPointController {
         SPARQLEndPoint endPoint = getServer(endPointId);
         logger.info("Add ontologies {} to endpoint {}", addOntologyGraphs.toString(), endPoint.getQueryEndPoint());
         addOntologyGraphs.forEach(endPoint::addOntologyGraph);
+        caches.evict(datasetId);
         return endPointRepository.save(endPoint).getOntologyGraphs();
     }
 
@@ -164,6 +212,7 @@ public class EndPointController {
         SPARQLEndPoint endPoint = getServer(endPointId);
         logger.info("Updated endpoint {} graphs to {}", endPoint.getQueryEndPoint(), updatedOntologyGraphs.toString());
         endPoint.setOntologyGraphs(updatedOntologyGraphs);
+        caches.evict(datasetId);
         return endPointRepository.save(endPoint).getOntologyGraphs();
     }
 
@@ -209,6 +258,12 @@ public class EndPointController {
         return model.size();
     }
 
+    private void setHealth(SPARQLEndPoint endPoint) {
+        EndPointHealth health = circuitBreaker.getHealth(endPoint);
+        health.setHedges(hedging.getHedgesIssued(endPoint), hedging.getHedgesWon(endPoint));
+        endPoint.setHealth(health);
+    }
+
     private Dataset getDataset(String datasetId) {
         return datasetRepository
             .findById(datasetId)
@@ -13,6 +13,8 @@ import net.rhizomik.rhizomer.repository.DatasetRepository;
 import net.rhizomik.rhizomer.repository.FacetRepository;
 import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
 import net.rhizomik.rhizomer.service.AnalizeDataset;
+import net.rhizomik.rhizomer.service.Filters;
+import net.rhizomik.rhizomer.service.QueryResultCaches;
 import net.rhizomik.rhizomer.service.SecurityController;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
@@ -21,12 +23,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.rest.webmvc.RepositoryRestController;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.Authentication;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.*;
 
 import javax.validation.Valid;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 @RepositoryRestController
@@ -39,6 +44,7 @@ public class FacetController {
     @Autowired private FacetRepository facetRepository;
     @Autowired private AnalizeDataset analiseDataset;
     @Autowired private SecurityController securityController;
+    @Autowired private QueryResultCaches caches;
 
     @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/facets", method = RequestMethod.GET)
     public @ResponseBody List<Facet> listClassFacets(Authentication auth,
@@ -81,6 +87,32 @@ public class FacetController {
         ).collect(Collectors.toCollection(ArrayList::new));
     }
 
+    @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/facetsValues", method = RequestMethod.GET)
+    public @ResponseBody CompletableFuture<Map<String, List<Value>>> listClassFacetsValues(Authentication auth,
+                @PathVariable String datasetId, @PathVariable String classCurie,
+                @RequestParam(value="facets", required=false) List<String> facetCuries,
+                @RequestParam(value="size", defaultValue="10") int size,
+                @RequestParam MultiValueMap<String, String> filters) {
+        Validate.isTrue(size > 0, "The size of facet values should be positive, not %d", size);
+        Dataset dataset = datasetRepository.findById(datasetId).orElseThrow(() ->
+            new NullPointerException(String.format("Dataset with id '%s' not found", datasetId)));
+        securityController.checkPublicOrOwner(dataset, auth);
+        DatasetClassId datasetClassId = new DatasetClassId(dataset, new Curie(classCurie));
+        Class datasetClass = classRepository.findById(datasetClassId).orElseThrow(() ->
+            new NullPointerException(String.format("Class with id '%s' not found", datasetClassId)));
+        List<Facet> facets = datasetClass.getFacets();
+        if (facetCuries != null)
+            facets = facetCuries.stream().map(facetCurie -> {
+                DatasetClassFacetId datasetClassFacetId = new DatasetClassFacetId(datasetClassId, new Curie(facetCurie));
+                return facetRepository.findById(datasetClassFacetId).orElseThrow(() ->
+                    new NullPointerException(String.format("Facet with id '%s' not found", datasetClassFacetId)));
+            }).collect(Collectors.toList());
+        logger.info("Retrieving values of {} facets for Class {} in Dataset {}", facets.size(), classCurie, datasetId);
+        filters.remove("facets");
+        filters.remove("size");
+        return analiseDataset.retrieveFacetsValues(dataset, datasetClass, facets, Filters.of(filters), size);
+    }
+
     @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/facets/{facetCurie}", method = RequestMethod.GET)
     public @ResponseBody Facet retrieveClassFacet(@PathVariable String datasetId,
                 @PathVariable String classCurie, @PathVariable String facetCurie, Authentication auth) {
@@ -113,6 +145,7 @@ public class FacetController {
                 "Facet with URI '%s' already exists for Class '%s' in Dataset '%s'", newFacet.getUri(), classCurie, datasetId);
         newFacet.setDomain(datasetClass);
         logger.info("Creating Facet: {}", newFacet.toString());
+        caches.evict(datasetId);
         return facetRepository.save(newFacet);
     }
 
@@ -135,6 +168,7 @@ public class FacetController {
 
         logger.info("Updated Dataset {} class {} facets to {}",
                 datasetClass.getDataset().getId(), datasetClass.getCurie(), newFacets.toString());
+        caches.evict(datasetId);
         return classRepository.save(datasetClass).getFacets();
     }
 }
@@ -4,6 +4,7 @@ package net.rhizomik.rhizomer.controller;
  * Created by http://rhizomik.net/~roberto/
  */
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import javax.validation.Valid;
 import net.rhizomik.rhizomer.model.Class;
 import net.rhizomik.rhizomer.model.Curie;
@@ -19,6 +20,8 @@ import net.rhizomik.rhizomer.repository.DatasetRepository;
 import net.rhizomik.rhizomer.repository.FacetRepository;
 import net.rhizomik.rhizomer.repository.RangeRepository;
 import net.rhizomik.rhizomer.service.AnalizeDataset;
+import net.rhizomik.rhizomer.service.Filters;
+import net.rhizomik.rhizomer.service.QueryResultCaches;
 import net.rhizomik.rhizomer.service.SecurityController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +48,7 @@ public class RangeController {
     @Autowired private RangeRepository rangeRepository;
     @Autowired private AnalizeDataset analiseDataset;
     @Autowired private SecurityController securityController;
+    @Autowired private QueryResultCaches caches;
 
     @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/facets/{facetCurie}/ranges",
         method = RequestMethod.GET)
@@ -61,7 +65,7 @@ public class RangeController {
     @RequestMapping(method = RequestMethod.GET,
         value = "/datasets/{datasetId}/classes/{classCurie}/facets/{facetCurie}/ranges/{rangeCurie}/values")
     @ResponseStatus(HttpStatus.OK)
-    public @ResponseBody List<Value> getRangeValues(@PathVariable String datasetId, @PathVariable String classCurie,
+    public @ResponseBody CompletableFuture<List<Value>> getRangeValues(@PathVariable String datasetId, @PathVariable String classCurie,
             @PathVariable String facetCurie, @PathVariable String rangeCurie,
             @RequestParam MultiValueMap<String, String> filters, Authentication auth,
             @RequestParam(value="page", defaultValue="0") int page,
@@ -71,7 +75,9 @@ public class RangeController {
         Class datasetClass = getClass(classCurie, dataset);
         Facet classFacet = getFacet(facetCurie, datasetClass.getId());
         Range facetRange = getRange(rangeCurie, classFacet);
-        return analiseDataset.retrieveRangeValues(dataset, facetRange, filters, page, size);
+        filters.remove("page");
+        filters.remove("size");
+        return analiseDataset.retrieveRangeValues(dataset, facetRange, Filters.of(filters), page, size);
     }
 
     @RequestMapping(method = RequestMethod.GET,
@@ -87,7 +93,7 @@ public class RangeController {
         Facet classFacet = getFacet(facetCurie, datasetClass.getId());
         Range facetRange = getRange(rangeCurie, classFacet);
         filters.remove("value");
-        return analiseDataset.retrieveFacetRangeValueLabelAndCount(dataset, facetRange, value, filters);
+        return analiseDataset.retrieveFacetRangeValueLabelAndCount(dataset, facetRange, value, Filters.of(filters));
     }
 
     @RequestMapping(method = RequestMethod.GET,
@@ -107,7 +113,7 @@ public class RangeController {
         filters.remove("containing");
         filters.remove("top");
         filters.remove("lang");
-        return analiseDataset.retrieveRangeValuesContaining(dataset, facetRange, filters, containing, top, lang);
+        return analiseDataset.retrieveRangeValuesContaining(dataset, facetRange, Filters.of(filters), containing, top, lang);
     }
 
     @RequestMapping(method = RequestMethod.GET,
@@ -121,7 +127,7 @@ public class RangeController {
         Class datasetClass = getClass(classCurie, dataset);
         Facet classFacet = getFacet(facetCurie, datasetClass.getId());
         Range facetRange = getRange(rangeCurie, classFacet);
-        return analiseDataset.retrieveRangeMinMax(dataset, facetRange, filters);
+        return analiseDataset.retrieveRangeMinMax(dataset, facetRange, Filters.of(filters));
     }
 
     @RequestMapping(value = "/datasets/{datasetId}/classes/{classCurie}/facets/{facetCurie}/ranges",
@@ -136,6 +142,7 @@ public class RangeController {
         Facet classFacet = getFacet(facetCurie, datasetClass.getId());
         newRange.setFacet(classFacet);
         logger.info("Creating Range: {}", newRange.toString());
+        caches.evict(datasetId);
         return rangeRepository.save(newRange);
     }
 
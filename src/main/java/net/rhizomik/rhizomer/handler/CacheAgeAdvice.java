@@ -0,0 +1,52 @@
+package net.rhizomik.rhizomer.handler;
+
+import net.rhizomik.rhizomer.service.QueryResultCaches;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tells clients how old the cached results in a response are, with an Age header, and warns them
+ * when any of them was stale and is being refreshed. Otherwise, unless some endpoint did not
+ * answer, the response gets the ETag of {@link ConditionalReadInterceptor}, if any, so only up to
+ * date and complete responses are revalidated.
+ */
+@ControllerAdvice
+public class CacheAgeAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (!(request instanceof ServletServerHttpRequest))
+            return body;
+        HttpServletRequest servletRequest = ((ServletServerHttpRequest) request).getServletRequest();
+        Object age = servletRequest.getAttribute(QueryResultCaches.AGE_ATTRIBUTE);
+        boolean stale = servletRequest.getAttribute(QueryResultCaches.STALE_ATTRIBUTE) != null;
+        if (age != null) {
+            response.getHeaders().set(HttpHeaders.AGE, age.toString());
+            if (stale)
+                response.getHeaders().set(HttpHeaders.WARNING, "110 - \"Response is Stale\"");
+        }
+        Object etag = servletRequest.getAttribute(ConditionalReadInterceptor.ETAG_ATTRIBUTE);
+        boolean incomplete = servletRequest.getAttribute(QueryResultCaches.INCOMPLETE_ATTRIBUTE) != null;
+        if (etag != null && !stale && !incomplete && response instanceof ServletServerHttpResponse &&
+                ((ServletServerHttpResponse) response).getServletResponse().getStatus() < 300)
+            response.getHeaders().setETag(etag.toString());
+        return body;
+    }
+}
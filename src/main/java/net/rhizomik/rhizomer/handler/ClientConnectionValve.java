@@ -0,0 +1,41 @@
+package net.rhizomik.rhizomer.handler;
+
+import net.rhizomik.rhizomer.service.ClientDisconnectDetector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.ActionCode;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * Lets {@link ClientDisconnectDetector} find out whether the client of a request is gone while
+ * its response waits for queries, as Tomcat does not watch the connection of an asynchronous
+ * request until it is written to. Instead, the connection is read without blocking: once the
+ * request body is read, which requests without one always are, the end of the stream is the only
+ * input reported as available, while any further request pipelined by the client is kept for
+ * later and not reported. Once the response is committed, a closed connection makes writing it
+ * fail, so it is no longer checked.
+ */
+public class ClientConnectionValve extends ValveBase {
+
+    public ClientConnectionValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        request.setAttribute(ClientDisconnectDetector.CONNECTION_ATTRIBUTE,
+                (ClientDisconnectDetector.ClientConnection) () -> isClosed(request, response));
+        getNext().invoke(request, response);
+    }
+
+    private static boolean isClosed(Request request, Response response) {
+        if (response.isCommitted())
+            return false;
+        org.apache.coyote.Request coyoteRequest = request.getCoyoteRequest();
+        coyoteRequest.action(ActionCode.AVAILABLE, Boolean.TRUE);
+        return coyoteRequest.getAvailable() > 0;
+    }
+}
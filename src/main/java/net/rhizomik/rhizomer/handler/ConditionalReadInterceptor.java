@@ -0,0 +1,90 @@
+package net.rhizomik.rhizomer.handler;
+
+import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.repository.DatasetRepository;
+import net.rhizomik.rhizomer.service.DatasetGenerations;
+import net.rhizomik.rhizomer.service.QueryResultCaches;
+import net.rhizomik.rhizomer.service.SecurityController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Strong ETags for the faceted read endpoints, derived from the data and schema generations of
+ * the dataset and the normalized request, so a matching If-None-Match is answered with 304
+ * before reaching the controller, without querying the endpoints. Responses for public datasets
+ * can be stored for a while by shared caches, the rest have to be revalidated.
+ *
+ * As the tag does not depend on the body, it is only sent by {@link CacheAgeAdvice} with complete
+ * responses from fresh results, so approximate counts, stale results or results missing some
+ * endpoint are never revalidated.
+ */
+@Component
+public class ConditionalReadInterceptor implements HandlerInterceptor {
+    public static final String ETAG_ATTRIBUTE = ConditionalReadInterceptor.class.getName() + ".etag";
+
+    @Value("${rhizomer.etag.max-age:60}")
+    private long maxAge = 60;
+
+    @Autowired private DatasetRepository datasetRepository;
+    @Autowired private DatasetGenerations generations;
+    @Autowired private SecurityController securityController;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (!request.getMethod().equals("GET") && !request.getMethod().equals("HEAD"))
+            return true;
+        @SuppressWarnings("unchecked")
+        Map<String, String> pathVariables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (pathVariables == null || !pathVariables.containsKey("datasetId"))
+            return true;
+        Dataset dataset = datasetRepository.findById(pathVariables.get("datasetId")).orElse(null);
+        if (dataset == null)
+            return true;
+        securityController.checkPublicOrOwner(dataset, SecurityContextHolder.getContext().getAuthentication());
+        if ("true".equals(request.getParameter("approximate"))) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+            return true;
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL,
+                dataset.isPublic() ? "public, max-age=" + maxAge : "private, no-cache");
+        String etag = etag(dataset, request);
+        if (matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader(HttpHeaders.ETAG, etag);
+            return false;
+        }
+        request.setAttribute(ETAG_ATTRIBUTE, etag);
+        return true;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        return Arrays.stream(ifNoneMatch.split(",")).map(String::trim)
+                .anyMatch(tag -> tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag));
+    }
+
+    private String etag(Dataset dataset, HttpServletRequest request) {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        request.getParameterMap().forEach((name, values) -> parameters.put(name, Arrays.asList(values)));
+        String version = dataset.getId() + " " + generations.current(dataset) + " " +
+                generations.schema(dataset.getId()) + " " + request.getRequestURI() + "?" +
+                QueryResultCaches.canonical(parameters);
+        return "\"" + DigestUtils.md5DigestAsHex(version.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+}
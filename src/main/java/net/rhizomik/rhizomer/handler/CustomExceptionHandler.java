@@ -13,6 +13,7 @@ import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.server.ResponseStatusException;
 
 import javax.persistence.RollbackException;
 import javax.servlet.http.HttpServletRequest;
@@ -83,6 +84,14 @@ public class CustomExceptionHandler {
         return new ErrorInfo(HttpStatus.CONFLICT, request, e);
     }
 
+    @ExceptionHandler(ResponseStatusException.class)
+    @ResponseBody
+    public ErrorInfo handleResponseStatusException(HttpServletRequest request, HttpServletResponse response, ResponseStatusException e) {
+        logger.info("Generating HTTP {} from ResponseStatusException: {}", e.getStatus(), e.toString());
+        response.setStatus(e.getStatus().value());
+        return new ErrorInfo(e.getStatus(), request, e);
+    }
+
     @ExceptionHandler(TransactionSystemException.class)
     @ResponseBody
     public ErrorInfo handleTxException(HttpServletRequest request, HttpServletResponse response, TransactionSystemException e) {
@@ -0,0 +1,27 @@
+package net.rhizomik.rhizomer.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Number of writes made to the data of a dataset, or of changes to its schema when the id is
+ * the dataset one followed by " schema", so derived data computed for an earlier generation is
+ * known to be stale.
+ */
+@Entity
+public class DataGeneration {
+    @Id
+    private String id;
+    private long generation;
+
+    public DataGeneration() {}
+
+    public DataGeneration(String id, long generation) {
+        this.id = id;
+        this.generation = generation;
+    }
+
+    public String getId() { return id; }
+
+    public long getGeneration() { return generation; }
+}
@@ -31,6 +31,7 @@ public class Dataset {
 
     private QueryType queryType = QueryType.OPTIMIZED;
     private boolean isPublic = false;
+    private boolean hedgedReads = false;
 
     @OneToMany(fetch = FetchType.LAZY, orphanRemoval = true, mappedBy = "dataset", cascade = CascadeType.ALL)
     @OrderBy("instanceCount DESC")
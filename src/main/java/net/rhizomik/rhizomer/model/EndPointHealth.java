@@ -0,0 +1,52 @@
+package net.rhizomik.rhizomer.model;
+
+/**
+ * Snapshot of the recent behaviour of a SPARQL endpoint, computed over its latest queries.
+ */
+public class EndPointHealth {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private State state;
+    private double score;
+    private int calls;
+    private double errorRate;
+    private long latencyP50;
+    private long latencyP95;
+    private long latencyP99;
+    private long hedgesIssued;
+    private long hedgesWon;
+
+    public EndPointHealth(State state, double score, int calls, double errorRate,
+                          long latencyP50, long latencyP95, long latencyP99) {
+        this.state = state;
+        this.score = score;
+        this.calls = calls;
+        this.errorRate = errorRate;
+        this.latencyP50 = latencyP50;
+        this.latencyP95 = latencyP95;
+        this.latencyP99 = latencyP99;
+    }
+
+    public State getState() { return state; }
+
+    public double getScore() { return score; }
+
+    public int getCalls() { return calls; }
+
+    public double getErrorRate() { return errorRate; }
+
+    public long getLatencyP50() { return latencyP50; }
+
+    public long getLatencyP95() { return latencyP95; }
+
+    public long getLatencyP99() { return latencyP99; }
+
+    public long getHedgesIssued() { return hedgesIssued; }
+
+    public long getHedgesWon() { return hedgesWon; }
+
+    public void setHedges(long hedgesIssued, long hedgesWon) {
+        this.hedgesIssued = hedgesIssued;
+        this.hedgesWon = hedgesWon;
+    }
+}
@@ -0,0 +1,18 @@
+package net.rhizomik.rhizomer.model;
+
+/**
+ * Number of instances of a class matching some filters, either counted or estimated.
+ */
+public class InstancesCount {
+    private int count;
+    private boolean exact;
+
+    public InstancesCount(int count, boolean exact) {
+        this.count = count;
+        this.exact = exact;
+    }
+
+    public int getCount() { return count; }
+
+    public boolean isExact() { return exact; }
+}
@@ -0,0 +1,25 @@
+package net.rhizomik.rhizomer.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Prefix learned for a namespace, persisted so curies stay the same across restarts.
+ */
+@Entity
+public class NamespacePrefix {
+    @Id
+    private String prefix;
+    private String namespace;
+
+    public NamespacePrefix() {}
+
+    public NamespacePrefix(String prefix, String namespace) {
+        this.prefix = prefix;
+        this.namespace = namespace;
+    }
+
+    public String getPrefix() { return prefix; }
+
+    public String getNamespace() { return namespace; }
+}
@@ -22,6 +22,8 @@ public class SPARQLEndPoint {
 
     @NotNull
     private URL queryEndPoint;
+    @ElementCollection
+    private Set<String> queryReplicas = new HashSet<>();
     private String queryUsername;
     @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     private String queryPassword;
@@ -44,6 +46,10 @@ public class SPARQLEndPoint {
         STARDOG;
     }
     private String timeout;
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private String selectFormat;
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private String graphFormat;
 
     @ManyToOne
     @JsonBackReference
@@ -52,12 +58,27 @@ public class SPARQLEndPoint {
     private Set<String> graphs = new HashSet<>();
     @ElementCollection
     private Set<String> ontologyGraphs = new HashSet<>();
+    @Transient
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private EndPointHealth health;
 
     public SPARQLEndPoint() {}
 
     public SPARQLEndPoint(Dataset dataset) {
         this.dataset = dataset;
     }
+    public List<String> getQueryReplicas() {
+        return new ArrayList<>(this.queryReplicas);
+    }
+
+    @JsonIgnore
+    public List<String> getQueryUrls() {
+        List<String> urls = new ArrayList<>();
+        urls.add(queryEndPoint.toString());
+        queryReplicas.stream().filter(replica -> !urls.contains(replica)).forEach(urls::add);
+        return urls;
+    }
+
     public URL getUpdateEndPoint() {
         if (!writable)
             return null;
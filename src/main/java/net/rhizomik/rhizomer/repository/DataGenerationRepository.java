@@ -0,0 +1,8 @@
+package net.rhizomik.rhizomer.repository;
+
+import net.rhizomik.rhizomer.model.DataGeneration;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+@RepositoryRestResource(exported = false)
+public interface DataGenerationRepository extends CrudRepository<DataGeneration, String> { }
@@ -0,0 +1,8 @@
+package net.rhizomik.rhizomer.repository;
+
+import net.rhizomik.rhizomer.model.NamespacePrefix;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+@RepositoryRestResource(exported = false)
+public interface NamespacePrefixRepository extends CrudRepository<NamespacePrefix, String> { }
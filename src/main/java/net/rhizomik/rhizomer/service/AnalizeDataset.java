@@ -5,7 +5,9 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 import java.net.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import net.rhizomik.rhizomer.model.*;
 import net.rhizomik.rhizomer.model.Class;
@@ -15,13 +17,14 @@ import net.rhizomik.rhizomer.repository.FacetRepository;
 import net.rhizomik.rhizomer.repository.RangeRepository;
 import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
 import net.rhizomik.rhizomer.service.Queries.QueryType;
-import java.net.http.HttpClient;
 
+import org.apache.jena.atlas.lib.Pair;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetCloseable;
 import org.apache.jena.rdf.model.Literal;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
@@ -39,7 +42,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.util.MultiValueMap;
 
 /**
  * Created by http://rhizomik.net/~roberto/
@@ -55,6 +57,10 @@ public class AnalizeDataset {
 
     @Autowired private PrefixCCMap prefixCCMap;
     @Autowired private SPARQLService sparqlService;
+    @Autowired private EndPointFanOut fanOut;
+    @Autowired private QueryResultCaches caches;
+    @Autowired private DatasetGenerations generations;
+    @Autowired private ResourceLabels resourceLabels;
     @Autowired private OptimizedQueries optimizedQueries;
     @Autowired private DetailedQueries detailedQueries;
     @Autowired private SPARQLEndPointRepository endPointRepository;
@@ -75,201 +81,296 @@ public class AnalizeDataset {
     }
 
     public void detectDatasetClasses(Dataset dataset){
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            if (endPoint.isInferenceEnabled() && endPoint.isWritable()) {
-                sparqlService.inferTypes(endPoint.getDatasetInferenceGraph(), endPoint,
-                        withCreds(endPoint.getUpdateUsername(), endPoint.getUpdatePassword()));
-            }
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(dataset).getQueryClasses(), endPoint.getGraphs(), endPoint.getOntologyGraphs(),
-                    withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (!soln.contains("?class")) continue;
-                Resource r = soln.getResource("?class");
-                String label = r.getLocalName();
-                if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
-                    label = soln.getLiteral("?label").getString();
-                if (isOmittedClass(r.getURI())) continue;
-                int count = soln.getLiteral("?n").getInt();
-                try {
-                    Class detectedClass = new Class(dataset, new URI(r.getURI()), label, count);
-                    dataset.addClass(classRepository.save(detectedClass));
-                    logger.info("Added detected Class {} from endpoint {}",
-                            detectedClass.getId().getClassCurie(), endPoint.getQueryEndPoint());
-                } catch (URISyntaxException e) {
-                    logger.error("URI syntax error: {}", r.getURI());
+        Queries queries = queries(dataset);
+        List<SPARQLEndPoint> endPoints = endPointRepository.findByDataset(dataset);
+        List<List<DetectedClass>> endPointsClasses = QueryPriority.ANALYSIS.call(() ->
+            fanOut.collect(endPoints, endPoint -> {
+                if (endPoint.isInferenceEnabled() && endPoint.isWritable()) {
+                    sparqlService.inferTypes(endPoint.getDatasetInferenceGraph(), endPoint);
                 }
+                return selectAll(endPoint, queries.getQueryClasses(), endPoint.getGraphs(), endPoint.getOntologyGraphs(),
+                        this::detectedClass);
+            }));
+        if (endPoints.stream().anyMatch(endPoint -> endPoint.isInferenceEnabled() && endPoint.isWritable()))
+            generations.bump(dataset);
+        endPointsClasses.forEach(classes -> classes.forEach(detected -> {
+            try {
+                Class detectedClass = new Class(dataset, new URI(detected.uri), detected.label, detected.count);
+                dataset.addClass(classRepository.save(detectedClass));
+                logger.info("Added detected Class {} to Dataset {}",
+                        detectedClass.getId().getClassCurie(), dataset.getId());
+            } catch (URISyntaxException e) {
+                logger.error("URI syntax error: {}", detected.uri);
             }
-        });
+        }));
+        caches.evict(dataset.getId());
     }
 
     private boolean isOmittedClass(String uri) {
         return Arrays.stream(omittedClasses).anyMatch(uri::contains);
     }
 
+    private DetectedClass detectedClass(QuerySolution soln) {
+        if (!soln.contains("?class")) return null;
+        Resource r = soln.getResource("?class");
+        if (isOmittedClass(r.getURI())) return null;
+        String label = r.getLocalName();
+        if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
+            label = soln.getLiteral("?label").getString();
+        return new DetectedClass(r.getURI(), label, soln.getLiteral("?n").getInt());
+    }
+
     public void detectClassFacets(Class datasetClass) {
-        endPointRepository.findByDataset(datasetClass.getDataset()).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(datasetClass.getDataset()).getQueryClassFacets(datasetClass.getUri().toString()),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(),
-                    endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (!soln.contains("?property")) continue;
-                Resource property = soln.getResource("?property");
-                if (isOmittedProperty(property.getURI())) continue;
-                Resource range = XSD.xstring;
-                if (soln.contains("?range"))
-                    range = soln.getResource("?range");
-                int uses = soln.getLiteral("?uses").getInt();
-                int values = soln.getLiteral("?values").getInt();
-                boolean isAllLiteral = false;
-                if (soln.contains("?allLiteral")) {
-                    Literal allLiteral = soln.getLiteral("?allLiteral");
-                    if (allLiteral.getDatatype().equals(XSDDatatype.XSDboolean))
-                        isAllLiteral = allLiteral.getBoolean();
-                    else
-                        isAllLiteral = (allLiteral.getInt() != 0);
-                }
-                boolean isAllBlank = false;
-                if (soln.contains("?allBlank")) {
-                    Literal allBlank = soln.getLiteral("?allBlank");
-                    if (allBlank.getDatatype().equals(XSDDatatype.XSDboolean))
-                        isAllBlank = allBlank.getBoolean();
-                    else
-                        isAllBlank = (allBlank.getInt() != 0);
-                }
-                String label = property.getLocalName();
-                if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
-                    label = soln.getLiteral("?label").getString();
+        Queries queries = queries(datasetClass.getDataset());
+        List<List<DetectedRange>> endPointsRanges = QueryPriority.ANALYSIS.call(() -> fanOut.collect(
+            endPointRepository.findByDataset(datasetClass.getDataset()), endPoint ->
+                selectAll(endPoint, queries.getQueryClassFacets(datasetClass.getUri().toString()),
+                        endPoint.getGraphs(), endPoint.getOntologyGraphs(), this::detectedRange)));
+        for (List<DetectedRange> ranges : endPointsRanges) {
+            for (DetectedRange detected : ranges) {
                 try {
-                    URI propertyUri = new URI(property.getURI());
+                    URI propertyUri = new URI(detected.property);
                     DatasetClassFacetId datasetClassFacetId = new DatasetClassFacetId(datasetClass.getId(), propertyUri);
-                    String finalLabel = label;
                     Facet detectedFacet = facetRepository.findById(datasetClassFacetId).orElseGet(() -> {
-                        Facet newFacet = facetRepository.save(new Facet(datasetClass, propertyUri, finalLabel));
+                        Facet newFacet = facetRepository.save(new Facet(datasetClass, propertyUri, detected.label));
                         datasetClass.addFacet(newFacet);
                         logger.info("Added detected Facet {} to Class {} in Dataset {}",
                                 newFacet.getId().getFacetCurie(), datasetClass.getId().getClassCurie(),
                                 datasetClass.getDataset().getId());
                         return newFacet;
                     });
-                    URI rangeUri = new URI(range.getURI());
-                    String rangeLabel = prefixCCMap.localName(range.getURI());
-                    if (soln.contains("?rlabel") && !range.getURI().startsWith(XSD.NS) && !range.equals(RDFS.Resource)
-                        && soln.getLiteral("?rlabel").getString().length() > 0)
-                        rangeLabel = soln.getLiteral("?rlabel").getString();
-                    Range detectedRange =
-                            new Range(detectedFacet, rangeUri, rangeLabel, uses, values, isAllLiteral, isAllBlank);
+                    Range detectedRange = new Range(detectedFacet, new URI(detected.range), detected.rangeLabel,
+                            detected.uses, detected.values, detected.allLiteral, detected.allBlank);
                     detectedFacet.addRange(rangeRepository.save(detectedRange));
                     facetRepository.save(detectedFacet);
                     logger.info("Added detected Range {} to Facet {} for Class {} in Dataset {}",
                             detectedRange.getId().getRangeCurie(), detectedFacet.getId().getFacetCurie(),
                             datasetClass.getId().getClassCurie(), datasetClass.getDataset().getId());
                 } catch (URISyntaxException e) {
-                    logger.error("URI syntax error: {}", property.getURI());
+                    logger.error("URI syntax error: {}", detected.property);
                 }
             }
-        });
+        }
+        caches.evict(datasetClass.getDataset().getId());
     }
 
     private boolean isOmittedProperty(String uri) {
         return Arrays.stream(omittedProperties).anyMatch(uri::contains);
     }
 
-    public List<Value> retrieveRangeValues(Dataset dataset, Range facetRange,
-            MultiValueMap<String, String> filters, int page, int size) {
+    private DetectedRange detectedRange(QuerySolution soln) {
+        if (!soln.contains("?property")) return null;
+        Resource property = soln.getResource("?property");
+        if (isOmittedProperty(property.getURI())) return null;
+        Resource range = XSD.xstring;
+        if (soln.contains("?range"))
+            range = soln.getResource("?range");
+        int uses = soln.getLiteral("?uses").getInt();
+        int values = soln.getLiteral("?values").getInt();
+        boolean isAllLiteral = false;
+        if (soln.contains("?allLiteral")) {
+            Literal allLiteral = soln.getLiteral("?allLiteral");
+            if (allLiteral.getDatatype().equals(XSDDatatype.XSDboolean))
+                isAllLiteral = allLiteral.getBoolean();
+            else
+                isAllLiteral = (allLiteral.getInt() != 0);
+        }
+        boolean isAllBlank = false;
+        if (soln.contains("?allBlank")) {
+            Literal allBlank = soln.getLiteral("?allBlank");
+            if (allBlank.getDatatype().equals(XSDDatatype.XSDboolean))
+                isAllBlank = allBlank.getBoolean();
+            else
+                isAllBlank = (allBlank.getInt() != 0);
+        }
+        String label = property.getLocalName();
+        if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
+            label = soln.getLiteral("?label").getString();
+        String rangeLabel = prefixCCMap.localName(range.getURI());
+        if (soln.contains("?rlabel") && !range.getURI().startsWith(XSD.NS) && !range.equals(RDFS.Resource)
+            && soln.getLiteral("?rlabel").getString().length() > 0)
+            rangeLabel = soln.getLiteral("?rlabel").getString();
+        return new DetectedRange(property.getURI(), label, range.getURI(), rangeLabel, uses, values,
+                isAllLiteral, isAllBlank);
+    }
+
+    /**
+     * Sent without blocking, so the request thread is released while the endpoints answer.
+     * Results are cached for identical filters, whatever their order, and served while stale as
+     * they are refreshed. Labels are not part of the aggregate query, they are resolved afterwards
+     * from the labels cache.
+     */
+    public CompletableFuture<List<Value>> retrieveRangeValues(Dataset dataset, Range facetRange,
+            Filters filters, int page, int size) {
+        return caches.getOrRetrieve(caches.rangeValues(), dataset.getId(), generations.current(dataset),
+                QueryResultCaches.rangeValuesKey(facetRange, filters, page, size),
+                () -> queryRangeValues(dataset, facetRange, filters, page, size));
+    }
+
+    private CompletableFuture<List<Value>> queryRangeValues(Dataset dataset, Range facetRange,
+            Filters filters, int page, int size) {
         URI classUri = facetRange.getFacet().getDomain().getUri();
         URI facetUri = facetRange.getFacet().getUri();
-        List<Value> rangeValues = new ArrayList<>();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(dataset).getQueryFacetRangeValues(endPoint.getType(), classUri.toString(),
+        Queries queries = queries(dataset);
+        List<SPARQLEndPoint> endPoints = endPointRepository.findByDataset(dataset);
+        QueryCompleteness completeness = QueryCompleteness.current();
+        return QueryKind.FACET_VALUES.call(() -> fanOut.mergeValuesAsync(endPoints, endPoint ->
+            sparqlService.querySelectAsync(endPoint,
+                    queries.getQueryFacetRangeValues(endPoint.getType(), classUri.toString(),
                             facetUri.toString(), facetRange.getUri().toString(), filters, facetRange.getAllLiteral(),
                             size, size * page, true),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(),
-                    withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (soln.contains("?value")) {
-                    RDFNode value = soln.get("?value");
-                    int count = soln.getLiteral("?count").getInt();
-                    String label = null;
-                    if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
-                        label = soln.getLiteral("?label").getString();
-                    String uri = null;
-                    if (value.isResource())
-                        uri = value.asResource().getURI();
-                    String curie = null;
-                    if (uri != null)
-                        try {
-                            curie = prefixCCMap.abbreviate(new URL(uri).toString());
-                        } catch (Exception ignored) {
-                        }
-                    if (value.isLiteral())
-                        rangeValues.add(new Value(value.asLiteral().getString(), count, uri, curie, label));
-                    else
-                        rangeValues.add(new Value(value.toString(), count, uri, curie, label));
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), dataset.isHedgedReads())
+                .thenApply(this::rangeValues)))
+            .thenCompose(values -> facetRange.getAllLiteral() ? CompletableFuture.completedFuture(values) :
+                completeness.call(() -> resolveLabels(dataset, endPoints, values, facetUri)));
+    }
+
+    /**
+     * The top values of each of the facets of a class, keyed by facet CURIE, retrieved with one
+     * query per endpoint that evaluates the filtered instances once for all the facets, instead of
+     * one query per facet. Results are cached for the same facets and identical filters, whatever
+     * their order, and served while stale as they are refreshed.
+     */
+    public CompletableFuture<Map<String, List<Value>>> retrieveFacetsValues(Dataset dataset, Class datasetClass,
+            List<Facet> facets, Filters filters, int size) {
+        return caches.getOrRetrieve(caches.facetsValues(), dataset.getId(), generations.current(dataset),
+                QueryResultCaches.facetsValuesKey(datasetClass, facets, filters, size),
+                () -> queryFacetsValues(dataset, datasetClass, facets, filters, size));
+    }
+
+    private CompletableFuture<Map<String, List<Value>>> queryFacetsValues(Dataset dataset, Class datasetClass,
+            List<Facet> facets, Filters filters, int size) {
+        if (facets.isEmpty())
+            return CompletableFuture.completedFuture(Map.of());
+        URI classUri = datasetClass.getUri();
+        List<String> facetUris = facets.stream().map(facet -> facet.getUri().toString()).collect(Collectors.toList());
+        Queries queries = queries(dataset);
+        List<SPARQLEndPoint> endPoints = endPointRepository.findByDataset(dataset);
+        QueryCompleteness completeness = QueryCompleteness.current();
+        return QueryKind.FACET_VALUES.call(() -> fanOut.collectAsync(endPoints, endPoint ->
+            sparqlService.querySelectAsync(endPoint,
+                    queries.getQueryFacetsValues(endPoint.getType(), classUri.toString(), facetUris, filters, size),
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), dataset.isHedgedReads())
+                .thenApply(result -> facetsValues(result, size))))
+            .thenCompose(endPointsValues -> {
+                Map<String, List<Value>> facetsValues = new LinkedHashMap<>();
+                List<Value> resources = new ArrayList<>();
+                for (Facet facet : facets) {
+                    List<List<Value>> valueLists = endPointsValues.stream()
+                            .map(values -> values.getOrDefault(facet.getUri().toString(), List.of()))
+                            .collect(Collectors.toList());
+                    List<Value> values = valueLists.size() == 1 ? valueLists.get(0) :
+                            EndPointFanOut.mergeValues(valueLists);
+                    values = new ArrayList<>(values.subList(0, Math.min(size, values.size())));
+                    facetsValues.put(facet.getCurie(), values);
+                    if (!facet.getAllLiteral())
+                        resources.addAll(values);
                 }
+                return resources.isEmpty() ? CompletableFuture.completedFuture(facetsValues) :
+                    completeness.call(() -> resolveLabels(dataset, endPoints, resources, classUri))
+                        .thenApply(resolved -> facetsValues);
+            });
+    }
+
+    /**
+     * The values of each property, keyed by its URI, up to the given size, which are the top ones
+     * as results come sorted by decreasing count.
+     */
+    private Map<String, List<Value>> facetsValues(ResultSet result, int size) {
+        Map<String, List<Value>> facetsValues = new HashMap<>();
+        while (result.hasNext()) {
+            QuerySolution soln = result.nextSolution();
+            if (soln.contains("?property") && soln.contains("?value")) {
+                List<Value> values = facetsValues.computeIfAbsent(
+                        soln.getResource("?property").getURI(), property -> new ArrayList<>());
+                if (values.size() < size)
+                    values.add(rangeValue(soln));
             }
-        });
+        }
+        return facetsValues;
+    }
+
+    /**
+     * Sets the labels of the values that are resources, resolved from the labels cache or the
+     * endpoints. Values are left without labels if they cannot be resolved.
+     */
+    private CompletableFuture<List<Value>> resolveLabels(Dataset dataset, List<SPARQLEndPoint> endPoints,
+                                                         List<Value> values, URI source) {
+        return resourceLabels.resolveAsync(dataset, endPoints, values.stream().map(AnalizeDataset::valueResource)
+                    .filter(Objects::nonNull).collect(Collectors.toList()))
+                .exceptionally(e -> {
+                    logger.warn("Labels of values of {} not resolved: {}", source, e.getMessage());
+                    return Map.of();
+                })
+                .thenApply(labels -> {
+                    values.forEach(value -> {
+                        String resource = valueResource(value);
+                        if (resource != null && ResourceLabels.joined(labels.get(resource)) != null)
+                            value.setLabelsStr(ResourceLabels.joined(labels.get(resource)));
+                    });
+                    return values;
+                });
+    }
+
+    /**
+     * The URI of the resource of a value, which is just its string form for optimized queries,
+     * or null if it is not a URI.
+     */
+    private static String valueResource(Value value) {
+        String resource = value.getUri() != null ? value.getUri() : value.getValue();
+        if (resource == null || !resource.matches("[^\\s<>\"{}|^`\\\\]+"))
+            return null;
+        try {
+            return new URI(resource).isAbsolute() ? resource : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private List<Value> rangeValues(ResultSet result) {
+        List<Value> rangeValues = new ArrayList<>();
+        while (result.hasNext()) {
+            QuerySolution soln = result.nextSolution();
+            if (soln.contains("?value"))
+                rangeValues.add(rangeValue(soln));
+        }
         return rangeValues;
     }
 
+    private Value rangeValue(QuerySolution soln) {
+        RDFNode value = soln.get("?value");
+        int count = soln.getLiteral("?count").getInt();
+        String uri = null;
+        if (value.isResource())
+            uri = value.asResource().getURI();
+        String curie = null;
+        if (uri != null)
+            try {
+                curie = prefixCCMap.abbreviate(new URL(uri).toString());
+            } catch (Exception ignored) {
+            }
+        if (value.isLiteral())
+            return new Value(value.asLiteral().getString(), count, uri, curie, null);
+        else
+            return new Value(value.toString(), count, uri, curie, null);
+    }
+
     public Value retrieveFacetRangeValueLabelAndCount(
-            Dataset dataset, Range facetRange, String rangeValue, MultiValueMap<String, String> filters) {
+            Dataset dataset, Range facetRange, String rangeValue, Filters filters) {
         URI classUri = facetRange.getFacet().getDomain().getUri();
         URI facetUri = facetRange.getFacet().getUri();
         Value resultValue = null;
         SPARQLEndPoint endPoint = endPointRepository.findByDataset(dataset).get(0);
-        ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
+        try (ResultSetCloseable result = QueryKind.FACET_VALUES.call(() -> sparqlService.querySelectStream(endPoint,
                 queries(dataset).getFacetRangeValueLabelAndCount(
                         endPoint.getType(), classUri.toString(), facetUri.toString(), facetRange.getUri().toString(),
                         rangeValue, filters, facetRange.getAllLiteral()),
-                endPoint.getGraphs(), endPoint.getOntologyGraphs(),
-                withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-        if (result.hasNext()) {
-            QuerySolution soln = result.nextSolution();
-            if (soln.contains("?value")) {
-                RDFNode value = soln.get("?value");
-                int count = soln.getLiteral("?count").getInt();
-                String label = null;
-                if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
-                    label = soln.getLiteral("?label").getString();
-                String uri = null;
-                if (value.isResource())
-                    uri = value.asResource().getURI();
-                String curie = null;
-                if (uri != null)
-                    try {
-                        curie = prefixCCMap.abbreviate(new URL(uri).toString());
-                    } catch (Exception ignored) {
-                    }
-                if (value.isLiteral())
-                    resultValue = new Value(value.asLiteral().getString(), count, uri, curie, label);
-                else
-                    resultValue = new Value(value.toString(), count, uri, curie, label);
-            }
-        }
-        return resultValue;
-    }
-
-    public List<Value> retrieveRangeValuesContaining(Dataset dataset, Range facetRange,
-           MultiValueMap<String, String> filters, String containing, int top, String lang) {
-        URI classUri = facetRange.getFacet().getDomain().getUri();
-        URI facetUri = facetRange.getFacet().getUri();
-        List<Value> rangeValues = new ArrayList<>();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(dataset).getQueryFacetRangeValuesContaining(
-                            endPoint.getType(), classUri.toString(), facetUri.toString(),
-                            facetRange.getUri().toString(), filters, facetRange.getAllLiteral(), containing, top, lang),
-                    endPoint.getGraphs(), withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
+                endPoint.getGraphs(), endPoint.getOntologyGraphs()))) {
+            if (result.hasNext()) {
                 QuerySolution soln = result.nextSolution();
                 if (soln.contains("?value")) {
                     RDFNode value = soln.get("?value");
+                    int count = soln.getLiteral("?count").getInt();
                     String label = null;
                     if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
                         label = soln.getLiteral("?label").getString();
@@ -283,249 +384,349 @@ public class AnalizeDataset {
                         } catch (Exception ignored) {
                         }
                     if (value.isLiteral())
-                        rangeValues.add(new Value(value.asLiteral().getString(), 0, uri, curie, label));
+                        resultValue = new Value(value.asLiteral().getString(), count, uri, curie, label);
                     else
-                        rangeValues.add(new Value(value.toString(), 0, uri, curie, label));
+                        resultValue = new Value(value.toString(), count, uri, curie, label);
                 }
             }
-        });
-        return rangeValues;
+        }
+        return resultValue;
+    }
+
+    public List<Value> retrieveRangeValuesContaining(Dataset dataset, Range facetRange,
+           Filters filters, String containing, int top, String lang) {
+        URI classUri = facetRange.getFacet().getDomain().getUri();
+        URI facetUri = facetRange.getFacet().getUri();
+        Queries queries = queries(dataset);
+        return QueryKind.FACET_VALUES.call(() -> fanOut.mergeValues(
+                endPointRepository.findByDataset(dataset), endPoint -> {
+            List<Value> rangeValues = new ArrayList<>();
+            try (ResultSetCloseable result = sparqlService.querySelectStream(endPoint,
+                    queries.getQueryFacetRangeValuesContaining(
+                            endPoint.getType(), classUri.toString(), facetUri.toString(),
+                            facetRange.getUri().toString(), filters, facetRange.getAllLiteral(), containing, top, lang),
+                    endPoint.getGraphs())) {
+                while (result.hasNext()) {
+                    QuerySolution soln = result.nextSolution();
+                    if (soln.contains("?value")) {
+                        RDFNode value = soln.get("?value");
+                        String label = null;
+                        if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
+                            label = soln.getLiteral("?label").getString();
+                        String uri = null;
+                        if (value.isResource())
+                            uri = value.asResource().getURI();
+                        String curie = null;
+                        if (uri != null)
+                            try {
+                                curie = prefixCCMap.abbreviate(new URL(uri).toString());
+                            } catch (Exception ignored) {
+                            }
+                        if (value.isLiteral())
+                            rangeValues.add(new Value(value.asLiteral().getString(), 0, uri, curie, label));
+                        else
+                            rangeValues.add(new Value(value.toString(), 0, uri, curie, label));
+                    }
+                }
+            }
+            return rangeValues;
+        }));
     }
 
     public Range retrieveRangeMinMax(Dataset dataset, Range facetRange,
-                                           MultiValueMap<String, String> filters) {
+                                           Filters filters) {
         URI classUri = facetRange.getFacet().getDomain().getUri();
         URI facetUri = facetRange.getFacet().getUri();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(dataset).getQueryFacetRangeMinMax(endPoint.getType(), classUri.toString(), facetUri.toString(),
+        Queries queries = queries(dataset);
+        List<List<Pair<String, String>>> endPointsMinMax = QueryKind.FACET_VALUES.call(() -> fanOut.collect(
+            endPointRepository.findByDataset(dataset), endPoint -> selectAll(endPoint,
+                    queries.getQueryFacetRangeMinMax(endPoint.getType(), classUri.toString(), facetUri.toString(),
                             facetRange.getUri().toString(), filters),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(),
-                    withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), (QuerySolution soln) -> new Pair<>(
+                            soln.contains("?min") ? soln.getLiteral("?min").getString() : null,
+                            soln.contains("?max") ? soln.getLiteral("?max").getString() : null))));
+        endPointsMinMax.forEach(minMaxs -> minMaxs.forEach(minMax -> {
+            if (minMax.getLeft() != null)
+                facetRange.setMin(minMax.getLeft());
+            if (minMax.getRight() != null)
+                facetRange.setMax(minMax.getRight());
+        }));
+        return facetRange;
+    }
+
+    /**
+     * The rows of the query mapped, as they are read, to just what is needed of them, and left
+     * out if mapped to null, so the solutions of every endpoint are not kept until all answer.
+     */
+    private <T> List<T> selectAll(SPARQLEndPoint endPoint, Query query, List<String> graphs,
+                                  List<String> namedGraphs, Function<QuerySolution, T> mapper) {
+        List<T> rows = new ArrayList<>();
+        try (ResultSetCloseable result = sparqlService.querySelectStream(endPoint, query, graphs, namedGraphs)) {
             while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (soln.contains("?min")) {
-                    String min = soln.getLiteral("?min").getString();
-                    facetRange.setMin(min);
-                }
-                if (soln.contains("?max")) {
-                    String max = soln.getLiteral("?max").getString();
-                    facetRange.setMax(max);
-                }
+                T row = mapper.apply(result.nextSolution());
+                if (row != null)
+                    rows.add(row);
             }
-        });
-        return facetRange;
+        }
+        return rows;
     }
 
     public List<URI> listServerGraphs(Dataset dataset, SPARQLEndPoint endPoint) {
-        ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                queries(dataset).getQueryGraphs(),
-                withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
         List<URI> graphs = new ArrayList<>();
-        while (result.hasNext()) {
-            QuerySolution soln = result.nextSolution();
-            if (soln.contains("?graph")) {
-                Resource graph = soln.getResource("?graph");
-                graphs.add(URI.create(graph.getURI()));
+        try (ResultSetCloseable result = sparqlService.querySelectStream(endPoint,
+                queries(dataset).getQueryGraphs())) {
+            while (result.hasNext()) {
+                QuerySolution soln = result.nextSolution();
+                if (soln.contains("?graph")) {
+                    Resource graph = soln.getResource("?graph");
+                    graphs.add(URI.create(graph.getURI()));
+                }
             }
         }
         return graphs;
     }
 
     public void retrieveClassDescriptions(OutputStream out, Dataset dataset, Class datasetClass,
-                    MultiValueMap<String, String> filters, int page, int size, RDFFormat format) {
+                    Filters filters, int page, int size, RDFFormat format) {
         URI classUri = datasetClass.getUri();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            Model model = sparqlService.queryDescribe(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQueryClassDescriptions(endPoint.getType(), classUri.toString(),
+        Queries queries = queries(dataset);
+        Model model = QueryKind.DESCRIBE.call(() -> fanOut.union(
+                endPointRepository.findByDataset(dataset), endPoint -> {
+            return sparqlService.queryDescribe(endPoint,
+                    queries.getQueryClassDescriptions(endPoint.getType(), classUri.toString(),
                             filters, size,size * page),
-                    endPoint.getGraphs(), withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            RDFDataMgr.write(out, model, format);
-        });
+                    endPoint.getGraphs());
+        }));
+        RDFDataMgr.write(out, model, format);
     }
 
     public void retrieveClassInstances(OutputStream out, Dataset dataset, Class datasetClass,
-                                       MultiValueMap<String, String> filters, int page, int size, RDFFormat format) {
+                                       Filters filters, int page, int size, RDFFormat format) {
         URI classUri = datasetClass.getUri();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            Model model = sparqlService.queryConstruct(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQueryClassInstances(endPoint.getType(), classUri.toString(),
+        Queries queries = queries(dataset);
+        Model model = QueryKind.DESCRIBE.call(() -> fanOut.union(
+                endPointRepository.findByDataset(dataset), endPoint -> {
+            Model instances = sparqlService.queryConstruct(endPoint,
+                    queries.getQueryClassInstances(endPoint.getType(), classUri.toString(),
                             filters, size,size * page),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(),
-                    endPoint.getQueryPassword()));
-            RDFDataMgr.write(out, model, format);
-            logger.info("queriesres {}", queries(dataset).getQueryClassInstances(endPoint.getType(), classUri.toString(),
-                    filters, size,size * page));
-        });
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs());
+            logger.debug("Retrieved instances of Class {} with filters {}", classUri, filters);
+            return instances;
+        }));
+        RDFDataMgr.write(out, model, format);
     }
 
     public void retrieveClassInstancesString(OutputStream out, Dataset dataset, Class datasetClass,
-                                       MultiValueMap<String, String> filters, int page, int size, RDFFormat format, String sparqlQueryString) {
+                                       Filters filters, int page, int size, RDFFormat format, String sparqlQueryString) {
         logger.info("INSIDE1");
         logger.info("INSIDE2");
         URI classUri = datasetClass.getUri();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
+        Queries queries = queries(dataset);
+        Model model = QueryKind.DESCRIBE.call(() -> fanOut.union(
+                endPointRepository.findByDataset(dataset), endPoint -> {
             logger.info("INSIDE3");
-            Query query = queries(dataset).getQueryClassInstancesFromString(endPoint.getType(), classUri.toString(),
+            Query query = queries.getQueryClassInstancesFromString(endPoint.getType(), classUri.toString(),
                     filters, size,size * page, sparqlQueryString);
             logger.info("query new {}", query);
-            Model model = sparqlService.queryConstruct(endPoint, endPoint.getTimeout(),query,
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(),
-                            endPoint.getQueryPassword()));
-            RDFDataMgr.write(out, model, format);
-        });
+            return sparqlService.queryConstruct(endPoint,query,
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs());
+        }));
+        RDFDataMgr.write(out, model, format);
     }
 
     public int retrieveSearchInstancesCount(Dataset dataset, String text) {
-        AtomicInteger count = new AtomicInteger();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(dataset).getQuerySearchInstancesCount(endPoint.getType(), text),
-                    endPoint.getGraphs(), withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (soln.contains("?n"))
-                    count.addAndGet(soln.getLiteral("?n").getInt());
+        Queries queries = queries(dataset);
+        return QueryKind.COUNT.call(() -> fanOut.sum(endPointRepository.findByDataset(dataset), endPoint -> {
+            int count = 0;
+            try (ResultSetCloseable result = sparqlService.querySelectStream(endPoint,
+                    queries.getQuerySearchInstancesCount(endPoint.getType(), text),
+                    endPoint.getGraphs())) {
+                while (result.hasNext()) {
+                    QuerySolution soln = result.nextSolution();
+                    if (soln.contains("?n"))
+                        count += soln.getLiteral("?n").getInt();
+                }
             }
-        });
-        return count.get();
+            return count;
+        }));
     }
 
     public void searchInstances(OutputStream out, Dataset dataset, String text, int size, RDFFormat format) {
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            Model model = sparqlService.queryConstruct(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQuerySearchInstances(endPoint.getType(), text, size),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(),
-                    endPoint.getQueryPassword()));
-            RDFDataMgr.write(out, model, format);
-        });
+        Queries queries = queries(dataset);
+        Model model = QueryKind.SEARCH.call(() -> fanOut.union(endPointRepository.findByDataset(dataset), endPoint -> {
+            return sparqlService.queryConstruct(endPoint,
+                    queries.getQuerySearchInstances(endPoint.getType(), text, size),
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs());
+        }));
+        RDFDataMgr.write(out, model, format);
     }
 
     public List<Value> searchInstancesTypeFacetValues(Dataset dataset, String text, int page, int size) {
-        List<Value> rangeValues = new ArrayList<>();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                queries(dataset).getQuerySearchTypeFacet(endPoint.getType(), text, size, size * page, true),
-                endPoint.getGraphs(), endPoint.getOntologyGraphs(),
-                withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (soln.contains("?class")) {
-                    RDFNode value = soln.get("?class");
-                    int count = soln.getLiteral("?count").getInt();
-                    String label = null;
-                    if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
-                        label = soln.getLiteral("?label").getString();
-                    String uri = null;
-                    if (value.isResource())
-                        uri = value.asResource().getURI();
-                    String curie = null;
-                    if (uri != null)
-                        try {
-                            curie = prefixCCMap.abbreviate(new URL(uri).toString());
-                        } catch (Exception ignored) {
-                        }
-                    if (value.isLiteral())
-                        rangeValues.add(new Value(value.asLiteral().getString(), count, uri, curie, label));
-                    else
-                        rangeValues.add(new Value(value.toString(), count, uri, curie, label));
+        Queries queries = queries(dataset);
+        return QueryKind.SEARCH.call(() -> fanOut.mergeValues(endPointRepository.findByDataset(dataset), endPoint -> {
+            List<Value> rangeValues = new ArrayList<>();
+            try (ResultSetCloseable result = sparqlService.querySelectStream(endPoint,
+                queries.getQuerySearchTypeFacet(endPoint.getType(), text, size, size * page, true),
+                endPoint.getGraphs(), endPoint.getOntologyGraphs())) {
+                while (result.hasNext()) {
+                    QuerySolution soln = result.nextSolution();
+                    if (soln.contains("?class")) {
+                        RDFNode value = soln.get("?class");
+                        int count = soln.getLiteral("?count").getInt();
+                        String label = null;
+                        if (soln.contains("?label") && !soln.getLiteral("?label").getString().isBlank())
+                            label = soln.getLiteral("?label").getString();
+                        String uri = null;
+                        if (value.isResource())
+                            uri = value.asResource().getURI();
+                        String curie = null;
+                        if (uri != null)
+                            try {
+                                curie = prefixCCMap.abbreviate(new URL(uri).toString());
+                            } catch (Exception ignored) {
+                            }
+                        if (value.isLiteral())
+                            rangeValues.add(new Value(value.asLiteral().getString(), count, uri, curie, label));
+                        else
+                            rangeValues.add(new Value(value.toString(), count, uri, curie, label));
+                    }
                 }
             }
-        });
-        return rangeValues;
+            return rangeValues;
+        }));
     }
 
     public void getLinkedResourcesLabels(OutputStream out, Dataset dataset, Class datasetClass,
-                    MultiValueMap<String, String> filters, int page, int size, RDFFormat format) {
+                    Filters filters, int page, int size, RDFFormat format) {
         URI classUri = datasetClass.getUri();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            Model model = sparqlService.queryConstruct(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQueryClassInstancesLabels(endPoint.getType(), classUri.toString(),
-                            filters, size,size * page),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(),
-                    endPoint.getQueryPassword()));
-            RDFDataMgr.write(out, model, format);
-        });
+        Queries queries = queries(dataset);
+        List<List<String>> endPointsResources = QueryKind.DESCRIBE.call(() -> fanOut.collect(
+                endPointRepository.findByDataset(dataset), endPoint ->
+            selectAll(endPoint, queries.getQueryClassInstancesLinkedResources(endPoint.getType(),
+                    classUri.toString(), filters, size, size * page),
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), (QuerySolution soln) ->
+                        soln.contains("?resource") && soln.get("?resource").isURIResource() ?
+                            soln.getResource("?resource").getURI() : null)));
+        Set<String> resourceUris = new LinkedHashSet<>();
+        endPointsResources.forEach(resourceUris::addAll);
+        Model model = ModelFactory.createDefaultModel();
+        resourceLabels.resolve(dataset, resourceUris).forEach((uri, labels) ->
+                labels.forEach(label -> model.add(model.createResource(uri), RDFS.label, label)));
+        RDFDataMgr.write(out, model, format);
     }
 
-    public int retrieveClassInstancesCount(Dataset dataset, Class datasetClass, MultiValueMap<String, String> filters) {
+    /**
+     * Results are cached for identical filters, whatever their order, and served while stale as
+     * they are refreshed.
+     */
+    public CompletableFuture<Integer> retrieveClassInstancesCount(Dataset dataset, Class datasetClass,
+                                                                  Filters filters) {
+        return caches.getOrRetrieve(caches.instancesCount(), dataset.getId(), generations.current(dataset),
+                QueryResultCaches.instancesCountKey(datasetClass, filters),
+                () -> queryClassInstancesCount(dataset, datasetClass, filters));
+    }
+
+    private CompletableFuture<Integer> queryClassInstancesCount(Dataset dataset, Class datasetClass,
+                                                                Filters filters) {
         URI classUri = datasetClass.getUri();
-        AtomicInteger count = new AtomicInteger();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                queries(dataset).getQueryClassInstancesCount(endPoint.getType(), classUri.toString(), filters),
-                endPoint.getGraphs(), withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                if (soln.contains("?n"))
-                    count.addAndGet(soln.getLiteral("?n").getInt());
-            }
+        Queries queries = queries(dataset);
+        return QueryKind.COUNT.call(() -> fanOut.sumAsync(endPointRepository.findByDataset(dataset), endPoint ->
+            sparqlService.querySelectAsync(endPoint,
+                    queries.getQueryClassInstancesCount(endPoint.getType(), classUri.toString(), filters),
+                    endPoint.getGraphs(), new ArrayList<>(), dataset.isHedgedReads())
+                .thenApply(result -> {
+                    int count = 0;
+                    while (result.hasNext()) {
+                        QuerySolution soln = result.nextSolution();
+                        if (soln.contains("?n"))
+                            count += soln.getLiteral("?n").getInt();
+                    }
+                    return count;
+                })));
+    }
+
+    /**
+     * The exact count if it is cached, even if stale, otherwise an estimate from the statistics of
+     * the class, while the exact count is retrieved in the background so it is cached when requested.
+     */
+    public InstancesCount retrieveApproximateClassInstancesCount(Dataset dataset, Class datasetClass,
+                                                                 Filters filters) {
+        CompletableFuture<Integer> count = retrieveClassInstancesCount(dataset, datasetClass, filters);
+        if (count.isDone() && !count.isCompletedExceptionally())
+            return new InstancesCount(count.join(), true);
+        count.exceptionally(e -> {
+            logger.info("Background instances count for Class {} failed: {}", datasetClass.getUri(), e.getMessage());
+            return null;
         });
-        return count.get();
+        return new InstancesCount(new InstancesCountEstimator().estimate(datasetClass, filters), false);
     }
 
     public void describeDatasetResource(OutputStream out, Dataset dataset, URI resourceUri, RDFFormat format) {
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            Model model = sparqlService.queryDescribe(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQueryDescribeResource(resourceUri), endPoint.getGraphs(),
-                    withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            model.add(sparqlService.queryConstruct(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQueryDescribeResourceLabels(resourceUri),
-                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(),
-                    endPoint.getQueryPassword())));
-            RDFDataMgr.write(out, model, format);
-        });
+        Queries queries = queries(dataset);
+        Model model = QueryKind.DESCRIBE.call(() -> fanOut.union(
+                endPointRepository.findByDataset(dataset), endPoint -> {
+            return sparqlService.queryDescribe(endPoint,
+                    queries.getQueryDescribeResource(resourceUri), endPoint.getGraphs(), dataset.isHedgedReads());
+        }));
+        resourceLabels.addLabels(dataset, model);
+        RDFDataMgr.write(out, model, format);
     }
 
     public Collection<IncomingFacet> detectDatasetResourceIncomingFacets(Dataset dataset, URI resourceUri) {
         HashMap<String, IncomingFacet> incomingFacets = new HashMap<>();
-        endPointRepository.findByDataset(dataset).forEach(endPoint -> {
-            ResultSet result = sparqlService.querySelect(endPoint.getQueryEndPoint(), endPoint.getTimeout(),
-                    queries(dataset).getQueryResourceIncomingFacets(resourceUri), endPoint.getGraphs(),
-                    endPoint.getOntologyGraphs(), withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
-            while (result.hasNext()) {
-                QuerySolution soln = result.nextSolution();
-                Resource range = OWL.Thing;
-                if (soln.contains("?range"))
-                    range = soln.getResource("?range");
-                if (!soln.contains("?prop")) continue;
-                Resource property = soln.getResource("?prop");
-                if (isOmittedProperty(property.getURI())) continue;
-                String propertyLabel = property.getLocalName();
-                if (soln.contains("?proplabel"))
-                    propertyLabel = soln.getLiteral("?proplabel").getString();
-                int uses = soln.getLiteral("?uses").getInt();
-                if (!soln.contains("?domain")) continue;
-                Resource domain = soln.getResource("?domain");
-                String domainLabel = domain.getLocalName();
-                if (soln.contains("?domainlabel"))
-                    domainLabel = soln.getLiteral("?domainlabel").getString();
-                int count = soln.getLiteral("?count").getInt();
-
-                IncomingFacet incomingFacet = incomingFacets.getOrDefault(property.getURI(),
-                        new IncomingFacet(range.getURI(), property.getURI(), propertyLabel, uses));
-                IncomingFacet.Domain incomingDomain = new IncomingFacet.Domain(domain.getURI(), domainLabel, count);
-                incomingFacet.addDomain(incomingDomain);
-                incomingFacets.putIfAbsent(property.getURI(), incomingFacet);
+        Queries queries = queries(dataset);
+        List<List<IncomingFacet>> endPointsFacets = QueryKind.DESCRIBE.call(() -> fanOut.collect(
+            endPointRepository.findByDataset(dataset), endPoint -> selectAll(endPoint, queries.getQueryResourceIncomingFacets(resourceUri),
+                    endPoint.getGraphs(), endPoint.getOntologyGraphs(), this::incomingFacet)));
+        for (List<IncomingFacet> facets : endPointsFacets) {
+            for (IncomingFacet facet : facets) {
+                IncomingFacet incomingFacet = incomingFacets.putIfAbsent(facet.getUri(), facet);
+                if (incomingFacet != null)
+                    facet.getDomains().forEach(incomingFacet::addDomain);
             }
-        });
+        }
         return incomingFacets.values();
     }
 
+    /**
+     * The incoming facet in the row with just the domain in it.
+     */
+    private IncomingFacet incomingFacet(QuerySolution soln) {
+        Resource range = OWL.Thing;
+        if (soln.contains("?range"))
+            range = soln.getResource("?range");
+        if (!soln.contains("?prop")) return null;
+        Resource property = soln.getResource("?prop");
+        if (isOmittedProperty(property.getURI())) return null;
+        String propertyLabel = property.getLocalName();
+        if (soln.contains("?proplabel"))
+            propertyLabel = soln.getLiteral("?proplabel").getString();
+        int uses = soln.getLiteral("?uses").getInt();
+        if (!soln.contains("?domain")) return null;
+        Resource domain = soln.getResource("?domain");
+        String domainLabel = domain.getLocalName();
+        if (soln.contains("?domainlabel"))
+            domainLabel = soln.getLiteral("?domainlabel").getString();
+        int count = soln.getLiteral("?count").getInt();
+
+        IncomingFacet incomingFacet = new IncomingFacet(range.getURI(), property.getURI(), propertyLabel, uses);
+        incomingFacet.addDomain(new IncomingFacet.Domain(domain.getURI(), domainLabel, count));
+        return incomingFacet;
+    }
+
     public void updateDatasetResource(Dataset dataset, SPARQLEndPoint endPoint, URI resource, Model newModel,
                                       OutputStream out, RDFFormat format) {
         if (endPoint.isWritable()) {
             StringWriter newResourceTriples = new StringWriter();
             RDFDataMgr.write(newResourceTriples, newModel, Lang.NTRIPLES);
-            Model oldModel = sparqlService.queryDescribe(endPoint, endPoint.getTimeout(),
-                    queries(dataset).getQueryDescribeResource(resource), endPoint.getGraphs(),
-                    withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
+            Model oldModel = sparqlService.queryDescribe(endPoint,
+                    queries(dataset).getQueryDescribeResource(resource), endPoint.getGraphs());
             StringWriter oldResourceTriples = new StringWriter();
             RDFDataMgr.write(oldResourceTriples, oldModel, Lang.NTRIPLES);
             UpdateRequest update = queries(dataset)
                     .getUpdateResource(oldResourceTriples.toString(), newResourceTriples.toString());
-            sparqlService.queryUpdate(endPoint.getUpdateEndPoint(), update,
-                    withCreds(endPoint.getUpdateUsername(), endPoint.getUpdatePassword()));
+            sparqlService.queryUpdate(endPoint, update);
+            generations.bump(dataset);
             RDFDataMgr.write(out, newModel, format);
         }
     }
@@ -541,42 +742,40 @@ public class AnalizeDataset {
     }
 
     public long countGraphTriples(SPARQLEndPoint endPoint, String graph) {
-        return sparqlService.countGraphTriples(endPoint.getQueryEndPoint(), endPoint.getTimeout(), graph,
-                withCreds(endPoint.getQueryUsername(), endPoint.getQueryPassword()));
+        return sparqlService.countGraphTriples(endPoint, graph);
+    }
+
+    public void negotiateResultFormats(SPARQLEndPoint endPoint) {
+        try {
+            sparqlService.negotiateResultFormats(endPoint);
+        } catch (RuntimeException e) {
+            logger.warn("Could not negotiate result formats with {}, using defaults: {}",
+                    endPoint.getQueryEndPoint(), e.getMessage());
+        }
     }
 
     public void clearGraph(SPARQLEndPoint endPoint, String graph) {
         if (endPoint.isWritable()) {
-            sparqlService.clearGraph(endPoint.getUpdateEndPoint(), graph,
-                    withCreds(endPoint.getUpdateUsername(), endPoint.getUpdatePassword()));
+            sparqlService.clearGraph(endPoint, graph);
+            generations.bump(endPoint.getDataset());
         }
     }
 
     public void dropGraph(SPARQLEndPoint endPoint, String graph) {
         if (endPoint.isWritable()) {
-            sparqlService.dropGraph(endPoint.getUpdateEndPoint(), graph,
-                    withCreds(endPoint.getUpdateUsername(), endPoint.getUpdatePassword()));
+            sparqlService.dropGraph(endPoint, graph);
+            generations.bump(endPoint.getDataset());
         }
     }
 
     public void loadModel(SPARQLEndPoint endPoint, String graph, Model model) {
         if (endPoint.isWritable()) {
-            sparqlService.loadModel(endPoint.getUpdateEndPoint(), endPoint.getType(), graph, model,
-                    withCreds(endPoint.getUpdateUsername(), endPoint.getUpdatePassword()));
+            sparqlService.loadModel(endPoint, graph, model);
+            generations.bump(endPoint.getDataset());
             endPoint.addGraph(graph);
         }
     }
 
-    private HttpClient withCreds(String username, String password) {
-        if (username == null || password == null )
-            return HttpClient.newHttpClient();
-        return HttpClient.newBuilder().authenticator(new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(username, password.toCharArray());
-            }
-        }).build();
-    }
     public String generateSparqlWithGroq(Dataset dataset, String classCurie) throws IOException {
         String fullString = dataset.toString();
         int halfLength = fullString.length() / 30;
@@ -587,4 +786,45 @@ public class AnalizeDataset {
         String sparqlQuery = groqService.getGroqChatCompletion(groqQuery);
         return sparqlQuery;
     }
+
+    /**
+     * What is kept of a class detected in an endpoint until it is saved.
+     */
+    private static final class DetectedClass {
+        private final String uri;
+        private final String label;
+        private final int count;
+
+        DetectedClass(String uri, String label, int count) {
+            this.uri = uri;
+            this.label = label;
+            this.count = count;
+        }
+    }
+
+    /**
+     * What is kept of a facet range detected in an endpoint until it is saved.
+     */
+    private static final class DetectedRange {
+        private final String property;
+        private final String label;
+        private final String range;
+        private final String rangeLabel;
+        private final int uses;
+        private final int values;
+        private final boolean allLiteral;
+        private final boolean allBlank;
+
+        DetectedRange(String property, String label, String range, String rangeLabel, int uses, int values,
+                      boolean allLiteral, boolean allBlank) {
+            this.property = property;
+            this.label = label;
+            this.range = range;
+            this.rangeLabel = rangeLabel;
+            this.uses = uses;
+            this.values = values;
+            this.allLiteral = allLiteral;
+            this.allBlank = allBlank;
+        }
+    }
 }
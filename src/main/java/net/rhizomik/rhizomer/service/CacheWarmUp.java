@@ -0,0 +1,133 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.Class;
+import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.model.Facet;
+import net.rhizomik.rhizomer.model.Range;
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import net.rhizomik.rhizomer.repository.DatasetRepository;
+import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Fills the result caches of public datasets in the background, after startup and once their
+ * classes are detected, so their first users do not wait for a cold endpoint. For the classes
+ * with more instances, it retrieves their unfiltered count and the first page of values of their
+ * most used facets. Queries are sent at bulk priority, one at a time, and a dataset is left as
+ * soon as any of its endpoints has queries waiting.
+ */
+@Service
+public class CacheWarmUp {
+    private static final Logger logger = LoggerFactory.getLogger(CacheWarmUp.class);
+
+    @Value("${rhizomer.warm-up.enabled:true}")
+    private boolean enabled = true;
+    @Value("${rhizomer.warm-up.top-classes:10}")
+    private int topClasses = 10;
+    @Value("${rhizomer.warm-up.top-facets:10}")
+    private int topFacets = 10;
+    @Value("${rhizomer.warm-up.values-size:10}")
+    private int valuesSize = 10;
+
+    @Autowired private DatasetRepository datasetRepository;
+    @Autowired private SPARQLEndPointRepository endPointRepository;
+    @Autowired private AnalizeDataset analizeDataset;
+    @Autowired private EndPointBulkhead bulkhead;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new SPARQLClientRegistry.ThreadFactoryNamed("warm-up"));
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpPublicDatasets() {
+        if (!enabled)
+            return;
+        executor.execute(() -> readOnly().executeWithoutResult(status ->
+            datasetRepository.findAll().forEach(dataset -> {
+                if (dataset.isPublic())
+                    warmUp(dataset.getId());
+            })));
+    }
+
+    /**
+     * Queues the warm up of the dataset, unless it is already queued. Only public datasets are
+     * warmed up.
+     */
+    public void warmUp(String datasetId) {
+        if (!enabled || !pending.add(datasetId))
+            return;
+        executor.execute(() -> {
+            pending.remove(datasetId);
+            try {
+                readOnly().executeWithoutResult(status -> datasetRepository.findById(datasetId)
+                        .filter(Dataset::isPublic).ifPresent(dataset -> QueryPriority.BULK.run(() -> warmUp(dataset))));
+            } catch (RuntimeException e) {
+                logger.info("Warm up of Dataset {} stopped: {}", datasetId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Waits for each query, so the warm up never has more than one query per endpoint running and
+     * the transaction stays open while the endpoints are queried.
+     */
+    private void warmUp(Dataset dataset) {
+        List<SPARQLEndPoint> endPoints = endPointRepository.findByDataset(dataset);
+        if (endPoints.isEmpty())
+            return;
+        List<Class> classes = dataset.getClasses().stream()
+                .sorted(Comparator.comparingInt(Class::getInstanceCount).reversed())
+                .limit(topClasses).collect(Collectors.toList());
+        for (Class datasetClass : classes) {
+            if (isBusy(dataset, endPoints))
+                return;
+            analizeDataset.retrieveClassInstancesCount(dataset, datasetClass, Filters.NONE).join();
+            List<Facet> facets = datasetClass.getFacets().stream()
+                    .sorted(Comparator.comparingInt(Facet::getTimesUsed).reversed())
+                    .limit(topFacets).collect(Collectors.toList());
+            for (Facet facet : facets)
+                for (Range range : facet.getRanges()) {
+                    if (isBusy(dataset, endPoints))
+                        return;
+                    analizeDataset.retrieveRangeValues(dataset, range, Filters.NONE, 0, valuesSize).join();
+                }
+        }
+        logger.info("Warmed up caches of Dataset {}", dataset.getId());
+    }
+
+    private boolean isBusy(Dataset dataset, List<SPARQLEndPoint> endPoints) {
+        if (endPoints.stream().noneMatch(bulkhead::isBusy))
+            return false;
+        logger.info("Warm up of Dataset {} stopped, its endpoints have queries waiting", dataset.getId());
+        return true;
+    }
+
+    private TransactionTemplate readOnly() {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(true);
+        return template;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
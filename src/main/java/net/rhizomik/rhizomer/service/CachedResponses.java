@@ -0,0 +1,161 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.Dataset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Streamed responses served from the response caches. Small responses are kept in the heap, the
+ * larger ones in memory mapped files, which are written to the client straight from the mapping.
+ * On a miss, the response is copied to a file while it is streamed to the client and only cached
+ * if it completes, with the answers of all the endpoints queried.
+ */
+@Service
+public class CachedResponses {
+    private static final Logger logger = LoggerFactory.getLogger(CachedResponses.class);
+
+    @Value("${rhizomer.cache.responses.heap-max-entry-bytes:262144}")
+    private long heapMaxEntryBytes = 262144;
+    @Value("${rhizomer.cache.responses.disk.max-entry-bytes:67108864}")
+    private long maxEntryBytes = 67108864;
+
+    @Autowired private QueryResultCaches caches;
+    @Autowired private DatasetGenerations generations;
+
+    public StreamingResponseBody cached(Dataset dataset, String key, StreamingResponseBody body) {
+        String datasetId = dataset.getId();
+        long generation = generations.current(dataset);
+        return outputStream -> {
+            byte[] bytes = caches.responses().get(datasetId, generation, key);
+            if (bytes != null) {
+                outputStream.write(bytes);
+                return;
+            }
+            MappedFileCache.Lease mapped = caches.responseFiles().get(datasetId, generation, key);
+            if (mapped != null) {
+                try (mapped) {
+                    write(mapped.getPayload(), outputStream);
+                }
+                return;
+            }
+            Path file = Files.createTempFile(caches.responseFiles().getDirectory(), "response", ".tmp");
+            try {
+                Capture capture = new Capture(outputStream, Files.newOutputStream(file), maxEntryBytes);
+                QueryCompleteness completeness = QueryCompleteness.track();
+                try {
+                    completeness.call(() -> {
+                        try {
+                            body.writeTo(capture);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return null;
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } finally {
+                    capture.closeCopy();
+                }
+                if (capture.isComplete() && completeness.isComplete())
+                    store(datasetId, generation, key, file, capture.getSize());
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        };
+    }
+
+    private void store(String datasetId, long generation, String key, Path file, long size) {
+        try {
+            if (size <= heapMaxEntryBytes)
+                caches.responses().put(datasetId, generation, key, Files.readAllBytes(file));
+            else
+                caches.responseFiles().put(datasetId, generation, key, file);
+        } catch (IOException e) {
+            logger.warn("Response {} of dataset {} not cached: {}", key, datasetId, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the mapped payload through a channel, without reading it into a heap array first.
+     * The channel is not closed, so the output stream remains open.
+     */
+    static void write(ByteBuffer payload, OutputStream outputStream) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(outputStream);
+        while (payload.hasRemaining())
+            channel.write(payload);
+    }
+
+    /**
+     * Copies to a file what is written to the client, until it exceeds the maximum size. Failures
+     * writing the copy do not affect the response, it is just not cached.
+     */
+    static final class Capture extends FilterOutputStream {
+        private final long maxBytes;
+        private final OutputStream copy;
+        private long size;
+        private boolean complete = true;
+
+        Capture(OutputStream out, OutputStream copy, long maxBytes) {
+            super(out);
+            this.copy = new BufferedOutputStream(copy);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy(b, off, len);
+        }
+
+        private void copy(byte[] b, int off, int len) {
+            if (!complete)
+                return;
+            size += len;
+            try {
+                if (size > maxBytes)
+                    throw new IOException("response larger than " + maxBytes + " bytes");
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                complete = false;
+                logger.debug("Response not cached: {}", e.getMessage());
+            }
+        }
+
+        void closeCopy() {
+            try {
+                copy.close();
+            } catch (IOException e) {
+                complete = false;
+            }
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+}
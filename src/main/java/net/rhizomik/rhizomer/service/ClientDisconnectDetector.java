@@ -0,0 +1,157 @@
+package net.rhizomik.rhizomer.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streamed responses are only written once their queries have answered, so a client that goes
+ * away meanwhile would not be noticed until then. While they run, the connection of the request
+ * is checked periodically, if the container provides a {@link ClientConnection} for it, and the
+ * queries of the response are cancelled as soon as it is closed. They are also cancelled when the
+ * container reports an error of the asynchronous request that writes the response, when the
+ * request times out or once it completes. Nothing is written to find out, as that would commit
+ * the response with a 200 status and a later failure of the queries could not be reported with
+ * its own.
+ */
+@Service
+public class ClientDisconnectDetector implements CallableProcessingInterceptor {
+    private static final Logger logger = LoggerFactory.getLogger(ClientDisconnectDetector.class);
+    static final String CANCELLATION_ATTRIBUTE = ClientDisconnectDetector.class.getName() + ".cancellation";
+    public static final String CONNECTION_ATTRIBUTE = ClientDisconnectDetector.class.getName() + ".connection";
+
+    @Value("${rhizomer.disconnect-check.interval:2000}")
+    private long interval = 2000;
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new SPARQLClientRegistry.ThreadFactoryNamed("disconnect-check"));
+
+    /**
+     * Tells whether the client of a request is gone without writing to it, see
+     * {@link net.rhizomik.rhizomer.handler.ClientConnectionValve}.
+     */
+    public interface ClientConnection {
+        boolean isClosed();
+    }
+
+    public StreamingResponseBody cancelOnDisconnect(StreamingResponseBody body) {
+        QueryCancellation cancellation = new QueryCancellation();
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        ClientConnection connection = null;
+        if (request != null) {
+            request.setAttribute(CANCELLATION_ATTRIBUTE, cancellation, RequestAttributes.SCOPE_REQUEST);
+            Object attribute = request.getAttribute(CONNECTION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (attribute instanceof ClientConnection)
+                connection = (ClientConnection) attribute;
+        }
+        ClientConnection checked = connection;
+        return outputStream -> {
+            ConnectionCheck check = checked != null ? new ConnectionCheck(checked, cancellation) : null;
+            try {
+                cancellation.call(() -> {
+                    try {
+                        body.writeTo(outputStream);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (CancellationException e) {
+                if (!cancellation.isCancelled())
+                    throw e;
+                logger.debug("Queries cancelled after client disconnection", e);
+            } finally {
+                if (check != null)
+                    check.stop();
+            }
+        };
+    }
+
+    @Override
+    public <T> Object handleTimeout(NativeWebRequest request, Callable<T> task) {
+        if (cancel(request))
+            logger.info("Response timed out, cancelling its queries");
+        return RESULT_NONE;
+    }
+
+    @Override
+    public <T> Object handleError(NativeWebRequest request, Callable<T> task, Throwable t) {
+        if (cancel(request))
+            logger.info("Client disconnected, cancelling its queries");
+        return RESULT_NONE;
+    }
+
+    @Override
+    public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+        cancel(request);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * False if the request has no queries to cancel or they already were.
+     */
+    private boolean cancel(NativeWebRequest request) {
+        Object cancellation = request.getAttribute(CANCELLATION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (!(cancellation instanceof QueryCancellation) || ((QueryCancellation) cancellation).isCancelled())
+            return false;
+        ((QueryCancellation) cancellation).cancel();
+        return true;
+    }
+
+    /**
+     * Checks the connection until stopped, which waits for a running check, so the connection is
+     * not checked once the container may have reused it for another request.
+     */
+    private final class ConnectionCheck {
+        private final ClientConnection connection;
+        private final QueryCancellation cancellation;
+        private final ScheduledFuture<?> schedule;
+        private boolean stopped;
+
+        ConnectionCheck(ClientConnection connection, QueryCancellation cancellation) {
+            this.connection = connection;
+            this.cancellation = cancellation;
+            this.schedule = scheduler.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void check() {
+            if (stopped || cancellation.isCancelled())
+                return;
+            try {
+                if (connection.isClosed()) {
+                    logger.info("Client disconnected, cancelling its queries");
+                    cancellation.cancel();
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Could not check the client connection", e);
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            schedule.cancel(false);
+        }
+    }
+}
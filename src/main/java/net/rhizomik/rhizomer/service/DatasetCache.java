@@ -0,0 +1,203 @@
+package net.rhizomik.rhizomer.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory cache of query results per dataset, bounded in number of entries, evicting the least
+ * recently used ones first, and with entries that expire a fixed time after being stored.
+ * Expired entries can still be served as stale by {@link #lookup(String, long, String)} for a
+ * while, up to a maximum staleness, so they are refreshed without making callers wait.
+ * Entries are stored for a generation of the dataset data, see {@link DatasetGenerations}, so
+ * those of previous generations are not returned. Cached values are shared by all callers, so
+ * they must not be mutated.
+ */
+public class DatasetCache<V> {
+    private final int maxEntries;
+    private final long ttl;
+    private final long maxStale;
+    private final LongSupplier clock;
+    private final LinkedHashMap<Key, Entry<V>> entries;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public DatasetCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, 0);
+    }
+
+    public DatasetCache(int maxEntries, long ttl, long maxStale) {
+        this(maxEntries, ttl, maxStale, System::currentTimeMillis);
+    }
+
+    DatasetCache(int maxEntries, long ttl, long maxStale, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.maxStale = maxStale;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry<V>> eldest) {
+                return size() > DatasetCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The cached value, or null if there is none or it has expired.
+     */
+    public V get(String datasetId, long generation, String key) {
+        Entry<V> entry;
+        long now = clock.getAsLong();
+        synchronized (this) {
+            entry = entry(new Key(datasetId, generation, key), now);
+        }
+        if (entry != null && now - entry.stored >= ttl)
+            entry = null;
+        getStats(datasetId).record(entry != null);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * The cached value, even if it has expired but is not older than the maximum staleness, or
+     * null otherwise.
+     */
+    public Hit<V> lookup(String datasetId, long generation, String key) {
+        Entry<V> entry;
+        long now = clock.getAsLong();
+        synchronized (this) {
+            entry = entry(new Key(datasetId, generation, key), now);
+        }
+        Hit<V> hit = entry != null ? new Hit<>(entry, now - entry.stored, now - entry.stored >= ttl) : null;
+        Stats datasetStats = getStats(datasetId);
+        datasetStats.record(hit != null);
+        if (hit != null && hit.stale)
+            datasetStats.staleHits.incrementAndGet();
+        return hit;
+    }
+
+    public void put(String datasetId, long generation, String key, V value) {
+        if (maxEntries <= 0 || ttl <= 0)
+            return;
+        synchronized (this) {
+            entries.put(new Key(datasetId, generation, key), new Entry<>(value, clock.getAsLong()));
+        }
+    }
+
+    private Entry<V> entry(Key entryKey, long now) {
+        Entry<V> entry = entries.get(entryKey);
+        if (entry != null && now - entry.stored >= ttl + maxStale) {
+            entries.remove(entryKey);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void evict(String datasetId) {
+        for (Iterator<Key> keys = entries.keySet().iterator(); keys.hasNext(); )
+            if (keys.next().datasetId.equals(datasetId))
+                keys.remove();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Stats getStats(String datasetId) {
+        return stats.computeIfAbsent(datasetId, id -> new Stats());
+    }
+
+    public static final class Stats {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong staleHits = new AtomicLong();
+
+        public long getHits() { return hits.get(); }
+
+        public long getStaleHits() { return staleHits.get(); }
+
+        public long getMisses() { return misses.get(); }
+
+        public double getHitRatio() {
+            long total = hits.get() + misses.get();
+            return total == 0 ? 0 : (double) hits.get() / total;
+        }
+
+        void record(boolean hit) {
+            (hit ? hits : misses).incrementAndGet();
+        }
+    }
+
+    public static final class Hit<V> {
+        private final Entry<V> entry;
+        private final long age;
+        private final boolean stale;
+
+        private Hit(Entry<V> entry, long age, boolean stale) {
+            this.entry = entry;
+            this.age = age;
+            this.stale = stale;
+        }
+
+        public V getValue() { return entry.value; }
+
+        /**
+         * Milliseconds since the value was stored.
+         */
+        public long getAge() { return age; }
+
+        public boolean isStale() { return stale; }
+
+        /**
+         * True for just one of the callers that get the stale value, the one that should refresh it,
+         * until {@link #releaseRefresh()} is called because the refresh failed.
+         */
+        public boolean claimRefresh() {
+            return stale && entry.refreshing.compareAndSet(false, true);
+        }
+
+        public void releaseRefresh() {
+            entry.refreshing.set(false);
+        }
+    }
+
+    static final class Key {
+        final String datasetId;
+        private final long generation;
+        private final String key;
+
+        Key(String datasetId, long generation, String key) {
+            this.datasetId = datasetId;
+            this.generation = generation;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return datasetId.equals(other.datasetId) && generation == other.generation && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(datasetId, generation, key);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long stored;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(V value, long stored) {
+            this.value = value;
+            this.stored = stored;
+        }
+    }
+}
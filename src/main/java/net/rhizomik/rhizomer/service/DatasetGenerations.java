@@ -0,0 +1,64 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.DataGeneration;
+import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.repository.DataGenerationRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generation of the data of each dataset, increased by every write to any of its graphs and
+ * persisted. Caches include it in their keys, so after a write their entries are simply not found
+ * anymore, and age out, without scanning the caches. Cached results are all computed over every
+ * graph of the dataset, so there is no generation per graph.
+ * There is also a schema generation, increased when the classes, facets or configuration of
+ * the dataset change.
+ */
+@Service
+public class DatasetGenerations {
+    @Autowired private DataGenerationRepository generationRepository;
+
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    public long current(Dataset dataset) {
+        return generation(dataset.getId()).get();
+    }
+
+    /**
+     * To be called once the write is done, so queries sent before it finishes are not cached
+     * under the new generation.
+     */
+    public long bump(Dataset dataset) {
+        return increment(dataset.getId());
+    }
+
+    public long schema(String datasetId) {
+        return generation(schemaId(datasetId)).get();
+    }
+
+    public long bumpSchema(String datasetId) {
+        return increment(schemaId(datasetId));
+    }
+
+    private long increment(String id) {
+        AtomicLong generation = generation(id);
+        synchronized (generation) {
+            long next = generation.incrementAndGet();
+            generationRepository.save(new DataGeneration(id, next));
+            return next;
+        }
+    }
+
+    private AtomicLong generation(String id) {
+        return generations.computeIfAbsent(id, key -> new AtomicLong(generationRepository.findById(key)
+                .map(DataGeneration::getGeneration).orElse(0L)));
+    }
+
+    private static String schemaId(String datasetId) {
+        return datasetId + " schema";
+    }
+}
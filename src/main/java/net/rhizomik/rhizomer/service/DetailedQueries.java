@@ -3,11 +3,10 @@ package net.rhizomik.rhizomer.service;
 import net.rhizomik.rhizomer.model.SPARQLEndPoint;
 import org.apache.jena.query.ParameterizedSparqlString;
 import org.apache.jena.query.Query;
-import org.apache.jena.query.QueryFactory;
 import org.apache.jena.vocabulary.RDFS;
 import org.springframework.stereotype.Service;
-import org.springframework.util.MultiValueMap;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -16,10 +15,7 @@ import java.util.stream.Collectors;
  */
 @Service
 public class DetailedQueries implements Queries {
-
-    @Override
-    public Query getQueryClasses() {
-        return QueryFactory.create(prefixes +
+    private static final QueryTemplate classes = new QueryTemplate(prefixes +
             "SELECT ?class ?n (GROUP_CONCAT(?langLabel; SEPARATOR = \" || \") AS ?label) \n" +
             "WHERE { \n" +
             "\t { SELECT ?class (COUNT(DISTINCT ?instance) as ?n) \n" +
@@ -30,12 +26,7 @@ public class DetailedQueries implements Queries {
             "\t\t } GROUP BY ?class } \n" +
             "\t OPTIONAL { GRAPH ?g { ?class rdfs:label ?l } BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
             "} GROUP BY ?class ?n");
-    }
-
-    @Override
-    public Query getQueryClassFacets(String classUri) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
+    private static final QueryTemplate classFacets = new QueryTemplate(prefixes +
             "SELECT ?property ?range ?uses ?values ?allLiteral ?allBlank " +
             "       (GROUP_CONCAT(DISTINCT(?langLabel) ; separator=' || ') AS ?label) " +
             "       (GROUP_CONCAT(DISTINCT(?rlangLabel) ; separator=' || ') AS ?rlabel) \n" +
@@ -54,17 +45,23 @@ public class DetailedQueries implements Queries {
             "\t OPTIONAL { GRAPH ?g { ?property rdfs:label ?l } BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
             "\t OPTIONAL { GRAPH ?g { ?range rdfs:label ?rl } BIND (CONCAT(?rl, IF(LANG(?rl),\"@\",\"\"), LANG(?rl)) AS ?rlangLabel) } \n" +
             "} GROUP BY ?property ?range ?uses ?values ?allLiteral ?allBlank");
-        pQuery.setIri("class", classUri);
-        return pQuery.asQuery();
+
+    @Override
+    public Query getQueryClasses() {
+        return classes.bind();
+    }
+
+    @Override
+    public Query getQueryClassFacets(String classUri) {
+        return classFacets.bind("class", classUri);
     }
 
     @Override
     public Query getQueryFacetRangeValues(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters, boolean isLiteral, int limit, int offset, boolean ordered) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
-            "SELECT ?value ?count (GROUP_CONCAT(?langLabel; SEPARATOR = \" || \") AS ?label) \n" +
+            Filters filters, boolean isLiteral, int limit, int offset, boolean ordered) {
+        Query query = QueryTemplate.of(prefixes +
+            "SELECT ?value ?count \n" +
             "\t WHERE { \n" +
             "\t { SELECT ?value (COUNT(?value) AS ?count) \n" +
             "\t\t WHERE { \n" +
@@ -82,12 +79,7 @@ public class DetailedQueries implements Queries {
                     "\t\t ?resource a <" + rangeUri + "> \n" :
                     "\t\t OPTIONAL { ?resource a ?type } FILTER( (!BOUND(?type) || ?type=rdfs:Resource ) && !ISLITERAL(?resource) ) \n" ) +
             "\t\t } GROUP BY ?value } \n" +
-            "\t OPTIONAL { ?value rdfs:label ?l BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
-            "\t OPTIONAL { GRAPH ?g { ?value rdfs:label ?l } BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
-            "} GROUP BY ?value ?count");
-        pQuery.setIri("class", classUri);
-        pQuery.setIri("property", facetUri);
-        Query query = pQuery.asQuery();
+            "}").bind("class", classUri, "property", facetUri);
         if (limit > 0) query.setLimit(limit);
         if (offset > 0) query.setOffset(offset);
         if (ordered) query.addOrderBy("count", -1);
@@ -97,7 +89,7 @@ public class DetailedQueries implements Queries {
     @Override
     public Query getFacetRangeValueLabelAndCount(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri, String value,
-            MultiValueMap<String, String> filters, boolean isLiteral) {
+            Filters filters, boolean isLiteral) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
                 "SELECT ?value ?count (GROUP_CONCAT(?langLabel; SEPARATOR = \" || \") AS ?label) \n" +
@@ -130,7 +122,7 @@ public class DetailedQueries implements Queries {
     @Override
     public Query getQueryFacetRangeValuesContaining(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters, boolean isLiteral, String containing, int top, String lang) {
+            Filters filters, boolean isLiteral, String containing, int top, String lang) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
             "SELECT DISTINCT ?value ?label \n" +
@@ -164,7 +156,7 @@ public class DetailedQueries implements Queries {
     @Override
     public Query getQueryFacetRangeMinMax(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters) {
+            Filters filters) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
                 "SELECT (MIN(?num) AS ?min) (MAX(?num) AS ?max) \n" +
@@ -181,72 +173,54 @@ public class DetailedQueries implements Queries {
     }
 
     @Override
-    public String convertAndFilter(SPARQLEndPoint.ServerType serverType, String property,
-                                    String range, List<String> values) {
+    public String convertOrFilter(SPARQLEndPoint.ServerType serverType, Filters.Filter filter) {
         StringBuilder pattern = new StringBuilder();
-        values.forEach(value -> {
-            String propertyValueVar = Integer.toUnsignedString(property.hashCode() + value.hashCode());
-            if (property.equalsIgnoreCase("urn:rhz:contains")) {
-                pattern.append(containingText(serverType, value, propertyValueVar));
-            } else {
-                boolean negation = false;
-                if (value.startsWith("!")) {
-                    negation = true;
-                    value = value.substring(1);
-                    pattern.append("FILTER NOT EXISTS { ");
-                }
-                pattern.append("\t ?instance <" + property + "> ?v" + propertyValueVar + " . \n");
-                if (!value.equals("null")) {
-                    if (value.startsWith("\"≧") || value.startsWith("\"≦")) {
-                        convertRangeFilterToSparqlPattern(value, range, propertyValueVar, pattern);
-                    }
-                    else {
-                        pattern.append(
-                                (value.startsWith("<") && value.endsWith(">") ?
-                                        "\t FILTER( ?v" + propertyValueVar + " = " + value + " )\n" :
-                                        "\t FILTER( STR(?v" + propertyValueVar + ") = " + value +
-                                                (range != null ?
-                                                        " && DATATYPE(?v" + propertyValueVar + ") = <" + range + ">" : "") +
-                                                " )\n"));
-                        if (negation)
-                            pattern.append(" }");
-                    }
-                }
+        List<Filters.Term> values = filter.getValues();
+        if (filter.isContains()) {
+            for (int i = 0; i < values.size(); i++)
+                pattern.append(containingText(serverType, values.get(i).toString(), filter.variable(i)));
+        } else if (values.stream().anyMatch(Filters.Term::isNegated)) {
+            pattern.append(convertOrFilterWithNegations(filter));
+        } else {
+            String propertyVar = filter.variable();
+            pattern.append("\t ?instance <" + filter.getProperty() + "> ?" + propertyVar + " . \n");
+            List<Filters.Term> alternatives = new ArrayList<>();
+            for (Filters.Term value : values) {
+                if (value.getBoundOperator() != null)
+                    convertRangeFilterToSparqlPattern(value, filter.getRange(), propertyVar, pattern);
+                else
+                    alternatives.add(value);
             }
-        });
+            if (!alternatives.isEmpty() && alternatives.stream().noneMatch(Filters.Term::isNull)) {
+                pattern.append("FILTER ( ?" + propertyVar + " IN (" +
+                        alternatives.stream().map(Filters.Term::toString).collect(Collectors.joining(", "))
+                        + ") ) \n");
+            }
+        }
         return pattern.toString();
     }
 
-    public  String convertOrFilter(SPARQLEndPoint.ServerType serverType, String property,
-                                   String range, List<String> values) {
+    @Override
+    public String convertValueFilter(Filters.Filter filter, Filters.Term value, String propertyValueVar) {
         StringBuilder pattern = new StringBuilder();
-        if (property.equalsIgnoreCase("urn:rhz:contains")) {
-            values.forEach(value -> {
-                String propertyValueVar = Integer.toUnsignedString(property.hashCode() + value.hashCode());
-                pattern.append(containingText(serverType, value, propertyValueVar));
-            });
-        } else {
-            String propertyVar = Integer.toUnsignedString(property.hashCode());
-            pattern.append("\t ?instance <" + property + "> ?v" + propertyVar + " . \n");
-            if (values.size() > 0 && !values.get(0).equals("null")) {
-                if (values.get(0).startsWith("≧") || values.get(0).startsWith("≦")) {
-                    convertRangeFilterToSparqlPattern(values.get(0), range, propertyVar, pattern);
-                } else {
-                    pattern.append("FILTER ( ?v" + propertyVar + " IN (" +
-                            String.join(", ", values)
-                            + ") ) \n");
-                }
-            }
+        if (value.getBoundOperator() != null) {
+            convertRangeFilterToSparqlPattern(value, filter.getRange(), propertyValueVar, pattern);
+        } else if (value.isIri()) {
+            pattern.append("\t FILTER( ?" + propertyValueVar + " = " + value.getText() + " )\n");
+        } else if (!value.isNull()) {
+            pattern.append("\t FILTER( STR(?" + propertyValueVar + ") = " + value.getText() +
+                    (filter.getRange() != null ?
+                            " && DATATYPE(?" + propertyValueVar + ") = <" + filter.getRange() + ">" : "") +
+                    " )\n");
         }
         return pattern.toString();
     }
 
-    public void convertRangeFilterToSparqlPattern(String value, String range, String propertyValueVar,
+    public void convertRangeFilterToSparqlPattern(Filters.Term value, String range, String propertyValueVar,
                                                   StringBuilder pattern){
-        String operator = value.startsWith("\"≧") ? ">=" : "<=";
-        value = value.substring(2, value.lastIndexOf('"'));
-        pattern.append("\t FILTER( ?v" + propertyValueVar + " " + operator + " \"" + value + "\"" +
-                (range != null ? "^^<" + range + "> && DATATYPE(?v" + propertyValueVar + ") = <" + range + ">" : "") +
+        pattern.append("\t FILTER( ?" + propertyValueVar + " " + value.getBoundOperator() + " \"" +
+                value.getBoundValue() + "\"" +
+                (range != null ? "^^<" + range + "> && DATATYPE(?" + propertyValueVar + ") = <" + range + ">" : "") +
                 " )\n");
     }
 
@@ -0,0 +1,286 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the queries running concurrently against each endpoint. Queries over the limit wait in
+ * their {@link QueryPriority} lane and, when a slot frees up, the oldest query of the highest
+ * priority lane goes first, so interactive browsing is not stuck behind dataset analysis or loads.
+ * It is the single admission point for the requests sent to an endpoint, whose HTTP clients do
+ * not limit their connections, so the limit here is also that of the connections.
+ */
+@Service
+public class EndPointBulkhead {
+    private static final Logger logger = LoggerFactory.getLogger(EndPointBulkhead.class);
+
+    @Value("${rhizomer.bulkhead.max-concurrent-queries:8}")
+    private int maxConcurrentQueries = 8;
+    @Value("${rhizomer.bulkhead.max-queue-time:60000}")
+    private long maxQueueTime = 60000;
+
+    private final Map<String, Lanes> endPointLanes = new ConcurrentHashMap<>();
+
+    public Permit acquire(SPARQLEndPoint endPoint) {
+        return acquire(endPoint, QueryPriority.current());
+    }
+
+    public Permit acquire(SPARQLEndPoint endPoint, QueryPriority priority) {
+        Lanes lanes = endPointLanes.computeIfAbsent(String.valueOf(endPoint.getId()),
+                id -> new Lanes(maxConcurrentQueries));
+        try {
+            lanes.acquire(priority, TimeUnit.MILLISECONDS.toNanos(maxQueueTime));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for endpoint " + endPoint.getQueryEndPoint(), e);
+        }
+        return new Permit(lanes);
+    }
+
+    /**
+     * Like {@link #acquire(SPARQLEndPoint, QueryPriority)} but without blocking the caller, the
+     * returned permit completes once there is a free slot. Cancelling it gives up the place in
+     * the queue.
+     */
+    public CompletableFuture<Permit> acquireAsync(SPARQLEndPoint endPoint, QueryPriority priority) {
+        Lanes lanes = endPointLanes.computeIfAbsent(String.valueOf(endPoint.getId()),
+                id -> new Lanes(maxConcurrentQueries));
+        return lanes.acquireAsync(priority, TimeUnit.MILLISECONDS.toNanos(maxQueueTime));
+    }
+
+    /**
+     * Whether there are queries waiting for a free slot of the endpoint, so queries that can be
+     * postponed should not be sent now.
+     */
+    public boolean isBusy(SPARQLEndPoint endPoint) {
+        Lanes lanes = endPointLanes.get(String.valueOf(endPoint.getId()));
+        return lanes != null && lanes.isBusy();
+    }
+
+    public Map<QueryPriority, LaneStats> getStats(SPARQLEndPoint endPoint) {
+        Lanes lanes = endPointLanes.get(String.valueOf(endPoint.getId()));
+        Map<QueryPriority, LaneStats> stats = new EnumMap<>(QueryPriority.class);
+        for (QueryPriority priority : QueryPriority.values())
+            stats.put(priority, lanes != null ? lanes.stats.get(priority) : new LaneStats());
+        return stats;
+    }
+
+    public void evict(Integer endPointId) {
+        endPointLanes.remove(String.valueOf(endPointId));
+    }
+
+    public static final class Permit implements AutoCloseable {
+        private final Lanes lanes;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Lanes lanes) { this.lanes = lanes; }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true))
+                lanes.release();
+        }
+    }
+
+    public static final class LaneStats {
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong totalQueueTime = new AtomicLong();
+        private final AtomicLong maxQueueTime = new AtomicLong();
+        private volatile int waiting;
+
+        void admitted(long queueNanos) {
+            admitted.incrementAndGet();
+            long queueMillis = TimeUnit.NANOSECONDS.toMillis(queueNanos);
+            totalQueueTime.addAndGet(queueMillis);
+            maxQueueTime.accumulateAndGet(queueMillis, Math::max);
+        }
+
+        public long getAdmitted() { return admitted.get(); }
+
+        public long getRejected() { return rejected.get(); }
+
+        public int getWaiting() { return waiting; }
+
+        public long getAverageQueueTime() {
+            long count = admitted.get();
+            return count == 0 ? 0 : totalQueueTime.get() / count;
+        }
+
+        public long getMaxQueueTime() { return maxQueueTime.get(); }
+    }
+
+    static final class Lanes {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+                Comparator.comparing((Waiter waiter) -> waiter.priority).thenComparingLong(waiter -> waiter.ticket));
+        private final Map<QueryPriority, LaneStats> stats = new EnumMap<>(QueryPriority.class);
+        private int available;
+        private long tickets;
+
+        Lanes(int maxConcurrentQueries) {
+            this.available = maxConcurrentQueries;
+            for (QueryPriority priority : QueryPriority.values())
+                stats.put(priority, new LaneStats());
+        }
+
+        void acquire(QueryPriority priority, long maxQueueNanos) throws InterruptedException {
+            long start = System.nanoTime();
+            lock.lock();
+            try {
+                if (available > 0 && queue.isEmpty()) {
+                    available--;
+                    stats.get(priority).admitted(0);
+                    return;
+                }
+                Waiter waiter = new Waiter(priority, tickets++, lock.newCondition(), null);
+                queue.add(waiter);
+                stats.get(priority).waiting++;
+                try {
+                    long remaining = maxQueueNanos;
+                    while (queue.peek() != waiter || available == 0) {
+                        if (remaining <= 0) {
+                            queue.remove(waiter);
+                            stats.get(priority).rejected.incrementAndGet();
+                            signalNext();
+                            logger.warn("Rejected {} query after waiting {} ms for a free slot",
+                                    priority, TimeUnit.NANOSECONDS.toMillis(maxQueueNanos));
+                            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                                    "SPARQL endpoint too busy, try again later");
+                        }
+                        remaining = waiter.condition.awaitNanos(remaining);
+                    }
+                    queue.poll();
+                    available--;
+                    stats.get(priority).admitted(System.nanoTime() - start);
+                    signalNext();
+                } catch (InterruptedException e) {
+                    if (queue.remove(waiter))
+                        signalNext();
+                    throw e;
+                } finally {
+                    stats.get(priority).waiting--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        CompletableFuture<Permit> acquireAsync(QueryPriority priority, long maxQueueNanos) {
+            lock.lock();
+            try {
+                if (available > 0 && queue.isEmpty()) {
+                    available--;
+                    stats.get(priority).admitted(0);
+                    return CompletableFuture.completedFuture(new Permit(this));
+                }
+                Waiter waiter = new Waiter(priority, tickets++, null, new CompletableFuture<>());
+                queue.add(waiter);
+                stats.get(priority).waiting++;
+                CompletableFuture.delayedExecutor(maxQueueNanos, TimeUnit.NANOSECONDS)
+                        .execute(() -> abandon(waiter, true));
+                waiter.admission.whenComplete((permit, e) -> {
+                    if (waiter.admission.isCancelled())
+                        abandon(waiter, false);
+                });
+                return waiter.admission;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void abandon(Waiter waiter, boolean timedOut) {
+            lock.lock();
+            try {
+                if (!queue.remove(waiter))
+                    return;
+                stats.get(waiter.priority).waiting--;
+                if (timedOut)
+                    stats.get(waiter.priority).rejected.incrementAndGet();
+                signalNext();
+            } finally {
+                lock.unlock();
+            }
+            if (timedOut) {
+                logger.warn("Rejected {} query after waiting {} ms for a free slot", waiter.priority,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.start));
+                waiter.admission.completeExceptionally(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                        "SPARQL endpoint too busy, try again later"));
+            }
+        }
+
+        boolean isBusy() {
+            lock.lock();
+            try {
+                return !queue.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                available++;
+                signalNext();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Asynchronous waiters are admitted right away, their permits are handed over from another
+         * thread so their continuations do not run while holding the lock.
+         */
+        private void signalNext() {
+            Waiter next;
+            while ((next = queue.peek()) != null && available > 0) {
+                if (next.admission == null) {
+                    next.condition.signal();
+                    return;
+                }
+                queue.poll();
+                available--;
+                stats.get(next.priority).waiting--;
+                stats.get(next.priority).admitted(System.nanoTime() - next.start);
+                Waiter admitted = next;
+                CompletableFuture.runAsync(() -> {
+                    if (!admitted.admission.complete(new Permit(this)))
+                        release();
+                });
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final QueryPriority priority;
+        private final long ticket;
+        private final Condition condition;
+        private final CompletableFuture<Permit> admission;
+        private final long start = System.nanoTime();
+
+        Waiter(QueryPriority priority, long ticket, Condition condition, CompletableFuture<Permit> admission) {
+            this.priority = priority;
+            this.ticket = ticket;
+            this.condition = condition;
+            this.admission = admission;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.EndPointHealth;
+import net.rhizomik.rhizomer.model.EndPointHealth.State;
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.apache.jena.atlas.web.HttpException;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a rolling health score for each endpoint, from the error rate and latency of its latest
+ * queries. When the score drops below the threshold the circuit opens and queries fail fast
+ * instead of piling up until they time out. Once the open period is over, a single trial query
+ * is let through and its outcome decides whether the circuit closes or opens again.
+ */
+@Service
+public class EndPointCircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(EndPointCircuitBreaker.class);
+
+    @Value("${rhizomer.circuit-breaker.window:100}")
+    private int window = 100;
+    @Value("${rhizomer.circuit-breaker.minimum-calls:10}")
+    private int minimumCalls = 10;
+    @Value("${rhizomer.circuit-breaker.health-threshold:0.5}")
+    private double healthThreshold = 0.5;
+    @Value("${rhizomer.circuit-breaker.slow-call:30000}")
+    private long slowCall = 30000;
+    @Value("${rhizomer.circuit-breaker.open-duration:30000}")
+    private long openDuration = 30000;
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * Fails fast when the circuit for the endpoint is open. Callers allowed through must report
+     * the outcome with {@link #recordSuccess} or {@link #recordFailure}.
+     */
+    public void checkAvailable(SPARQLEndPoint endPoint) {
+        if (!breaker(endPoint).tryAcquire())
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    String.format("SPARQL endpoint %s is unavailable, try again later", endPoint.getQueryEndPoint()));
+    }
+
+    public void recordSuccess(SPARQLEndPoint endPoint, long elapsedNanos) {
+        breaker(endPoint).record(true, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), endPoint);
+    }
+
+    public void recordFailure(SPARQLEndPoint endPoint, long elapsedNanos, RuntimeException e) {
+        if (isEndPointFailure(e))
+            breaker(endPoint).record(false, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), endPoint);
+        else
+            breaker(endPoint).release();
+    }
+
+    /**
+     * For callers allowed through that end up not sending the query, so they have no outcome to
+     * report but must not keep the trial query of a half open circuit.
+     */
+    public void release(SPARQLEndPoint endPoint) {
+        breaker(endPoint).release();
+    }
+
+    public EndPointHealth getHealth(SPARQLEndPoint endPoint) {
+        return breaker(endPoint).health();
+    }
+
+    public void evict(Integer endPointId) {
+        breakers.remove(String.valueOf(endPointId));
+    }
+
+    /**
+     * Client errors, like a malformed query, and cancelled queries say nothing about the health
+     * of the endpoint.
+     */
+    static boolean isEndPointFailure(RuntimeException e) {
+        if (e instanceof ResponseStatusException || e instanceof CancellationException)
+            return false;
+        int status = httpStatus(e);
+        return status < 400 || status >= 500 || status == 408 || status == 429;
+    }
+
+    /**
+     * HTTP status of the endpoint response that caused the exception, or -1 if there was none.
+     */
+    static int httpStatus(RuntimeException e) {
+        if (e instanceof QueryExceptionHTTP)
+            return ((QueryExceptionHTTP) e).getStatusCode();
+        if (e instanceof HttpException)
+            return ((HttpException) e).getStatusCode();
+        return -1;
+    }
+
+    private Breaker breaker(SPARQLEndPoint endPoint) {
+        return breakers.computeIfAbsent(String.valueOf(endPoint.getId()), id -> new Breaker());
+    }
+
+    private final class Breaker {
+        private final boolean[] successes = new boolean[window];
+        private final long[] latencies = new long[window];
+        private int next;
+        private int calls;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean probing;
+
+        synchronized boolean tryAcquire() {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.OPEN || (state == State.HALF_OPEN && probing))
+                return false;
+            if (state == State.HALF_OPEN)
+                probing = true;
+            return true;
+        }
+
+        synchronized void release() {
+            if (state == State.HALF_OPEN)
+                probing = false;
+        }
+
+        synchronized void record(boolean success, long latency, SPARQLEndPoint endPoint) {
+            if (state == State.HALF_OPEN) {
+                probing = false;
+                if (success && latency < slowCall) {
+                    logger.info("Closing circuit for endpoint {} after successful trial query",
+                            endPoint.getQueryEndPoint());
+                    state = State.CLOSED;
+                    calls = 0;
+                    next = 0;
+                } else {
+                    open(endPoint);
+                    return;
+                }
+            }
+            successes[next] = success;
+            latencies[next] = latency;
+            next = (next + 1) % window;
+            calls = Math.min(calls + 1, window);
+            if (state == State.CLOSED && calls >= minimumCalls && score() < healthThreshold)
+                open(endPoint);
+        }
+
+        private void open(SPARQLEndPoint endPoint) {
+            logger.warn("Opening circuit for endpoint {} with health score {}", endPoint.getQueryEndPoint(), score());
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+
+        private double errorRate() {
+            int errors = 0;
+            for (int i = 0; i < calls; i++)
+                if (!successes[i]) errors++;
+            return calls == 0 ? 0 : (double) errors / calls;
+        }
+
+        private long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) return 0;
+            return sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+        }
+
+        private double score() {
+            long[] sorted = Arrays.copyOf(latencies, calls);
+            Arrays.sort(sorted);
+            long p95 = percentile(sorted, 0.95);
+            double latencyFactor = p95 <= slowCall ? 1 : (double) slowCall / p95;
+            return (1 - errorRate()) * latencyFactor;
+        }
+
+        synchronized EndPointHealth health() {
+            long[] sorted = Arrays.copyOf(latencies, calls);
+            Arrays.sort(sorted);
+            State current = state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration ?
+                    State.HALF_OPEN : state;
+            return new EndPointHealth(current, score(), calls, errorRate(),
+                    percentile(sorted, 0.5), percentile(sorted, 0.95), percentile(sorted, 0.99));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import net.rhizomik.rhizomer.model.Value;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the per-endpoint queries of a dataset concurrently, so a dataset federated over several
+ * endpoints answers in the time of the slowest one instead of the sum of all of them.
+ * Endpoints that have not answered when the global deadline expires are cancelled and left out,
+ * which is reported to the current {@link QueryCompleteness} so the results are not cached.
+ */
+@Service
+public class EndPointFanOut {
+    private static final Logger logger = LoggerFactory.getLogger(EndPointFanOut.class);
+
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.fan-out.deadline:300000}")
+    private long deadline;
+
+    private final ExecutorService executor =
+            Executors.newCachedThreadPool(new SPARQLClientRegistry.ThreadFactoryNamed("sparql-fan-out"));
+
+    /**
+     * Results are returned in endpoint order. Tasks run outside the caller's persistence context,
+     * so they should not navigate lazy associations nor use repositories.
+     */
+    public <T> Collected<T> collect(List<SPARQLEndPoint> endPoints, Function<SPARQLEndPoint, T> task) {
+        List<T> results = new ArrayList<>();
+        if (endPoints.size() <= 1) {
+            endPoints.forEach(endPoint -> results.add(task.apply(endPoint)));
+            return new Collected<>(results, true);
+        }
+        QueryCompleteness completeness = QueryCompleteness.current();
+        endPoints.forEach(endPoint -> {
+            endPoint.getGraphs(); endPoint.getOntologyGraphs(); endPoint.getQueryReplicas();
+        });
+        QueryContext context = QueryContext.capture();
+        List<Future<T>> futures = new ArrayList<>();
+        endPoints.forEach(endPoint ->
+                futures.add(executor.submit(() -> context.call(() -> task.apply(endPoint)))));
+        long expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get(Math.max(0, expiry - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    futures.get(i).cancel(true);
+                    completeness.incomplete();
+                    logger.warn("Endpoint {} did not answer within {} ms, ignoring it",
+                            endPoints.get(i).getQueryEndPoint(), deadline);
+                }
+            }
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying dataset endpoints", e);
+        }
+        if (results.isEmpty())
+            throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT,
+                    String.format("No endpoint answered within %d ms", deadline));
+        return new Collected<>(results, results.size() == endPoints.size());
+    }
+
+    /**
+     * Like {@link #collect(List, Function)} for tasks that complete asynchronously, started from the
+     * calling thread each under its own {@link QueryCancellation}, which is cancelled if its
+     * endpoint has not answered by the deadline.
+     */
+    public <T> CompletableFuture<Collected<T>> collectAsync(List<SPARQLEndPoint> endPoints,
+                                                            Function<SPARQLEndPoint, CompletableFuture<T>> task) {
+        QueryCancellation cancellation = QueryCancellation.current();
+        QueryCompleteness completeness = QueryCompleteness.current();
+        List<CompletableFuture<Optional<T>>> answers = new ArrayList<>();
+        for (SPARQLEndPoint endPoint : endPoints) {
+            QueryCancellation execution = cancellation.child();
+            CompletableFuture<Optional<T>> answer;
+            try {
+                answer = execution.call(() -> task.apply(endPoint)).thenApply(Optional::of);
+            } catch (RuntimeException e) {
+                answer = CompletableFuture.failedFuture(e);
+            }
+            answers.add(answer.completeOnTimeout(Optional.empty(), deadline, TimeUnit.MILLISECONDS)
+                    .whenComplete((result, e) -> {
+                        if (result != null && result.isEmpty()) {
+                            execution.cancel();
+                            completeness.incomplete();
+                            logger.warn("Endpoint {} did not answer within {} ms, ignoring it",
+                                    endPoint.getQueryEndPoint(), deadline);
+                        }
+                        execution.release();
+                    }));
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<T> results = answers.stream().map(CompletableFuture::join).flatMap(Optional::stream)
+                    .collect(Collectors.toList());
+            if (results.isEmpty())
+                throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT,
+                        String.format("No endpoint answered within %d ms", deadline));
+            return new Collected<>(results, results.size() == endPoints.size());
+        });
+    }
+
+    public int sum(List<SPARQLEndPoint> endPoints, ToIntFunction<SPARQLEndPoint> task) {
+        return collect(endPoints, task::applyAsInt).stream().mapToInt(Integer::intValue).sum();
+    }
+
+    public Model union(List<SPARQLEndPoint> endPoints, Function<SPARQLEndPoint, Model> task) {
+        List<Model> models = collect(endPoints, task);
+        if (models.size() == 1)
+            return models.get(0);
+        Model union = ModelFactory.createDefaultModel();
+        models.forEach(union::add);
+        return union;
+    }
+
+    /**
+     * Values returned by more than one endpoint are merged adding up their counts, and the merged
+     * list is sorted by decreasing count.
+     */
+    public List<Value> mergeValues(List<SPARQLEndPoint> endPoints, Function<SPARQLEndPoint, List<Value>> task) {
+        List<List<Value>> valueLists = collect(endPoints, task);
+        if (valueLists.size() == 1)
+            return valueLists.get(0);
+        return mergeValues(valueLists);
+    }
+
+    public CompletableFuture<Integer> sumAsync(List<SPARQLEndPoint> endPoints,
+                                               Function<SPARQLEndPoint, CompletableFuture<Integer>> task) {
+        return collectAsync(endPoints, task).thenApply(counts -> counts.stream().mapToInt(Integer::intValue).sum());
+    }
+
+    public CompletableFuture<List<Value>> mergeValuesAsync(List<SPARQLEndPoint> endPoints,
+                                                           Function<SPARQLEndPoint, CompletableFuture<List<Value>>> task) {
+        return collectAsync(endPoints, task).thenApply(valueLists ->
+                valueLists.size() == 1 ? valueLists.get(0) : mergeValues(valueLists));
+    }
+
+    static List<Value> mergeValues(List<List<Value>> valueLists) {
+        Map<String, Value> merged = new LinkedHashMap<>();
+        valueLists.forEach(values -> values.forEach(value -> {
+            String key = value.getUri() != null ? value.getUri() : value.getValue();
+            merged.merge(key, value, (previous, current) -> {
+                Value sum = new Value(previous.getValue(), previous.getCount() + current.getCount(),
+                        previous.getUri(), previous.getCurie(), null);
+                sum.setLabels(previous.getLabels().isEmpty() ? current.getLabels() : previous.getLabels());
+                return sum;
+            });
+        }));
+        List<Value> values = new ArrayList<>(merged.values());
+        values.sort(Comparator.comparingInt(Value::getCount).reversed());
+        return values;
+    }
+
+    /**
+     * The results of the endpoints that answered, complete if all of them did.
+     */
+    public static final class Collected<T> extends AbstractList<T> {
+        private final List<T> results;
+        private final boolean complete;
+
+        Collected(List<T> results, boolean complete) {
+            this.results = results;
+            this.complete = complete;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public T get(int index) {
+            return results.get(index);
+        }
+
+        @Override
+        public int size() {
+            return results.size();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
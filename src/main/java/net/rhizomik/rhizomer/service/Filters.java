@@ -0,0 +1,246 @@
+package net.rhizomik.rhizomer.service;
+
+import org.springframework.util.MultiValueMap;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * The facet filters of a request, parsed once from its parameters and immutable. Filters are
+ * ordered by property and range and their values sorted, so the same filters given in a different
+ * order have the same canonical form, used for cache keys and logging, and generate the same
+ * query, with variables named after their position instead of their text.
+ *
+ * Each parameter is a property, optionally followed by a space and a range, with values that are
+ * IRIs like {@code <http://...>}, quoted literals, {@code null} for any value, or range bounds like
+ * {@code "≧10"}, each of them negated if prefixed with {@code !}. Several values of a parameter
+ * are alternatives, as are those in a single value like {@code OR(<a> <b>)}, while those in a
+ * single value like {@code AND("a" "b")} or just separated by spaces are all required.
+ */
+public final class Filters implements Iterable<Filters.Filter> {
+    public static final String CONTAINS = "urn:rhz:contains";
+    public static final Filters NONE = new Filters(List.of());
+
+    private final List<Filter> filters;
+    private final String canonical;
+
+    private Filters(List<Filter> filters) {
+        this.filters = Collections.unmodifiableList(filters);
+        this.canonical = filters.stream().map(Filter::toString).collect(Collectors.joining("&"));
+    }
+
+    public static Filters of(MultiValueMap<String, String> parameters) {
+        Map<String, List<String>> sorted = new TreeMap<>();
+        parameters.forEach((propertyRange, values) -> {
+            if (values != null && !values.isEmpty())
+                sorted.put(propertyRange, values);
+        });
+        if (sorted.isEmpty())
+            return NONE;
+        List<Filter> filters = new ArrayList<>();
+        sorted.forEach((propertyRange, values) -> {
+            int space = propertyRange.indexOf(' ');
+            String property = space > 0 ? propertyRange.substring(0, space) : propertyRange;
+            String range = space > 0 ? propertyRange.substring(space + 1) : null;
+            String value = values.get(0);
+            boolean or = values.size() > 1 || value.startsWith("OR(");
+            List<String> terms = values.size() > 1 ? values : split(value);
+            filters.add(new Filter(filters.size(), property, range, or, terms));
+        });
+        return new Filters(filters);
+    }
+
+    /**
+     * The values in a parameter value, which are either all IRIs or all quoted literals separated
+     * by single spaces, otherwise the whole text is a single value.
+     */
+    private static List<String> split(String values) {
+        if ((values.startsWith("AND(") || values.startsWith("OR(")) && values.endsWith(")"))
+            values = values.substring(values.indexOf('(') + 1, values.length() - 1);
+        List<String> terms = split(values, '<', '>');
+        if (terms == null)
+            terms = split(values, '"', '"');
+        return terms != null ? terms : List.of(values);
+    }
+
+    private static List<String> split(String values, char open, char close) {
+        List<String> terms = new ArrayList<>();
+        int i = 0;
+        while (i < values.length()) {
+            int start = i;
+            if (values.charAt(i) == '!')
+                i++;
+            if (i >= values.length() || values.charAt(i) != open)
+                return null;
+            int end = values.indexOf(close, i + 1);
+            if (end < 0 || end == i + 1)
+                return null;
+            terms.add(values.substring(start, end + 1));
+            i = end + 1;
+            if (i < values.length() && (values.charAt(i) != ' ' || ++i == values.length()))
+                return null;
+        }
+        return terms.isEmpty() ? null : terms;
+    }
+
+    public boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    @Override
+    public Iterator<Filter> iterator() {
+        return filters.iterator();
+    }
+
+    /**
+     * The filters with their keys encoded, like in a query string, so equal filters have equal
+     * canonical forms.
+     */
+    public String canonical() {
+        return canonical;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Filters && canonical.equals(((Filters) o).canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        return canonical.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return canonical;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The values required, or alternative, for a property and optionally a range.
+     */
+    public static final class Filter {
+        private final int index;
+        private final String property;
+        private final String range;
+        private final boolean or;
+        private final List<Term> values;
+
+        private Filter(int index, String property, String range, boolean or, List<String> values) {
+            this.index = index;
+            this.property = property;
+            this.range = range;
+            this.or = or;
+            this.values = new TreeSet<>(values).stream().map(Term::new).collect(Collectors.toUnmodifiableList());
+        }
+
+        public String getProperty() {
+            return property;
+        }
+
+        public String getRange() {
+            return range;
+        }
+
+        public boolean isOr() {
+            return or;
+        }
+
+        public boolean isContains() {
+            return property.equalsIgnoreCase(CONTAINS);
+        }
+
+        public List<Term> getValues() {
+            return values;
+        }
+
+        /**
+         * Name of the variable for the values of the property, unique among the filters.
+         */
+        public String variable() {
+            return "v" + index;
+        }
+
+        /**
+         * Name of the variable for the value at the position, when each value is matched apart.
+         */
+        public String variable(int value) {
+            return "v" + index + "_" + value;
+        }
+
+        @Override
+        public String toString() {
+            return encode(range != null ? property + " " + range : property) + "=" + (or ? "OR(" : "AND(") +
+                    values.stream().map(value -> encode(value.toString())).collect(Collectors.joining(" ")) + ")";
+        }
+    }
+
+    /**
+     * A value as given, an IRI, a quoted literal, a range bound or {@code null}, maybe negated.
+     */
+    public static final class Term {
+        private final boolean negated;
+        private final String text;
+
+        private Term(String value) {
+            this.negated = value.startsWith("!");
+            this.text = negated ? value.substring(1) : value;
+        }
+
+        public boolean isNegated() {
+            return negated;
+        }
+
+        /**
+         * The value without the negation.
+         */
+        public String getText() {
+            return text;
+        }
+
+        public boolean isNull() {
+            return text.equals("null");
+        }
+
+        public boolean isIri() {
+            return text.startsWith("<") && text.endsWith(">");
+        }
+
+        public String getIri() {
+            return text.substring(1, text.length() - 1);
+        }
+
+        /**
+         * The comparison operator if the value is a range bound, either {@code >=} or {@code <=},
+         * otherwise null.
+         */
+        public String getBoundOperator() {
+            String bound = text.startsWith("\"") ? text.substring(1) : text;
+            return bound.startsWith("≧") ? ">=" : bound.startsWith("≦") ? "<=" : null;
+        }
+
+        /**
+         * The lexical form of a range bound, without the operator and quotes.
+         */
+        public String getBoundValue() {
+            String bound = text.startsWith("\"") ? text.substring(2) : text.substring(1);
+            return bound.endsWith("\"") ? bound.substring(0, bound.length() - 1) : bound;
+        }
+
+        @Override
+        public String toString() {
+            return negated ? "!" + text : text;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.Class;
+import net.rhizomik.rhizomer.model.Facet;
+import net.rhizomik.rhizomer.model.Range;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Estimates the instances of a class matching some filters without querying the endpoints, from
+ * the statistics gathered when the class was analysed: how many instances use each facet range
+ * and how many different values it has. Filters are assumed independent and values uniformly
+ * distributed, and filters on facets without statistics, like text search, are not considered.
+ */
+public class InstancesCountEstimator {
+    public int estimate(Class datasetClass, Filters filters) {
+        int instanceCount = datasetClass.getInstanceCount();
+        if (instanceCount <= 0)
+            return 0;
+        double selectivity = 1;
+        for (Filters.Filter filter : filters)
+            selectivity *= selectivity(datasetClass, filter);
+        return (int) Math.round(instanceCount * selectivity);
+    }
+
+    private double selectivity(Class datasetClass, Filters.Filter filter) {
+        if (filter.isContains())
+            return 1;
+        Facet facet = datasetClass.getFacets().stream()
+                .filter(candidate -> candidate.getUri().toString().equals(filter.getProperty())).findFirst().orElse(null);
+        if (facet == null)
+            return 1;
+        List<Range> ranges = facet.getRanges().stream()
+                .filter(candidate -> filter.getRange() == null || candidate.getUri().toString().equals(filter.getRange()))
+                .collect(Collectors.toList());
+        double used = Math.min(1, (double) ranges.stream().mapToInt(Range::getTimesUsed).sum() /
+                datasetClass.getInstanceCount());
+        int different = Math.max(1, ranges.stream().mapToInt(Range::getDifferentValues).sum());
+
+        double selectivity = filter.isOr() ? 0 : 1;
+        for (Filters.Term value : filter.getValues()) {
+            double valueSelectivity = valueSelectivity(value, used, different);
+            selectivity = filter.isOr() ? selectivity + valueSelectivity : selectivity * valueSelectivity;
+        }
+        return Math.min(1, selectivity);
+    }
+
+    private static double valueSelectivity(Filters.Term value, double used, int different) {
+        double selectivity = value.isNull() ? used : used / different;
+        return value.isNegated() ? 1 - selectivity : selectivity;
+    }
+}
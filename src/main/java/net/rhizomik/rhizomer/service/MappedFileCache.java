@@ -0,0 +1,305 @@
+package net.rhizomik.rhizomer.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Cache of serialized responses per dataset kept in segment files under a directory, bounded by
+ * their total size and evicting the least recently used ones first. Segments are memory mapped
+ * when stored, so hits are served from the page cache without loading the payload into the heap.
+ * Like {@link DatasetCache}, entries are stored for a generation of the dataset data and expire
+ * a fixed time after being stored. Segments do not survive restarts. Each instance keeps them, and
+ * the responses being captured, in its own subdirectory, locked while it runs, and deletes on
+ * startup those of the instances no longer running, but not other files in the directory.
+ * <p>
+ * The disk space of a deleted segment is only released once it is unmapped, so segments are
+ * unmapped as soon as they are evicted and no reader remains, and until then their size still
+ * counts towards the total.
+ */
+public class MappedFileCache {
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileCache.class);
+    private static final MethodHandle UNMAP = unmapHandle();
+    private static final String INSTANCE_PREFIX = "instance";
+    private static final String LOCK_FILE = ".lock";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long ttl;
+    private final LongSupplier clock;
+    private final LinkedHashMap<DatasetCache.Key, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, DatasetCache.Stats> stats = new ConcurrentHashMap<>();
+    private final FileChannel lock;
+    private long totalBytes;
+
+    public MappedFileCache(Path directory, long maxBytes, long ttl) {
+        this(directory, maxBytes, ttl, System::currentTimeMillis);
+    }
+
+    MappedFileCache(Path parent, long maxBytes, long ttl, LongSupplier clock) {
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.clock = clock;
+        try {
+            Files.createDirectories(parent);
+            try (Stream<Path> instances = Files.list(parent)) {
+                instances.filter(MappedFileCache::isInstanceDirectory).forEach(MappedFileCache::deleteIfAbandoned);
+            }
+            directory = Files.createTempDirectory(parent, INSTANCE_PREFIX);
+            lock = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock.lock();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Those without a lock file yet are skipped, as their instance may be starting.
+     */
+    private static boolean isInstanceDirectory(Path path) {
+        return Files.isDirectory(path) && path.getFileName().toString().startsWith(INSTANCE_PREFIX) &&
+                Files.exists(path.resolve(LOCK_FILE));
+    }
+
+    private static void deleteIfAbandoned(Path instance) {
+        try (FileChannel channel = FileChannel.open(instance.resolve(LOCK_FILE), StandardOpenOption.WRITE)) {
+            FileLock instanceLock = channel.tryLock();
+            if (instanceLock == null)
+                return;
+            deleteContents(instance);
+        } catch (OverlappingFileLockException e) {
+            // Locked by an instance in this process
+            return;
+        } catch (IOException e) {
+            logger.warn("Cached responses in {} not deleted: {}", instance, e.getMessage());
+            return;
+        }
+        delete(instance.resolve(LOCK_FILE));
+        delete(instance);
+    }
+
+    /**
+     * All but the lock file, which is deleted once released.
+     */
+    private static void deleteContents(Path instance) throws IOException {
+        try (Stream<Path> files = Files.list(instance)) {
+            files.filter(file -> !file.getFileName().toString().equals(LOCK_FILE)).forEach(MappedFileCache::delete);
+        }
+    }
+
+    /**
+     * Deletes the directory of this instance. The mappings of the segments are not released, as
+     * they might still be read.
+     */
+    public synchronized void close() {
+        segments.clear();
+        try {
+            deleteContents(directory);
+            lock.close();
+        } catch (IOException e) {
+            logger.warn("Cached responses in {} not deleted: {}", directory, e.getMessage());
+            return;
+        }
+        delete(directory.resolve(LOCK_FILE));
+        delete(directory);
+    }
+
+    /**
+     * Where the files to be stored should be created, so storing them is just a rename. It is
+     * only used by this instance.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The mapped payload, or null if there is none or it has expired. It stays readable even if
+     * the segment is evicted meanwhile, until the lease is closed.
+     */
+    public Lease get(String datasetId, long generation, String key) {
+        Lease lease = null;
+        synchronized (this) {
+            DatasetCache.Key entryKey = new DatasetCache.Key(datasetId, generation, key);
+            Segment segment = segments.get(entryKey);
+            if (segment != null && segment.expiry <= clock.getAsLong()) {
+                remove(entryKey);
+            } else if (segment != null) {
+                segment.readers++;
+                lease = new Lease(segment);
+            }
+        }
+        getStats(datasetId).record(lease != null);
+        return lease;
+    }
+
+    /**
+     * Moves the file into the cache as the payload for the key. The file is deleted if it does
+     * not fit.
+     */
+    public void put(String datasetId, long generation, String key, Path file) throws IOException {
+        long size = Files.size(file);
+        if (size > maxBytes || size > Integer.MAX_VALUE || ttl <= 0) {
+            delete(file);
+            return;
+        }
+        Path segmentFile = Files.createTempFile(directory, "segment", ".seg");
+        Files.move(file, segmentFile, StandardCopyOption.ATOMIC_MOVE);
+        MappedByteBuffer payload;
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            payload = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            delete(segmentFile);
+            throw e;
+        }
+        DatasetCache.Key entryKey = new DatasetCache.Key(datasetId, generation, key);
+        synchronized (this) {
+            remove(entryKey);
+            segments.put(entryKey, new Segment(segmentFile, payload, size, clock.getAsLong() + ttl));
+            totalBytes += size;
+            for (Iterator<Segment> eldest = segments.values().iterator(); totalBytes > maxBytes && eldest.hasNext(); ) {
+                Segment segment = eldest.next();
+                eldest.remove();
+                discard(segment);
+            }
+        }
+    }
+
+    public synchronized void evict(String datasetId) {
+        for (Iterator<Map.Entry<DatasetCache.Key, Segment>> entries = segments.entrySet().iterator();
+             entries.hasNext(); ) {
+            Map.Entry<DatasetCache.Key, Segment> entry = entries.next();
+            if (entry.getKey().datasetId.equals(datasetId)) {
+                entries.remove();
+                discard(entry.getValue());
+            }
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public DatasetCache.Stats getStats(String datasetId) {
+        return stats.computeIfAbsent(datasetId, id -> new DatasetCache.Stats());
+    }
+
+    private void remove(DatasetCache.Key entryKey) {
+        Segment segment = segments.remove(entryKey);
+        if (segment != null)
+            discard(segment);
+    }
+
+    /**
+     * Mappings of deleted files remain valid, so readers still writing them are not affected.
+     */
+    private void discard(Segment segment) {
+        segment.evicted = true;
+        delete(segment.file);
+        if (segment.readers == 0)
+            unmap(segment);
+    }
+
+    private synchronized void release(Segment segment) {
+        if (--segment.readers == 0 && segment.evicted)
+            unmap(segment);
+    }
+
+    private void unmap(Segment segment) {
+        totalBytes -= segment.size;
+        if (UNMAP == null)
+            return;
+        try {
+            UNMAP.invokeExact((ByteBuffer) segment.payload);
+        } catch (Throwable e) {
+            logger.warn("Cached response {} not unmapped: {}", segment.file, e.getMessage());
+        }
+    }
+
+    /**
+     * Buffers are otherwise unmapped when garbage collected, which could take long for the large
+     * ones, as they barely take any heap.
+     */
+    private static MethodHandle unmapHandle() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafe = unsafeClass.getDeclaredField("theUnsafe");
+            unsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(unsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Evicted responses will be unmapped when garbage collected: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Cached response {} not deleted: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * A reader of a cached payload, which must not be used once closed.
+     */
+    public final class Lease implements Closeable {
+        private final Segment segment;
+        private boolean closed;
+
+        private Lease(Segment segment) {
+            this.segment = segment;
+        }
+
+        public ByteBuffer getPayload() {
+            return segment.payload.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            release(segment);
+        }
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final MappedByteBuffer payload;
+        private final long size;
+        private final long expiry;
+        private int readers;
+        private boolean evicted;
+
+        Segment(Path file, MappedByteBuffer payload, long size, long expiry) {
+            this.file = file;
+            this.payload = payload;
+            this.size = size;
+            this.expiry = expiry;
+        }
+    }
+}
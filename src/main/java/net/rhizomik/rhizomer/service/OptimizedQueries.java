@@ -3,10 +3,8 @@ package net.rhizomik.rhizomer.service;
 import net.rhizomik.rhizomer.model.SPARQLEndPoint;
 import org.apache.jena.query.ParameterizedSparqlString;
 import org.apache.jena.query.Query;
-import org.apache.jena.query.QueryFactory;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Service;
-import org.springframework.util.MultiValueMap;
 
 /**
  * Created by http://rhizomik.net/~roberto/
@@ -14,10 +12,7 @@ import org.springframework.util.MultiValueMap;
 @Primary
 @Service
 public class OptimizedQueries implements Queries {
-
-    @Override
-    public Query getQueryClasses() {
-        return QueryFactory.create(prefixes +
+    private static final QueryTemplate classes = new QueryTemplate(prefixes +
             "SELECT ?class ?n (GROUP_CONCAT(?langLabel; SEPARATOR = \" || \") AS ?label) \n" +
             "WHERE { \n" +
             "\t { SELECT ?class (COUNT(DISTINCT ?instance) as ?n) \n" +
@@ -26,12 +21,7 @@ public class OptimizedQueries implements Queries {
             "\t\t } GROUP BY ?class } \n" +
             "\t OPTIONAL { GRAPH ?g { ?class rdfs:label ?l } BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
             "} GROUP BY ?class ?n");
-    }
-
-    @Override
-    public Query getQueryClassFacets(String classUri) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
+    private static final QueryTemplate classFacets = new QueryTemplate(prefixes +
             "SELECT ?property ?uses ?values ?allLiteral ?allBlank " +
             "       (GROUP_CONCAT(DISTINCT(?langLabel) ; separator=' || ') AS ?label) \n" +
             "WHERE { \n" +
@@ -46,17 +36,23 @@ public class OptimizedQueries implements Queries {
             "\t } \n" +
             "\t OPTIONAL { GRAPH ?g { ?property rdfs:label ?l } BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
             "} GROUP BY ?property ?uses ?values ?allLiteral ?allBlank");
-        pQuery.setIri("class", classUri);
-        return pQuery.asQuery();
+
+    @Override
+    public Query getQueryClasses() {
+        return classes.bind();
+    }
+
+    @Override
+    public Query getQueryClassFacets(String classUri) {
+        return classFacets.bind("class", classUri);
     }
 
     @Override
     public Query getQueryFacetRangeValues(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters, boolean isLiteral, int limit, int offset, boolean ordered) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
-            "SELECT ?value ?count (GROUP_CONCAT(?langLabel; SEPARATOR = \" || \") AS ?label) \n" +
+            Filters filters, boolean isLiteral, int limit, int offset, boolean ordered) {
+        Query query = QueryTemplate.of(prefixes +
+            "SELECT ?value ?count ?resource \n" +
             "\t WHERE { \n" +
             "\t { SELECT ?resource (COUNT(?resource) AS ?count) \n" +
             "\t\t WHERE { \n" +
@@ -69,12 +65,7 @@ public class OptimizedQueries implements Queries {
             "\t\t ?instance ?property ?resource . \n" +
             "\t\t } GROUP BY ?resource } \n" +
             "\t BIND(str(?resource) AS ?value) \n" +
-            "\t OPTIONAL { ?resource rdfs:label ?l BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
-            "\t OPTIONAL { GRAPH ?g { ?resource rdfs:label ?l } BIND (CONCAT(?l, IF(LANG(?l),\"@\",\"\"), LANG(?l)) AS ?langLabel) } \n" +
-            "} GROUP BY ?value ?count");
-        pQuery.setIri("class", classUri);
-        pQuery.setIri("property", facetUri);
-        Query query = pQuery.asQuery();
+            "}").bind("class", classUri, "property", facetUri);
         if (limit > 0) query.setLimit(limit);
         if (offset > 0) query.setOffset(offset);
         if (ordered) query.addOrderBy("count", -1);
@@ -84,7 +75,7 @@ public class OptimizedQueries implements Queries {
     @Override
     public Query getFacetRangeValueLabelAndCount(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri, String value,
-            MultiValueMap<String, String> filters, boolean isLiteral) {
+            Filters filters, boolean isLiteral) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
                 "SELECT ?value ?count (GROUP_CONCAT(?langLabel; SEPARATOR = \" || \") AS ?label) \n" +
@@ -114,7 +105,7 @@ public class OptimizedQueries implements Queries {
     @Override
     public Query getQueryFacetRangeValuesContaining(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters, boolean isLiteral, String containing, int top, String lang) {
+            Filters filters, boolean isLiteral, String containing, int top, String lang) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
                 "SELECT DISTINCT ?value ?label \n" +
@@ -143,7 +134,7 @@ public class OptimizedQueries implements Queries {
     @Override
     public Query getQueryFacetRangeMinMax(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters) {
+            Filters filters) {
         throw new UnsupportedOperationException("Optimized query for facet MIN and MAX not available");
     }
 }
@@ -1,37 +1,80 @@
 package net.rhizomik.rhizomer.service;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.atlas.lib.Pair;
 import org.apache.jena.riot.system.PrefixMapStd;
-import org.apache.jena.sparql.vocabulary.FOAF;
-import org.apache.jena.vocabulary.OWL;
-import org.apache.jena.vocabulary.RDF;
-import org.apache.jena.vocabulary.RDFS;
-import org.apache.jena.vocabulary.XSD;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 /**
  * Created by http://rhizomik.net/~roberto/
+ *
+ * Prefixes not added explicitly are taken from a snapshot of http://prefix.cc bundled with the
+ * application or generated from the namespace, so lookups never wait for the network. Prefixes
+ * learned this way are notified to the listener, if any, so they can be persisted. Optionally,
+ * the full list of http://prefix.cc is loaded in the background and the prefixes or namespaces
+ * not in it are looked up there, also in the background. Meanwhile, namespaces to abbreviate get
+ * a generated prefix, which is kept as CURIEs with it may already be persisted or handed out, so
+ * the prefix http://prefix.cc has for them, if any, just expands as an alias.
  */
-@Service
 public class PrefixCCMap extends PrefixMapStd {
     private static final Logger logger = LoggerFactory.getLogger(PrefixCCMap.class);
+    private static final String SNAPSHOT = "/prefixes.txt";
+    private static final String REMOTE_SNAPSHOT = "http://prefix.cc/popular/all.file.txt";
+
+    private static final Map<String, String> snapshotNamespaces = new ConcurrentHashMap<>();
+    private static final Map<String, String> snapshotPrefixes = new ConcurrentHashMap<>();
+
+    static {
+        loadSnapshot();
+    }
+
+    private BiConsumer<String, String> learnedListener;
+    private Executor remoteLookups;
+    private final Set<String> pendingRemoteLookups = ConcurrentHashMap.newKeySet();
+    private final Set<String> pendingReverseLookups = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> aliases = new ConcurrentHashMap<>();
+
+    public void setLearnedListener(BiConsumer<String, String> learnedListener) {
+        this.learnedListener = learnedListener;
+    }
+
+    /**
+     * Enables looking up in http://prefix.cc, using the executor, the prefixes to expand and the
+     * namespaces to abbreviate that are not known, starting with loading all its prefixes.
+     * Disabled if null.
+     */
+    public void setRemoteLookups(Executor remoteLookups) {
+        this.remoteLookups = remoteLookups;
+        if (remoteLookups != null)
+            remoteLookups.execute(this::loadRemoteSnapshot);
+    }
 
     @Override
-    public boolean containsPrefix(String prefix) {
-        if (super.containsPrefix(prefix))
+    public synchronized boolean containsPrefix(String prefix) {
+        if (super.containsPrefix(prefix) || aliases.containsKey(prefix))
             return true;
 
         String prefixccUri = prefixCCNamespaceLookup(prefix);
         if (prefixccUri != null) {
-            this.add(prefix, prefixccUri);
+            learn(prefix, prefixccUri);
             return true;
         }
         else
@@ -39,16 +82,21 @@ public class PrefixCCMap extends PrefixMapStd {
     }
 
     @Override
-    public Pair<String, String> abbrev(String uriStr) {
+    public synchronized Pair<String, String> abbrev(String uriStr) {
         Pair<String, String> curiePair = super.abbrev(uriStr);
         if (curiePair == null) {
             Resource uri = ResourceFactory.createResource(uriStr);
             String prefixcc = prefixCCReverseLookup(uri.getNameSpace());
-            if (prefixcc != null)
-                this.add(prefixcc, uri.getNameSpace());
-            else
-                try { this.add(generatePrefix(uriStr), uri.getNameSpace()); }
+            if (prefixcc != null && !super.containsPrefix(prefixcc))
+                learn(prefixcc, uri.getNameSpace());
+            else {
+                String generated;
+                try { generated = generatePrefix(uriStr); }
                 catch (URISyntaxException e) { return null; }
+                learn(generated, uri.getNameSpace());
+                if (prefixcc == null)
+                    lookupReverseRemotely(uri.getNameSpace());
+            }
             curiePair = super.abbrev(uriStr);
         }
         return curiePair;
@@ -63,22 +111,39 @@ public class PrefixCCMap extends PrefixMapStd {
     }
 
     @Override
-    public String expand(String prefixedName) {
+    public synchronized String expand(String prefixedName) {
         String uriStr = super.expand(prefixedName);
         if (uriStr == null) {
             String[] curiePair = prefixedName.split(":");
             if (curiePair.length == 2) {
                 String prefix = curiePair[0];
+                String alias = aliases.get(prefix);
+                if (alias != null)
+                    return alias + curiePair[1];
                 String namespace = prefixCCNamespaceLookup(prefix);
                 if (namespace != null) {
-                    super.add(prefix, namespace);
+                    learn(prefix, namespace);
                     uriStr = super.expand(prefixedName);
-                }
+                } else
+                    lookupRemotely(prefix);
             }
         }
         return uriStr;
     }
 
+    /**
+     * Adds a prefix already known, like a persisted one, without notifying it as learned.
+     */
+    public synchronized void load(String prefix, String namespace) {
+        super.add(prefix, namespace);
+    }
+
+    private void learn(String prefix, String namespace) {
+        super.add(prefix, namespace);
+        if (learnedListener != null)
+            learnedListener.accept(prefix, namespace);
+    }
+
     protected String generatePrefix(String uriStr) throws URISyntaxException {
         java.net.URI uri = new java.net.URI(uriStr);
         String[] candidateParts;
@@ -107,50 +172,125 @@ public class PrefixCCMap extends PrefixMapStd {
     }
 
     protected String prefixCCNamespaceLookup(String prefix) {
-        switch (prefix) {
-            case "rdf": return RDF.getURI();
-            case "rdfs": return RDFS.getURI();
-            case "owl": return OWL.getURI();
-            case "xsd": return XSD.getURI();
-            case "foaf": return FOAF.getURI();
-            default: {
-                RestTemplate restTemplate = new RestTemplate();
-                try {
-                    String response = restTemplate.getForObject("http://prefix.cc/{prefix}.file.{format}", String.class, prefix, "txt");
-                    String[] pair = response.split("\\s");
-                    if (pair.length == 2)
-                        return pair[1];
-                } catch (RestClientException e) {
-                    logger.info("Prefix {} not found in http://prefix.cc \n", prefix);
-                }
-            }
-        }
-        return null;
+        return snapshotNamespaces.get(prefix);
     }
 
     protected String prefixCCReverseLookup(String uri) {
-        switch (uri) {
-            case "http://www.w3.org/1999/02/22-rdf-syntax-ns#": return "rdf";
-            case "http://www.w3.org/2000/01/rdf-schema#": return "rdfs";
-            case "http://www.w3.org/2002/07/owl#": return "owl";
-            case "http://www.w3.org/2001/XMLSchema#": return "xsd";
-            case "http://xmlns.com/foaf/0.1/": return "foaf";
-            case "http://purl.org/net/schemas/space/": return "space";
-            default: {
-                RestTemplate restTemplate = new RestTemplate();
-                try {
-                    String response = restTemplate.getForObject("http://prefix.cc/reverse?uri={uri}&format={format}", String.class, uri, "txt");
-                    String[] pair = response.split("\\s");
-                    if (pair.length == 2)
+        return snapshotPrefixes.get(uri);
+    }
+
+    private void lookupRemotely(String prefix) {
+        if (remoteLookups == null || !pendingRemoteLookups.add(prefix))
+            return;
+        CompletableFuture.supplyAsync(() -> remoteNamespaceLookup(prefix), remoteLookups)
+            .whenComplete((namespace, e) -> {
+                pendingRemoteLookups.remove(prefix);
+                if (namespace != null)
+                    synchronized (this) {
+                        if (!super.containsPrefix(prefix))
+                            learn(prefix, namespace);
+                    }
+            });
+    }
+
+    /**
+     * Adds the prefix of http://prefix.cc for a namespace that got a generated one, if it has one
+     * not in use, as an alias that expands but is not used to abbreviate, so the namespace keeps
+     * the CURIEs already handed out with the generated prefix. Aliases are not notified.
+     */
+    private void lookupReverseRemotely(String namespace) {
+        if (remoteLookups == null || !pendingReverseLookups.add(namespace))
+            return;
+        CompletableFuture.supplyAsync(() -> remoteReverseLookup(namespace), remoteLookups)
+            .whenComplete((prefix, e) -> {
+                pendingReverseLookups.remove(namespace);
+                if (prefix != null)
+                    synchronized (this) {
+                        if (!containsPrefix(prefix))
+                            aliases.put(prefix, namespace);
+                    }
+            });
+    }
+
+    protected String remoteReverseLookup(String namespace) {
+        RestTemplate restTemplate = new RestTemplate();
+        try {
+            String response = restTemplate.getForObject("http://prefix.cc/reverse?uri={uri}&format={format}",
+                    String.class, namespace, "txt");
+            if (response != null)
+                for (String line : response.split("\\R")) {
+                    String[] pair = line.trim().split("\\s+");
+                    if (pair.length == 2 && pair[1].equals(namespace))
                         return pair[0];
-                } catch (RestClientException e) {
-                    logger.info("Prefix for URI {} not found in http://prefix.cc", uri);
                 }
-            }
+        } catch (RestClientException e) {
+            logger.info("Namespace {} not found in http://prefix.cc", namespace);
         }
         return null;
     }
 
+    protected String remoteNamespaceLookup(String prefix) {
+        RestTemplate restTemplate = new RestTemplate();
+        try {
+            String response = restTemplate.getForObject("http://prefix.cc/{prefix}.file.{format}", String.class, prefix, "txt");
+            String[] pair = response.split("\\s");
+            if (pair.length == 2)
+                return pair[1];
+        } catch (RestClientException e) {
+            logger.info("Prefix {} not found in http://prefix.cc \n", prefix);
+        }
+        return null;
+    }
+
+    private static void loadSnapshot() {
+        try (InputStream in = PrefixCCMap.class.getResourceAsStream(SNAPSHOT)) {
+            if (in == null) {
+                logger.warn("Prefixes snapshot {} not found", SNAPSHOT);
+                return;
+            }
+            loadSnapshot(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            logger.warn("Prefixes snapshot {} not loaded: {}", SNAPSHOT, e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the prefixes of http://prefix.cc missing from the bundled snapshot, which keeps the
+     * prefixes it has.
+     */
+    private void loadRemoteSnapshot() {
+        String snapshot = remoteSnapshot();
+        if (snapshot == null)
+            return;
+        int before = snapshotNamespaces.size();
+        try {
+            loadSnapshot(new BufferedReader(new StringReader(snapshot)));
+        } catch (IOException e) {
+            logger.info("Prefixes from {} not loaded: {}", REMOTE_SNAPSHOT, e.getMessage());
+        }
+        logger.info("Loaded {} more prefixes from {}", snapshotNamespaces.size() - before, REMOTE_SNAPSHOT);
+    }
+
+    protected String remoteSnapshot() {
+        try {
+            return new RestTemplate().getForObject(REMOTE_SNAPSHOT, String.class);
+        } catch (RestClientException e) {
+            logger.info("Prefixes from {} not loaded: {}", REMOTE_SNAPSHOT, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void loadSnapshot(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] pair = line.trim().split("\\s+");
+            if (pair.length != 2 || pair[0].startsWith("#"))
+                continue;
+            snapshotNamespaces.putIfAbsent(pair[0], pair[1]);
+            snapshotPrefixes.putIfAbsent(pair[1], pair[0]);
+        }
+    }
+
     public boolean isCurie(String k) {
         return Pattern.matches("[\\w_][\\w\\d\\.\\-_]+:[\\w\\d\\.\\-_+#']+", k);
     }
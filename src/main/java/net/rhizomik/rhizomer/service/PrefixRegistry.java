@@ -0,0 +1,54 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.NamespacePrefix;
+import net.rhizomik.rhizomer.repository.NamespacePrefixRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads into the {@link PrefixCCMap} the prefixes learned in previous runs and persists the
+ * new ones from a background thread, so generating a curie never waits for the database.
+ */
+@Service
+public class PrefixRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(PrefixRegistry.class);
+
+    @Value("${rhizomer.prefixes.remote-lookup:false}")
+    private boolean remoteLookup = false;
+
+    @Autowired private PrefixCCMap prefixCCMap;
+    @Autowired private NamespacePrefixRepository prefixRepository;
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new SPARQLClientRegistry.ThreadFactoryNamed("prefixes"));
+
+    @PostConstruct
+    public void init() {
+        prefixRepository.findAll().forEach(learned ->
+                prefixCCMap.load(learned.getPrefix(), learned.getNamespace()));
+        prefixCCMap.setLearnedListener((prefix, namespace) -> executor.execute(() -> {
+            try {
+                prefixRepository.save(new NamespacePrefix(prefix, namespace));
+            } catch (RuntimeException e) {
+                logger.warn("Prefix {} for {} not persisted: {}", prefix, namespace, e.getMessage());
+            }
+        }));
+        if (remoteLookup)
+            prefixCCMap.setRemoteLookups(executor);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefixCCMap.setLearnedListener(null);
+        prefixCCMap.setRemoteLookups(null);
+        executor.shutdown();
+    }
+}
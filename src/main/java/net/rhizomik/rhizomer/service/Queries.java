@@ -1,9 +1,8 @@
 package net.rhizomik.rhizomer.service;
 
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import net.rhizomik.rhizomer.model.SPARQLEndPoint;
@@ -13,7 +12,6 @@ import org.apache.jena.query.QueryFactory;
 import org.apache.jena.update.UpdateFactory;
 import org.apache.jena.update.UpdateRequest;
 import org.springframework.stereotype.Service;
-import org.springframework.util.MultiValueMap;
 
 import static org.apache.jena.rdf.model.impl.RDFDefaultErrorHandler.logger;
 
@@ -34,22 +32,19 @@ public interface Queries {
 
     default
     Query getQueryClassInstancesCount(
-            SPARQLEndPoint.ServerType serverType, String classUri, MultiValueMap<String, String> filters) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
+            SPARQLEndPoint.ServerType serverType, String classUri, Filters filters) {
+        Query query = QueryTemplate.of(prefixes +
                 "SELECT (COUNT(DISTINCT ?instance) AS ?n) \n" +
                         "WHERE { \n" +
                         "\t ?instance a ?class . \n" +
                         getFilterPatterns(serverType, filters) +
-                        "}");
-        pQuery.setIri("class", classUri);
-        Query query = pQuery.asQuery();
+                        "}").bind("class", classUri);
         return query;
     }
 
     default
     Query getQueryClassDescriptions(SPARQLEndPoint.ServerType serverType, String classUri,
-                                    MultiValueMap<String, String> filters, int limit, int offset) {
+                                    Filters filters, int limit, int offset) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
             "DESCRIBE ?instance \n" +
@@ -69,7 +64,7 @@ public interface Queries {
 
     default
     Query getQueryClassInstances(SPARQLEndPoint.ServerType serverType, String classUri,
-                                 MultiValueMap<String, String> filters, int limit, int offset) {
+                                 Filters filters, int limit, int offset) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
 
         pQuery.setCommandText(prefixes +
@@ -98,7 +93,7 @@ public interface Queries {
     }
     default
     Query getQueryClassInstancesFromString(SPARQLEndPoint.ServerType serverType, String classUri,
-                                 MultiValueMap<String, String> filters, int limit, int offset, String line) {
+                                 Filters filters, int limit, int offset, String line) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         logger.info("LINE {}", line);
         pQuery.setCommandText(prefixes +  "CONSTRUCT { \n" +
@@ -175,12 +170,16 @@ public interface Queries {
         return query;
     }
 
+    /**
+     * Resources linked from a page of the instances of a class, whose labels are then resolved
+     * with {@link #getQueryResourcesLabels(Collection)}.
+     */
     default
-    Query getQueryClassInstancesLabels(SPARQLEndPoint.ServerType serverType, String classUri,
-                                       MultiValueMap<String, String> filters, int limit, int offset) {
+    Query getQueryClassInstancesLinkedResources(SPARQLEndPoint.ServerType serverType, String classUri,
+                                                Filters filters, int limit, int offset) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
-            "CONSTRUCT { ?resource rdfs:label ?label } \n" +
+            "SELECT DISTINCT ?resource \n" +
             "WHERE { \n" +
             "\t { SELECT DISTINCT ?instance \n" +
             "\t\t WHERE { \n" +
@@ -191,76 +190,92 @@ public interface Queries {
             "\t } \n" +
             "\t { \n" +
             "\t\t ?instance ?property ?resource . \n" +
-            "\t\t ?resource rdfs:label ?label . \n" +
             " } UNION { \n" +
             "\t\t ?instance ?propertyanon ?anon . FILTER(isBlank(?anon)) \n" +
             "\t\t ?anon ?property ?resource .\n" +
-            "\t\t ?resource rdfs:label ?label . \n" +
             " } UNION { \n" +
             "\t\t ?instance ?resource ?object . \n" +
-            "\t\t GRAPH ?g { ?resource rdfs:label ?label } \n" +
-            " } UNION { \n" +
-            "\t\t ?instance a ?resource . \n" +
-            "\t\t GRAPH ?g { ?resource rdfs:label ?label } \n" +
-            "} }");
+            " } \n" +
+            "\t FILTER(isIRI(?resource)) \n" +
+            "}");
         pQuery.setIri("class", classUri);
         Query query = pQuery.asQuery();
         return query;
     }
 
+    /**
+     * Labels of the given resources, in the default graph or in any of the named ones, one per row.
+     */
+    default Query getQueryResourcesLabels(Collection<String> resourceUris) {
+        return QueryFactory.create(prefixes +
+            "SELECT ?resource ?label \n" +
+            "WHERE { \n" +
+            "\t VALUES ?resource { " + resourceUris.stream().map(uri -> "<" + uri + ">")
+                    .collect(Collectors.joining(" ")) + " } \n" +
+            "\t { ?resource rdfs:label ?label } \n" +
+            "\t UNION { GRAPH ?g { ?resource rdfs:label ?label } } \n" +
+            "}");
+    }
+
     Query getQueryClassFacets(String classUri);
 
     Query getQueryFacetRangeValues(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters, boolean isLiteral, int limit, int offset, boolean ordered);
+            Filters filters, boolean isLiteral, int limit, int offset, boolean ordered);
+
+    /**
+     * Rows fetched for each facet in {@link #getQueryFacetsValues}, as a multiple of its limit.
+     */
+    int FACETS_VALUES_OVERFETCH = 4;
+
+    /**
+     * The top values of several facets of a class and their counts, in one query that evaluates
+     * the filtered instances of the class once for all the facets. SPARQL cannot limit the rows of
+     * each group, so values are sorted by decreasing count and the whole query limited to a few
+     * times the limit for each facet, and the top ones of each facet are those read first. A facet
+     * whose values are all less used than those of the others may then get fewer of them.
+     */
+    default
+    Query getQueryFacetsValues(SPARQLEndPoint.ServerType serverType, String classUri, List<String> facetUris,
+                               Filters filters, int limit) {
+        Query query = QueryTemplate.of(prefixes +
+            "SELECT ?property ?value ?count ?resource \n" +
+            "\t WHERE { \n" +
+            "\t { SELECT ?property ?resource (COUNT(?resource) AS ?count) \n" +
+            "\t\t WHERE { \n" +
+            "\t\t { SELECT DISTINCT ?instance " +
+            "\t\t\t WHERE { \n" +
+            "\t\t\t\t ?instance a ?class . \n" +
+            getFilterPatterns(serverType, filters) +
+            "\t\t\t } \n" +
+            "\t\t } \n" +
+            "\t\t VALUES ?property { " + facetUris.stream().map(uri -> "<" + uri + ">")
+                    .collect(Collectors.joining(" ")) + " } \n" +
+            "\t\t ?instance ?property ?resource . \n" +
+            "\t\t } GROUP BY ?property ?resource } \n" +
+            "\t BIND(str(?resource) AS ?value) \n" +
+            "}").bind("class", classUri);
+        query.addOrderBy("count", -1);
+        query.setLimit((long) facetUris.size() * limit * FACETS_VALUES_OVERFETCH);
+        return query;
+    }
 
     Query getFacetRangeValueLabelAndCount(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri, String value,
-            MultiValueMap<String, String> filters, boolean isLiteral);
+            Filters filters, boolean isLiteral);
 
     Query getQueryFacetRangeValuesContaining(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters, boolean isLiteral, String containing, int top, String lang);
+            Filters filters, boolean isLiteral, String containing, int top, String lang);
 
     Query getQueryFacetRangeMinMax(
             SPARQLEndPoint.ServerType serverType, String classUri, String facetUri, String rangeUri,
-            MultiValueMap<String, String> filters);
+            Filters filters);
 
     default Query getQueryDescribeResource(URI resourceUri) {
         return QueryFactory.create("DESCRIBE <" + resourceUri + ">");
     }
 
-    default Query getQueryDescribeResourceLabels(URI resourceUri) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
-            "CONSTRUCT { ?resource rdfs:label ?label } \n" +
-            "WHERE { { \n" +
-            "\t ?instance ?property ?resource . \n" +
-            "\t ?resource rdfs:label ?label . \n" +
-            " } UNION { \n" +
-            "\t ?instance ?propertyanon ?anon . FILTER(isBlank(?anon)) \n" +
-            "\t ?anon ?property ?resource .\n" +
-            "\t ?resource rdfs:label ?label . \n" +
-            " } UNION { \n" +
-            "\t ?instance ?propertyanon ?anon . FILTER(isBlank(?anon)) \n" +
-            "\t ?anon ?resource ?object .\n" +
-            "\t GRAPH ?g { ?resource rdfs:label ?label } \n" +
-            " } UNION { \n" +
-            "\t ?instance ?propertyanon ?anon . FILTER(isBlank(?anon)) \n" +
-            "\t ?anon a ?resource .\n" +
-            "\t GRAPH ?g { ?resource rdfs:label ?label } \n" +
-            " } UNION { \n" +
-            "\t ?instance ?resource ?object . \n" +
-            "\t GRAPH ?g { ?resource rdfs:label ?label } \n" +
-            " } UNION { \n" +
-            "\t ?instance a ?resource . \n" +
-            "\t GRAPH ?g { ?resource rdfs:label ?label } \n" +
-            "} }");
-        pQuery.setIri("instance", resourceUri.toString());
-        Query query = pQuery.asQuery();
-        return query;
-    }
-
     default Query getQueryResourceIncomingFacets(URI resourceUri) {
         ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
         pQuery.setCommandText(prefixes +
@@ -385,12 +400,9 @@ public interface Queries {
     }
 
     default Query getQueryCountType(String type) {
-        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
-        pQuery.setCommandText(prefixes +
+        return QueryTemplate.of(prefixes +
             "SELECT (COUNT(DISTINCT(?s)) AS ?n) \n" +
-            "WHERE { ?s a ?type }");
-        pQuery.setIri("type", type);
-        return pQuery.asQuery();
+            "WHERE { ?s a ?type }").bind("type", type);
     }
 
     default String addSamples(int classCount, int sampleSize, double coverage) {
@@ -405,68 +417,47 @@ public interface Queries {
         return selectsUnion;
     }
 
-    default String getFilterPatterns(SPARQLEndPoint.ServerType serverType, MultiValueMap<String, String> filters) {
+    default String getFilterPatterns(SPARQLEndPoint.ServerType serverType, Filters filters) {
         StringBuilder filtersPatterns = new StringBuilder();
-        filters.forEach((property_range, values) -> {
-            String property = property_range.split(" ")[0];
-            String range = property_range.indexOf(" ") > 0 ? property_range.split(" ")[1] : null;
-            if (values.size() > 1) {
-                filtersPatterns.append(convertOrFilter(serverType, property, range, values));
-            } else if (values.size() == 1 && values.get(0).startsWith("AND(")) {
-                filtersPatterns.append(convertAndFilter(serverType, property, range, patternValuesToList(values.get(0))));
-            } else if (values.size() == 1 && values.get(0).startsWith("OR(")) {
-                filtersPatterns.append(convertOrFilter(serverType, property, range, patternValuesToList(values.get(0))));
-            } else {
-                filtersPatterns.append(convertAndFilter(serverType, property, range, patternValuesToList(values.get(0))));
-            }
-        });
+        for (Filters.Filter filter : filters)
+            filtersPatterns.append(filter.isOr() ? convertOrFilter(serverType, filter) : convertAndFilter(serverType, filter));
         return filtersPatterns.toString();
     }
 
-    default String convertAndFilter(SPARQLEndPoint.ServerType serverType, String property,
-                                    String range, List<String> values) {
+    default String convertAndFilter(SPARQLEndPoint.ServerType serverType, Filters.Filter filter) {
         StringBuilder pattern = new StringBuilder();
-        values.forEach(value -> {
-            String propertyValueVar = Integer.toUnsignedString(property.hashCode() + value.hashCode());
-            if (property.equalsIgnoreCase("urn:rhz:contains")) {
-                pattern.append(containingText(serverType, value, propertyValueVar));
-            } else {
-                boolean negation = false;
-                if (value.startsWith("!")) {
-                    negation = true;
-                    value = value.substring(1);
-                    pattern.append("FILTER NOT EXISTS { ");
-                }
-                pattern.append("\t ?instance <" + property + "> ?v" + propertyValueVar + " . \n");
-                if (!value.equals("null")) {
-                    String valueString = value;
-                    if (valueString.startsWith("<") && valueString.endsWith(">")) {
-                        valueString = valueString.substring(1, valueString.length() - 1);
-                    }
-                    pattern.append("FILTER ( STR(?v" + propertyValueVar + ") = " + valueString + " ) \n");
-                    if (negation)
-                        pattern.append(" }");
-                }
+        List<Filters.Term> values = filter.getValues();
+        for (int i = 0; i < values.size(); i++) {
+            Filters.Term value = values.get(i);
+            String propertyValueVar = filter.variable(i);
+            if (filter.isContains()) {
+                pattern.append(containingText(serverType, value.toString(), propertyValueVar));
+                continue;
             }
-        });
+            if (value.isNegated())
+                pattern.append("FILTER NOT EXISTS { ");
+            pattern.append("\t ?instance <" + filter.getProperty() + "> ?" + propertyValueVar + " . \n");
+            pattern.append(convertValueFilter(filter, value, propertyValueVar));
+            if (value.isNegated())
+                pattern.append(" }");
+        }
         return pattern.toString();
     }
 
-    default String convertOrFilter(SPARQLEndPoint.ServerType serverType, String property,
-                                                  String range, List<String> values) {
+    default String convertOrFilter(SPARQLEndPoint.ServerType serverType, Filters.Filter filter) {
         StringBuilder pattern = new StringBuilder();
-        if (property.equalsIgnoreCase("urn:rhz:contains")) {
-            values.forEach(value -> {
-                String propertyValueVar = Integer.toUnsignedString(property.hashCode() + value.hashCode());
-                pattern.append(containingText(serverType, value, propertyValueVar));
-            });
+        List<Filters.Term> values = filter.getValues();
+        if (filter.isContains()) {
+            for (int i = 0; i < values.size(); i++)
+                pattern.append(containingText(serverType, values.get(i).toString(), filter.variable(i)));
+        } else if (values.stream().anyMatch(Filters.Term::isNegated)) {
+            pattern.append(convertOrFilterWithNegations(filter));
         } else {
-            String propertyVar = Integer.toUnsignedString(property.hashCode());
-            pattern.append("\t ?instance <" + property + "> ?v" + propertyVar + " . \n");
-            if (values.size() > 0 && !values.get(0).equals("null")) {
-                pattern.append("FILTER ( STR(?v" + propertyVar + ") IN (" +
-                        values.stream().map(value -> (value.startsWith("<") && value.endsWith(">")) ?
-                                        "\"" + value.substring(1, value.length() - 1) + "\"" : value)
+            String propertyVar = filter.variable();
+            pattern.append("\t ?instance <" + filter.getProperty() + "> ?" + propertyVar + " . \n");
+            if (!values.isEmpty() && values.stream().noneMatch(Filters.Term::isNull)) {
+                pattern.append("FILTER ( STR(?" + propertyVar + ") IN (" +
+                        values.stream().map(value -> value.isIri() ? "\"" + value.getIri() + "\"" : value.toString())
                                 .collect(Collectors.joining(", "))
                         + ") ) \n");
             }
@@ -474,46 +465,60 @@ public interface Queries {
         return pattern.toString();
     }
 
+    /**
+     * Alternatives including negated values, which the values of a single variable cannot match,
+     * as a disjunction of the patterns of each value, that should not exist for negated ones.
+     */
+    default String convertOrFilterWithNegations(Filters.Filter filter) {
+        StringBuilder pattern = new StringBuilder("FILTER ( ");
+        List<Filters.Term> values = filter.getValues();
+        for (int i = 0; i < values.size(); i++) {
+            Filters.Term value = values.get(i);
+            String propertyValueVar = filter.variable(i);
+            if (i > 0)
+                pattern.append(" || ");
+            pattern.append(value.isNegated() ? "NOT EXISTS { " : "EXISTS { ");
+            pattern.append("\t ?instance <" + filter.getProperty() + "> ?" + propertyValueVar + " . \n");
+            pattern.append(convertValueFilter(filter, value, propertyValueVar));
+            pattern.append(" }");
+        }
+        return pattern.append(" ) \n").toString();
+    }
+
+    /**
+     * The condition on the variable for a value of the filter, none for {@code null}.
+     */
+    default String convertValueFilter(Filters.Filter filter, Filters.Term value, String propertyValueVar) {
+        if (value.isNull())
+            return "";
+        String valueString = value.isIri() ? "\"" + value.getIri() + "\"" : value.getText();
+        return "FILTER ( STR(?" + propertyValueVar + ") = " + valueString + " ) \n";
+    }
+
     default String containingText(SPARQLEndPoint.ServerType serverType, String text) {
         return containingText(serverType, text, "");
     }
 
     default String containingText(SPARQLEndPoint.ServerType serverType, String text, String propValueId) {
         if (serverType == SPARQLEndPoint.ServerType.FUSEKI_LUCENE) {
-            String queryText = text.replaceAll("\"", "").toLowerCase();
+            String queryText = text.replace("\"", "").toLowerCase();
             return  "\t { (?instance [] ?value"+propValueId+") text:query \"\\\"" + queryText + "\\\"\" } \n" +
                     "\t UNION \n" +
                     "\t { ?value"+propValueId+" text:query \"\\\"" + queryText + "\\\"\" } \n" +
                     "\t ?instance a ?class ; ?property"+propValueId+" ?value"+propValueId+" \n";
         } else if (serverType == SPARQLEndPoint.ServerType.VIRTUOSO) {
-            String queryText = text.replaceAll("\"", Matcher.quoteReplacement("\\\"")).toLowerCase();
+            String queryText = text.replace("\"", "\\\"").toLowerCase();
             return  "\t { ?instance a ?class ; ?property"+propValueId+" ?value"+propValueId+" \n" +
                     "\t\t FILTER(bif:contains(?value"+propValueId+", \"'" + queryText + "'\")) } \n" +
                     "\t UNION \n" +
                     "\t { ?instance a ?class ; ?property"+propValueId+" ?value"+propValueId+" . ?value"+propValueId+" rdfs:label ?valueLabel"+propValueId+" \n" +
                     "\t\t FILTER(bif:contains(?valueLabel"+propValueId+", \"'" + queryText + "'\")) } \n";
         } else {
-            String queryText = text.replaceAll("\"", "").toLowerCase();
+            String queryText = text.replace("\"", "").toLowerCase();
             return  "\t ?instance a ?class ; ?property"+propValueId+" ?value"+propValueId+" \n" +
                     "\t OPTIONAL { ?value"+propValueId+" rdfs:label ?valueLabel"+propValueId+" } \n" +
                     "\t FILTER ( ( ISLITERAL(?value"+propValueId+") && CONTAINS(LCASE(STR(?value"+propValueId+")), \""+ queryText + "\") ) || \n" +
                     "\t\t CONTAINS(LCASE(STR(?valueLabel"+propValueId+")), \"" + queryText + "\") ) \n";
         }
     }
-
-    default List<String> patternValuesToList (String values) {
-        if ((values.startsWith("AND(") || values.startsWith("OR(")) && values.endsWith(")")) {
-            values = values.substring(values.indexOf("(") + 1, values.lastIndexOf(")"));
-        }
-        if (values.matches("^!?<[^>]+>(?: !?<[^>]+>)*$")) {
-            Pattern p = Pattern.compile("!?<[^>]+>");
-            Matcher m = p.matcher(values);
-            return m.results().map(match -> match.group()).collect(Collectors.toList());
-        } else if (values.matches("^!?\\\"[^\\\"]+\\\"(?: !?\\\"[^\\\"]+\\\")*$")) {
-            Pattern p = Pattern.compile("!?\\\"[^\\\"]+\\\"");
-            Matcher m = p.matcher(values);
-            return m.results().map(match -> match.group()).collect(Collectors.toList());
-        }
-        return List.of(values);
-    }
 }
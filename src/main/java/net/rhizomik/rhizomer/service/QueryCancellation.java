@@ -0,0 +1,137 @@
+package net.rhizomik.rhizomer.service;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Lets the remote queries sent on behalf of a client request be abandoned once nobody waits for
+ * their result, for instance when the client disconnects. Queries sent from within
+ * {@link #call(Supplier)} register with it and are aborted when it is cancelled.
+ */
+public final class QueryCancellation {
+    private static final QueryCancellation NONE = new QueryCancellation();
+    private static final ThreadLocal<QueryCancellation> current = ThreadLocal.withInitial(() -> NONE);
+
+    private final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private Registration parent;
+
+    public static QueryCancellation current() {
+        return current.get();
+    }
+
+    public <T> T call(Supplier<T> task) {
+        QueryCancellation previous = current.get();
+        current.set(this);
+        try {
+            return task.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void cancel() {
+        if (this == NONE)
+            return;
+        synchronized (this) {
+            if (cancelled)
+                return;
+            cancelled = true;
+        }
+        registrations.forEach(Registration::cancel);
+    }
+
+    /**
+     * A new cancellation that is also cancelled if this one is, until it is released, so part of
+     * the queries sent on behalf of this one can be cancelled on their own.
+     */
+    public QueryCancellation child() {
+        QueryCancellation child = new QueryCancellation();
+        child.parent = register(child::cancel);
+        return child;
+    }
+
+    public void release() {
+        if (parent != null)
+            parent.close();
+    }
+
+    public void checkCancelled() {
+        if (cancelled)
+            throw new CancellationException("Query cancelled");
+    }
+
+    /**
+     * The action is run once if this is cancelled before the returned registration is closed.
+     */
+    public Registration register(Runnable onCancel) {
+        return register(onCancel, null);
+    }
+
+    /**
+     * Interrupts the current thread if this is cancelled before the returned registration is
+     * closed, which aborts any blocking HTTP exchange of the thread. Closing the registration
+     * from the same thread clears the interrupt.
+     */
+    public Registration interruptOnCancel() {
+        Thread thread = Thread.currentThread();
+        return register(thread::interrupt, thread);
+    }
+
+    private Registration register(Runnable onCancel, Thread interrupted) {
+        Registration registration = new Registration(onCancel, interrupted);
+        if (this != NONE) {
+            registrations.add(registration);
+            if (cancelled)
+                registration.cancel();
+        }
+        return registration;
+    }
+
+    /**
+     * The failure of a cancelled query is reported as a {@link CancellationException}, so it is
+     * not taken for a failure of the endpoint.
+     */
+    public RuntimeException failure(RuntimeException e) {
+        if (!cancelled || e instanceof CancellationException)
+            return e;
+        CancellationException cancellation = new CancellationException("Query cancelled");
+        cancellation.initCause(e);
+        return cancellation;
+    }
+
+    public final class Registration implements AutoCloseable {
+        private final Runnable onCancel;
+        private final Thread interrupted;
+        private boolean cancelled;
+        private boolean closed;
+
+        private Registration(Runnable onCancel, Thread interrupted) {
+            this.onCancel = onCancel;
+            this.interrupted = interrupted;
+        }
+
+        private synchronized void cancel() {
+            if (closed || cancelled)
+                return;
+            cancelled = true;
+            onCancel.run();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            registrations.remove(this);
+            if (cancelled && interrupted == Thread.currentThread())
+                Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.apache.jena.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent identical queries to the same endpoint share a single remote execution: the first
+ * caller runs it and the ones arriving while it is in flight wait for its result instead.
+ * Shared results must not be mutated by callers.
+ */
+@Service
+public class QueryCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(QueryCoalescer.class);
+
+    @Value("${rhizomer.sparql-coalescing:true}")
+    private boolean enabled = true;
+
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public String key(SPARQLEndPoint endPoint, Query query) {
+        return endPoint.getId() + " " + endPoint.getQueryEndPoint() + "\n" + query.serialize();
+    }
+
+    /**
+     * A shared execution is only cancelled once all the callers waiting for it have been
+     * cancelled, a caller cancelled before stops waiting right away.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T coalesce(String key, Supplier<T> execution) {
+        if (!enabled)
+            return execution.get();
+        QueryCancellation cancellation = QueryCancellation.current();
+        InFlight leader = new InFlight();
+        InFlight running = inFlight.putIfAbsent(key, leader);
+        if (running != null) {
+            if (!running.join())
+                return execution.get();
+            coalesced.incrementAndGet();
+            logger.debug("Waiting for identical in-flight query: \n{}", key);
+            CompletableFuture<Object> result = running.result.thenApply(shared -> shared);
+            try (QueryCancellation.Registration registration = cancellation.register(() -> {
+                result.cancel(false);
+                running.leave();
+            })) {
+                return (T) result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        executed.incrementAndGet();
+        try (QueryCancellation.Registration registration = cancellation.register(leader::leave)) {
+            T result = leader.execution.call(execution);
+            leader.result.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            leader.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, leader);
+        }
+    }
+
+    /**
+     * Like {@link #coalesce(String, Supplier)} for executions that complete asynchronously, which
+     * share their in-flight results with synchronous ones.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> coalesceAsync(String key, Supplier<CompletableFuture<T>> execution) {
+        if (!enabled)
+            return execution.get();
+        QueryCancellation cancellation = QueryCancellation.current();
+        InFlight leader = new InFlight();
+        InFlight running = inFlight.putIfAbsent(key, leader);
+        if (running != null) {
+            if (!running.join())
+                return execution.get();
+            coalesced.incrementAndGet();
+            logger.debug("Waiting for identical in-flight query: \n{}", key);
+            return (CompletableFuture<T>) await(running, cancellation);
+        }
+        executed.incrementAndGet();
+        CompletableFuture<T> started;
+        try {
+            started = leader.execution.call(execution);
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((result, e) -> {
+            inFlight.remove(key, leader);
+            if (e != null)
+                leader.result.completeExceptionally(QueryRetry.unwrap(e));
+            else
+                leader.result.complete(result);
+        });
+        return (CompletableFuture<T>) await(leader, cancellation);
+    }
+
+    private static CompletableFuture<Object> await(InFlight running, QueryCancellation cancellation) {
+        CompletableFuture<Object> result = running.result.thenApply(shared -> shared);
+        QueryCancellation.Registration registration = cancellation.register(() -> {
+            result.cancel(false);
+            running.leave();
+        });
+        result.whenComplete((shared, e) -> registration.close());
+        return result;
+    }
+
+    public long getExecuted() { return executed.get(); }
+
+    public long getCoalesced() { return coalesced.get(); }
+
+    private static final class InFlight {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private final QueryCancellation execution = new QueryCancellation();
+        private final AtomicInteger waiting = new AtomicInteger(1);
+
+        /**
+         * False if the execution is already being cancelled because nobody else waits for it.
+         */
+        boolean join() {
+            return waiting.getAndUpdate(count -> count == 0 ? 0 : count + 1) > 0;
+        }
+
+        void leave() {
+            if (waiting.decrementAndGet() == 0)
+                execution.cancel();
+        }
+    }
+}
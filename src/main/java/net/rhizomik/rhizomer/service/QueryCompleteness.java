@@ -0,0 +1,51 @@
+package net.rhizomik.rhizomer.service;
+
+import java.util.function.Supplier;
+
+/**
+ * Tracks whether the results computed on behalf of a task include the answers of all the
+ * endpoints queried, so results missing some of them are not cached as if they were complete.
+ * Queries sent from within {@link #call(Supplier)} report to it the endpoints left out, and so to
+ * the tracker it was created within, if any.
+ */
+public final class QueryCompleteness {
+    private static final QueryCompleteness NONE = new QueryCompleteness(null);
+    private static final ThreadLocal<QueryCompleteness> current = ThreadLocal.withInitial(() -> NONE);
+
+    private final QueryCompleteness parent;
+    private volatile boolean complete = true;
+
+    private QueryCompleteness(QueryCompleteness parent) {
+        this.parent = parent;
+    }
+
+    public static QueryCompleteness current() {
+        return current.get();
+    }
+
+    /**
+     * A new tracker whose missing answers are also missing for the current one.
+     */
+    public static QueryCompleteness track() {
+        return new QueryCompleteness(current.get());
+    }
+
+    public <T> T call(Supplier<T> task) {
+        QueryCompleteness previous = current.get();
+        current.set(this);
+        try {
+            return task.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void incomplete() {
+        for (QueryCompleteness tracker = this; tracker != null && tracker != NONE; tracker = tracker.parent)
+            tracker.complete = false;
+    }
+}
@@ -0,0 +1,24 @@
+package net.rhizomik.rhizomer.service;
+
+import java.util.function.Supplier;
+
+/**
+ * Thread-scoped settings of the queries sent by a thread, captured to be restored in the worker
+ * threads that send queries on its behalf.
+ */
+final class QueryContext {
+    private final QueryPriority priority = QueryPriority.current();
+    private final QueryKind kind = QueryKind.current();
+    private final QueryCancellation cancellation = QueryCancellation.current();
+    private final QueryCompleteness completeness = QueryCompleteness.current();
+
+    private QueryContext() {}
+
+    static QueryContext capture() {
+        return new QueryContext();
+    }
+
+    <T> T call(Supplier<T> task) {
+        return completeness.call(() -> cancellation.call(() -> kind.call(() -> priority.call(task))));
+    }
+}
@@ -0,0 +1,149 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.EndPointHealth;
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Hedged reads: when an idempotent query has not answered within the p95 latency observed for
+ * its endpoint, a duplicate is sent, which the replica router sends to a less loaded replica if
+ * there is one. The first answer wins and the other execution is cancelled.
+ */
+@Service
+public class QueryHedging {
+    private static final Logger logger = LoggerFactory.getLogger(QueryHedging.class);
+
+    @Value("${rhizomer.hedging.minimum-calls:20}")
+    private int minimumCalls = 20;
+
+    @Autowired private EndPointCircuitBreaker circuitBreaker;
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+    private final ExecutorService executor =
+            Executors.newCachedThreadPool(new SPARQLClientRegistry.ThreadFactoryNamed("sparql-hedge"));
+
+    public <T> T execute(SPARQLEndPoint endPoint, Supplier<T> read) {
+        EndPointHealth health = circuitBreaker.getHealth(endPoint);
+        if (health.getCalls() < minimumCalls || health.getLatencyP95() <= 0)
+            return read.get();
+        QueryContext context = QueryContext.capture();
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        Future<T> primary = completion.submit(() -> context.call(read));
+        Future<T> hedge = null;
+        try {
+            Future<T> first = completion.poll(health.getLatencyP95(), TimeUnit.MILLISECONDS);
+            if (first == null) {
+                Counters endPointCounters = counters(endPoint);
+                endPointCounters.issued.incrementAndGet();
+                logger.info("Hedging query to {} after {} ms", endPoint.getQueryEndPoint(), health.getLatencyP95());
+                hedge = completion.submit(() -> context.call(read));
+                first = completion.take();
+            }
+            try {
+                T value = first.get();
+                if (first == hedge)
+                    counters(endPoint).won.incrementAndGet();
+                return value;
+            } catch (ExecutionException e) {
+                if (hedge == null)
+                    throw e;
+                Future<T> second = completion.take();
+                return second.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + endPoint.getQueryEndPoint(), e);
+        } finally {
+            primary.cancel(true);
+            if (hedge != null)
+                hedge.cancel(true);
+        }
+    }
+
+    /**
+     * Like {@link #execute(SPARQLEndPoint, Supplier)} for reads that complete asynchronously, each
+     * execution is sent under its own {@link QueryCancellation} so the loser can be cancelled.
+     */
+    public <T> CompletableFuture<T> executeAsync(SPARQLEndPoint endPoint, Supplier<CompletableFuture<T>> read) {
+        EndPointHealth health = circuitBreaker.getHealth(endPoint);
+        if (health.getCalls() < minimumCalls || health.getLatencyP95() <= 0)
+            return read.get();
+        QueryCancellation cancellation = QueryCancellation.current();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        QueryCancellation primary = cancellation.child();
+        start(primary, read, result, pending, null);
+        CompletableFuture.delayedExecutor(health.getLatencyP95(), TimeUnit.MILLISECONDS).execute(() -> {
+            if (result.isDone() || !pending.compareAndSet(1, 2))
+                return;
+            Counters endPointCounters = counters(endPoint);
+            endPointCounters.issued.incrementAndGet();
+            logger.info("Hedging query to {} after {} ms", endPoint.getQueryEndPoint(), health.getLatencyP95());
+            QueryCancellation hedge = cancellation.child();
+            start(hedge, read, result, pending, endPointCounters);
+            result.whenComplete((value, e) -> hedge.cancel());
+        });
+        result.whenComplete((value, e) -> primary.cancel());
+        return result;
+    }
+
+    private <T> void start(QueryCancellation execution, Supplier<CompletableFuture<T>> read,
+                           CompletableFuture<T> result, AtomicInteger pending, Counters hedged) {
+        CompletableFuture<T> started;
+        try {
+            started = execution.call(read);
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((value, e) -> {
+            execution.release();
+            if (e == null) {
+                if (result.complete(value) && hedged != null)
+                    hedged.won.incrementAndGet();
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(QueryRetry.unwrap(e));
+            }
+        });
+    }
+
+    public long getHedgesIssued(SPARQLEndPoint endPoint) { return counters(endPoint).issued.get(); }
+
+    public long getHedgesWon(SPARQLEndPoint endPoint) { return counters(endPoint).won.get(); }
+
+    private Counters counters(SPARQLEndPoint endPoint) {
+        return counters.computeIfAbsent(String.valueOf(endPoint.getId()), id -> new Counters());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static final class Counters {
+        private final AtomicLong issued = new AtomicLong();
+        private final AtomicLong won = new AtomicLong();
+    }
+}
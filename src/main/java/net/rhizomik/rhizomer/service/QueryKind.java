@@ -0,0 +1,46 @@
+package net.rhizomik.rhizomer.service;
+
+import java.util.function.Supplier;
+
+/**
+ * Kind of the queries sent by the current thread, each with its own timeout budget between a
+ * minimum and a maximum in milliseconds. A maximum of 0 stands for the endpoint timeout.
+ * Queries are of kind OTHER, which always gets the endpoint timeout, unless sent from within
+ * {@link #call(Supplier)}.
+ */
+public enum QueryKind {
+    COUNT(1000, 30000),
+    FACET_VALUES(1000, 60000),
+    DESCRIBE(1000, 60000),
+    SEARCH(2000, 60000),
+    ANALYSIS(60000, 0),
+    OTHER(0, 0);
+
+    private static final ThreadLocal<QueryKind> current = ThreadLocal.withInitial(() -> OTHER);
+
+    private final long minimum;
+    private final long maximum;
+
+    QueryKind(long minimum, long maximum) {
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    public long getMinimum() { return minimum; }
+
+    public long getMaximum() { return maximum; }
+
+    public static QueryKind current() {
+        return current.get();
+    }
+
+    public <T> T call(Supplier<T> task) {
+        QueryKind previous = current.get();
+        current.set(this);
+        try {
+            return task.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+}
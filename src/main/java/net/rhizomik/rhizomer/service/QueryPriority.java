@@ -0,0 +1,31 @@
+package net.rhizomik.rhizomer.service;
+
+import java.util.function.Supplier;
+
+/**
+ * Lane in which queries sent by the current thread wait for an endpoint, in decreasing priority.
+ * Queries are interactive unless sent from within {@link #call(Supplier)} or {@link #run(Runnable)}.
+ */
+public enum QueryPriority {
+    INTERACTIVE, ANALYSIS, BULK;
+
+    private static final ThreadLocal<QueryPriority> current = ThreadLocal.withInitial(() -> INTERACTIVE);
+
+    public static QueryPriority current() {
+        return current.get();
+    }
+
+    public <T> T call(Supplier<T> task) {
+        QueryPriority previous = current.get();
+        current.set(this);
+        try {
+            return task.get();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    public void run(Runnable task) {
+        call(() -> { task.run(); return null; });
+    }
+}
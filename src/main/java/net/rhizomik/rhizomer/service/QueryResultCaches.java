@@ -0,0 +1,244 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.Class;
+import net.rhizomik.rhizomer.model.Facet;
+import net.rhizomik.rhizomer.model.Range;
+import net.rhizomik.rhizomer.model.Value;
+import org.apache.jena.rdf.model.Literal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Caches of the results of the most expensive and most repeated dataset queries.
+ */
+@Service
+public class QueryResultCaches {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCaches.class);
+
+    /**
+     * Request attributes with the age, in seconds, of the oldest cached result used to answer
+     * the request, whether any of them was stale and whether any result retrieved for it misses
+     * the answer of some endpoint.
+     */
+    public static final String AGE_ATTRIBUTE = QueryResultCaches.class.getName() + ".age";
+    public static final String STALE_ATTRIBUTE = QueryResultCaches.class.getName() + ".stale";
+    public static final String INCOMPLETE_ATTRIBUTE = QueryResultCaches.class.getName() + ".incomplete";
+
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.range-values.max-entries:5000}")
+    private int rangeValuesMaxEntries = 5000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.range-values.ttl:600000}")
+    private long rangeValuesTtl = 600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.range-values.max-stale:3600000}")
+    private long rangeValuesMaxStale = 3600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.facets-values.max-entries:1000}")
+    private int facetsValuesMaxEntries = 1000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.facets-values.ttl:600000}")
+    private long facetsValuesTtl = 600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.facets-values.max-stale:3600000}")
+    private long facetsValuesMaxStale = 3600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.instances-count.max-entries:5000}")
+    private int instancesCountMaxEntries = 5000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.instances-count.ttl:600000}")
+    private long instancesCountTtl = 600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.instances-count.max-stale:3600000}")
+    private long instancesCountMaxStale = 3600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.labels.max-entries:100000}")
+    private int labelsMaxEntries = 100000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.labels.ttl:3600000}")
+    private long labelsTtl = 3600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.responses.max-entries:500}")
+    private int responsesMaxEntries = 500;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.responses.ttl:600000}")
+    private long responsesTtl = 600000;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.responses.disk.directory:${java.io.tmpdir}/rhizomer-responses}")
+    private String responseFilesDirectory;
+    @org.springframework.beans.factory.annotation.Value("${rhizomer.cache.responses.disk.max-bytes:2147483648}")
+    private long responseFilesMaxBytes = 2147483648L;
+
+    @Autowired private DatasetGenerations generations;
+
+    private DatasetCache<List<Value>> rangeValues;
+    private DatasetCache<Map<String, List<Value>>> facetsValues;
+    private DatasetCache<Integer> instancesCount;
+    private DatasetCache<List<Literal>> labels;
+    private DatasetCache<byte[]> responses;
+    private MappedFileCache responseFiles;
+
+    @PostConstruct
+    public void init() {
+        rangeValues = new DatasetCache<>(rangeValuesMaxEntries, rangeValuesTtl, rangeValuesMaxStale);
+        facetsValues = new DatasetCache<>(facetsValuesMaxEntries, facetsValuesTtl, facetsValuesMaxStale);
+        instancesCount = new DatasetCache<>(instancesCountMaxEntries, instancesCountTtl, instancesCountMaxStale);
+        labels = new DatasetCache<>(labelsMaxEntries, labelsTtl);
+        responses = new DatasetCache<>(responsesMaxEntries, responsesTtl);
+        responseFiles = new MappedFileCache(Paths.get(responseFilesDirectory), responseFilesMaxBytes, responsesTtl);
+    }
+
+    @PreDestroy
+    public void close() {
+        responseFiles.close();
+    }
+
+    public DatasetCache<List<Value>> rangeValues() {
+        return rangeValues;
+    }
+
+    /**
+     * Values of several facets of a class retrieved together, keyed by facet CURIE.
+     */
+    public DatasetCache<Map<String, List<Value>>> facetsValues() {
+        return facetsValues;
+    }
+
+    public DatasetCache<Integer> instancesCount() {
+        return instancesCount;
+    }
+
+    /**
+     * Labels of each resource, keyed by its URI.
+     */
+    public DatasetCache<List<Literal>> labels() {
+        return labels;
+    }
+
+    /**
+     * Serialized responses small enough to be kept in the heap, see {@link CachedResponses}.
+     */
+    public DatasetCache<byte[]> responses() {
+        return responses;
+    }
+
+    /**
+     * Serialized responses too large for the heap tier, in memory mapped files.
+     */
+    public MappedFileCache responseFiles() {
+        return responseFiles;
+    }
+
+    /**
+     * The cached value, even if stale, or the one retrieved and cached otherwise. A stale value is
+     * refreshed in the background at bulk priority, just once whatever the requests for it
+     * meanwhile. The age of the cached value is recorded in the current request, if any. Values
+     * retrieved without the answer of some endpoint are returned but not cached.
+     */
+    public <V> CompletableFuture<V> getOrRetrieve(DatasetCache<V> cache, String datasetId, long generation,
+                                                  String key, Supplier<CompletableFuture<V>> retrieve) {
+        DatasetCache.Hit<V> hit = cache.lookup(datasetId, generation, key);
+        if (hit == null) {
+            QueryCompleteness completeness = QueryCompleteness.track();
+            RequestAttributes request = RequestContextHolder.getRequestAttributes();
+            return completeness.call(retrieve).thenApply(value -> {
+                if (completeness.isComplete()) {
+                    cache.put(datasetId, generation, key, value);
+                } else {
+                    logger.info("Incomplete {} of dataset {} not cached", key, datasetId);
+                    if (request instanceof ServletRequestAttributes)
+                        ((ServletRequestAttributes) request).getRequest()
+                                .setAttribute(INCOMPLETE_ATTRIBUTE, Boolean.TRUE);
+                }
+                return value;
+            });
+        }
+        if (hit.claimRefresh()) {
+            QueryCompleteness completeness = QueryCompleteness.track();
+            QueryPriority.BULK.call(() -> completeness.call(retrieve)).whenComplete((value, e) -> {
+                if (e == null && completeness.isComplete()) {
+                    cache.put(datasetId, generation, key, value);
+                } else if (e == null) {
+                    hit.releaseRefresh();
+                    logger.info("Refresh of stale {} of dataset {} incomplete, not cached", key, datasetId);
+                } else {
+                    hit.releaseRefresh();
+                    logger.info("Refresh of stale {} of dataset {} failed: {}", key, datasetId, e.getMessage());
+                }
+            });
+        }
+        recordAge(hit);
+        return CompletableFuture.completedFuture(hit.getValue());
+    }
+
+    private static void recordAge(DatasetCache.Hit<?> hit) {
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request == null)
+            return;
+        Long age = (Long) request.getAttribute(AGE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        request.setAttribute(AGE_ATTRIBUTE, Math.max(age != null ? age : 0, hit.getAge() / 1000),
+                RequestAttributes.SCOPE_REQUEST);
+        if (hit.isStale())
+            request.setAttribute(STALE_ATTRIBUTE, Boolean.TRUE, RequestAttributes.SCOPE_REQUEST);
+    }
+
+    public static String rangeValuesKey(Range facetRange, Filters filters, int page, int size) {
+        return facetRange.getFacet().getDomain().getUri() + " " + facetRange.getFacet().getUri() + " " +
+                facetRange.getUri() + " " + page + " " + size + " " + filters.canonical();
+    }
+
+    public static String facetsValuesKey(Class datasetClass, List<Facet> facets, Filters filters, int size) {
+        return datasetClass.getUri() + " " + facets.stream().map(facet -> facet.getUri().toString())
+                .collect(Collectors.joining(" ")) + " " + size + " " + filters.canonical();
+    }
+
+    public static String instancesCountKey(Class datasetClass, Filters filters) {
+        return datasetClass.getUri() + " " + filters.canonical();
+    }
+
+    /**
+     * Request parameters with their keys and the values of each key sorted, so the same parameters
+     * given in a different order get the same key. Filters have their own {@link Filters#canonical()}.
+     */
+    public static String canonical(MultiValueMap<String, String> parameters) {
+        Map<String, List<String>> sorted = new TreeMap<>();
+        parameters.forEach((key, values) -> sorted.put(key, values.stream().sorted().collect(Collectors.toList())));
+        return sorted.entrySet().stream()
+                .flatMap(entry -> entry.getValue().stream().map(value -> encode(entry.getKey()) + "=" + encode(value)))
+                .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * Drops the cached results of the dataset and increases its schema generation, so clients
+     * and HTTP caches revalidate too. For changes in its configuration, classes or facets.
+     */
+    public void evict(String datasetId) {
+        generations.bumpSchema(datasetId);
+        rangeValues.evict(datasetId);
+        facetsValues.evict(datasetId);
+        instancesCount.evict(datasetId);
+        labels.evict(datasetId);
+        responses.evict(datasetId);
+        responseFiles.evict(datasetId);
+    }
+
+    public Map<String, DatasetCache.Stats> getStats(String datasetId) {
+        Map<String, DatasetCache.Stats> stats = new LinkedHashMap<>();
+        stats.put("rangeValues", rangeValues.getStats(datasetId));
+        stats.put("facetsValues", facetsValues.getStats(datasetId));
+        stats.put("instancesCount", instancesCount.getStats(datasetId));
+        stats.put("labels", labels.getStats(datasetId));
+        stats.put("responses", responses.getStats(datasetId));
+        stats.put("responseFiles", responseFiles.getStats(datasetId));
+        return stats;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
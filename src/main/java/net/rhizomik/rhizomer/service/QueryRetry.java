@@ -0,0 +1,209 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Retries read queries that failed because the endpoint was momentarily overloaded or the
+ * connection was lost, waiting an exponential backoff with jitter or what the endpoint asked for
+ * with Retry-After. Retries are drawn from a budget shared by all endpoints and replenished by
+ * a fraction of the queries sent, so they cannot amplify an overload. Updates are never retried.
+ */
+@Service
+public class QueryRetry {
+    private static final Logger logger = LoggerFactory.getLogger(QueryRetry.class);
+    private static final ThreadLocal<Long> retryAfter = new ThreadLocal<>();
+
+    @Value("${rhizomer.retry.max-attempts:3}")
+    private int maxAttempts = 3;
+    @Value("${rhizomer.retry.initial-backoff:200}")
+    private long initialBackoff = 200;
+    @Value("${rhizomer.retry.max-backoff:5000}")
+    private long maxBackoff = 5000;
+    @Value("${rhizomer.retry.max-retry-after:10000}")
+    private long maxRetryAfter = 10000;
+    @Value("${rhizomer.retry.budget-ratio:0.1}")
+    private double budgetRatio = 0.1;
+    @Value("${rhizomer.retry.budget-size:20}")
+    private double budgetSize = 20;
+
+    private double tokens = -1;
+
+    public <T> T execute(SPARQLEndPoint endPoint, Supplier<T> read) {
+        deposit();
+        for (int attempt = 1; ; attempt++) {
+            retryAfter.remove();
+            try {
+                return read.get();
+            } catch (RuntimeException e) {
+                long delay = retryDelay(endPoint, attempt, e, retryAfter.get());
+                if (delay < 0)
+                    throw e;
+                sleep(delay, e);
+            } finally {
+                retryAfter.remove();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #execute(SPARQLEndPoint, Supplier)} for reads that complete asynchronously,
+     * waiting between attempts without holding a thread.
+     */
+    public <T> CompletableFuture<T> executeAsync(SPARQLEndPoint endPoint, Supplier<CompletableFuture<T>> read) {
+        deposit();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attemptAsync(endPoint, read, 1, result);
+        return result;
+    }
+
+    private <T> void attemptAsync(SPARQLEndPoint endPoint, Supplier<CompletableFuture<T>> read, int attempt,
+                                  CompletableFuture<T> result) {
+        CompletableFuture<T> attempted;
+        try {
+            attempted = read.get();
+        } catch (RuntimeException e) {
+            attempted = CompletableFuture.failedFuture(e);
+        }
+        attempted.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            RuntimeException failure = unwrap(error);
+            long delay = retryDelay(endPoint, attempt, failure,
+                    failure instanceof ResponseException ? ((ResponseException) failure).retryAfter : null);
+            if (delay < 0)
+                result.completeExceptionally(failure);
+            else
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                        .execute(() -> attemptAsync(endPoint, read, attempt + 1, result));
+        });
+    }
+
+    /**
+     * Milliseconds to wait before the next attempt, or -1 if the failure should not be retried.
+     */
+    private long retryDelay(SPARQLEndPoint endPoint, int attempt, RuntimeException e, Long requested) {
+        if (attempt >= maxAttempts || !isRetryable(e))
+            return -1;
+        long delay = backoff(attempt);
+        if (requested != null) {
+            if (requested > maxRetryAfter)
+                return -1;
+            delay = Math.max(delay, requested);
+        }
+        if (!withdraw()) {
+            logger.warn("Retry budget exhausted, not retrying query to {}", endPoint.getQueryEndPoint());
+            return -1;
+        }
+        logger.info("Retrying query to {} in {} ms after: {}", endPoint.getQueryEndPoint(), delay, e.getMessage());
+        return delay;
+    }
+
+    /**
+     * Records the Retry-After of an overloaded endpoint response received by the current thread.
+     */
+    static void noteResponse(HttpResponse<?> response) {
+        Long delay = retryAfter(response);
+        if (delay != null)
+            retryAfter.set(delay);
+    }
+
+    private static Long retryAfter(HttpResponse<?> response) {
+        if (response.statusCode() != 429 && response.statusCode() != 503)
+            return null;
+        return response.headers().firstValue("Retry-After").map(QueryRetry::parseRetryAfter).orElse(null);
+    }
+
+    static Long parseRetryAfter(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(), date).toMillis());
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+
+    static boolean isRetryable(RuntimeException e) {
+        if (e instanceof ResponseStatusException || e instanceof CancellationException || QueryTimeouts.isTimeout(e))
+            return false;
+        int status = EndPointCircuitBreaker.httpStatus(e);
+        if (status > 0)
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+            if (cause instanceof IOException)
+                return true;
+        return false;
+    }
+
+    static RuntimeException unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        if (error instanceof RuntimeException)
+            return (RuntimeException) error;
+        return new CompletionException(error);
+    }
+
+    private long backoff(int attempt) {
+        long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    private synchronized void deposit() {
+        tokens = Math.min(budgetSize, (tokens < 0 ? budgetSize : tokens) + budgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if (tokens < 1)
+            return false;
+        tokens--;
+        return true;
+    }
+
+    private void sleep(long delay, RuntimeException failure) {
+        QueryCancellation cancellation = QueryCancellation.current();
+        try (QueryCancellation.Registration registration = cancellation.interruptOnCancel()) {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            if (cancellation.isCancelled())
+                throw cancellation.failure(failure);
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    /**
+     * Error response to an asynchronous query, with the delay the endpoint asked for, if any.
+     */
+    static final class ResponseException extends QueryExceptionHTTP {
+        private final Long retryAfter;
+
+        ResponseException(HttpResponse<?> response, String message) {
+            super(response.statusCode(), message);
+            this.retryAfter = retryAfter(response);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.rhizomik.rhizomer.service;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.syntax.syntaxtransform.QueryTransformOps;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A query parsed once, from a text where its parameters are variables, that is bound for each use
+ * by substituting those variables with IRIs in a copy of its syntax tree, so it is not parsed
+ * again. The copy can be modified, for instance to set its limit or add graphs, without
+ * affecting the template.
+ */
+public final class QueryTemplate {
+    private static final int MAX_TEMPLATES = 1000;
+    private static final Map<String, QueryTemplate> templates = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, QueryTemplate> eldest) {
+                    return size() > MAX_TEMPLATES;
+                }
+            });
+
+    private final Query template;
+
+    public QueryTemplate(String queryString) {
+        this.template = QueryFactory.create(queryString);
+    }
+
+    /**
+     * The template for a query text, only parsed if it is not among the recently used ones. For
+     * texts that vary, like those including the filters, so each distinct one is parsed once.
+     */
+    public static QueryTemplate of(String queryString) {
+        QueryTemplate queryTemplate = templates.get(queryString);
+        if (queryTemplate == null) {
+            queryTemplate = new QueryTemplate(queryString);
+            templates.put(queryString, queryTemplate);
+        }
+        return queryTemplate;
+    }
+
+    public Query bind() {
+        return bind(Map.of());
+    }
+
+    public Query bind(String var, String iri) {
+        return bind(Map.of(var, iri));
+    }
+
+    public Query bind(String var1, String iri1, String var2, String iri2) {
+        return bind(Map.of(var1, iri1, var2, iri2));
+    }
+
+    public Query bind(Map<String, String> iris) {
+        Map<Var, Node> substitutions = new HashMap<>();
+        iris.forEach((var, iri) -> substitutions.put(Var.alloc(var), NodeFactory.createURI(iri)));
+        return QueryTransformOps.transform(template, substitutions);
+    }
+}
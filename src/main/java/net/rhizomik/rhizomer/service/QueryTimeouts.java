@@ -0,0 +1,122 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.http.HttpTimeoutException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout budget of each kind of query for each endpoint, adapted to the latencies observed for
+ * that kind: a multiple of their 99th percentile, within the bounds of the kind and never beyond
+ * the endpoint timeout. Until there are enough observations, the upper bound is used.
+ */
+@Service
+public class QueryTimeouts {
+    @Value("${rhizomer.sparql-timeout:300000}")
+    private long defaultTimeout = 300000;
+    @Value("${rhizomer.timeouts.window:100}")
+    private int window = 100;
+    @Value("${rhizomer.timeouts.minimum-calls:20}")
+    private int minimumCalls = 20;
+    @Value("${rhizomer.timeouts.multiplier:3}")
+    private double multiplier = 3;
+    @Value("${rhizomer.timeouts.client-grace:1000}")
+    private long clientGrace = 1000;
+
+    private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Queries sent from analysis or bulk lanes without a kind are considered analysis queries.
+     */
+    public static QueryKind currentKind() {
+        QueryKind kind = QueryKind.current();
+        if (kind == QueryKind.OTHER && QueryPriority.current() != QueryPriority.INTERACTIVE)
+            return QueryKind.ANALYSIS;
+        return kind;
+    }
+
+    public long budget(SPARQLEndPoint endPoint, QueryKind kind) {
+        long endPointTimeout = endPointTimeout(endPoint);
+        if (kind == QueryKind.OTHER)
+            return endPointTimeout;
+        long maximum = kind.getMaximum() > 0 ? Math.min(kind.getMaximum(), endPointTimeout) : endPointTimeout;
+        long p99 = latencies(endPoint, kind).p99(minimumCalls);
+        if (p99 < 0)
+            return maximum;
+        return Math.min(maximum, Math.max(Math.min(kind.getMinimum(), maximum), (long) (p99 * multiplier)));
+    }
+
+    /**
+     * Time waited for the response to start, a bit longer than the server budget to give the
+     * endpoint the chance to report its own timeout.
+     */
+    public long clientTimeout(long budget) {
+        return budget + clientGrace;
+    }
+
+    public void record(SPARQLEndPoint endPoint, QueryKind kind, long elapsedNanos) {
+        if (kind != QueryKind.OTHER)
+            latencies(endPoint, kind).add(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    }
+
+    /**
+     * The timeout parameter understood by the endpoint: seconds for Fuseki, milliseconds otherwise.
+     */
+    public static String serverTimeout(SPARQLEndPoint endPoint, long budget) {
+        if (endPoint.getType() == SPARQLEndPoint.ServerType.FUSEKI ||
+                endPoint.getType() == SPARQLEndPoint.ServerType.FUSEKI_LUCENE)
+            return String.format(Locale.ROOT, "%.3f", budget / 1000.0);
+        return Long.toString(budget);
+    }
+
+    public static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+            if (cause instanceof HttpTimeoutException)
+                return true;
+        return false;
+    }
+
+    public void evict(Integer endPointId) {
+        latencies.keySet().removeIf(key -> key.startsWith(endPointId + " "));
+    }
+
+    private long endPointTimeout(SPARQLEndPoint endPoint) {
+        try {
+            return endPoint.getTimeout() != null ? Long.parseLong(endPoint.getTimeout().trim()) : defaultTimeout;
+        } catch (NumberFormatException e) {
+            return defaultTimeout;
+        }
+    }
+
+    private Latencies latencies(SPARQLEndPoint endPoint, QueryKind kind) {
+        return latencies.computeIfAbsent(endPoint.getId() + " " + kind, key -> new Latencies(window));
+    }
+
+    private static final class Latencies {
+        private final long[] values;
+        private int next;
+        private int count;
+
+        Latencies(int window) { this.values = new long[window]; }
+
+        synchronized void add(long latency) {
+            values[next] = latency;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        synchronized long p99(int minimumCalls) {
+            if (count < minimumCalls || count == 0)
+                return -1;
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(0.99 * count) - 1];
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Chooses which of the equivalent query URLs of an endpoint receives each read query. With the
+ * EWMA strategy the replica with the lowest recent latency, weighted by its outstanding queries,
+ * is chosen. With LEAST_OUTSTANDING the one with fewer queries in flight. Replicas not measured
+ * yet are tried first. A failure adds a penalty to the latency of the replica that halves every
+ * half-life, so a replica that recovers gets queries again even if none succeeds meanwhile.
+ */
+@Service
+public class ReplicaRouter {
+    public enum Strategy { EWMA, LEAST_OUTSTANDING }
+
+    @Value("${rhizomer.replicas.strategy:EWMA}")
+    private Strategy strategy = Strategy.EWMA;
+    @Value("${rhizomer.replicas.ewma-weight:0.3}")
+    private double ewmaWeight = 0.3;
+    @Value("${rhizomer.replicas.failure-penalty:30000}")
+    private long failurePenalty = 30000;
+    @Value("${rhizomer.replicas.penalty-half-life:10000}")
+    private long penaltyHalfLife = 10000;
+
+    private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    public ReplicaRouter() {
+        this(System::nanoTime);
+    }
+
+    ReplicaRouter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public Route route(SPARQLEndPoint endPoint) {
+        List<String> urls = endPoint.getQueryUrls();
+        int offset = urls.size() > 1 ? ThreadLocalRandom.current().nextInt(urls.size()) : 0;
+        Replica chosen = null;
+        for (int i = 0; i < urls.size(); i++) {
+            Replica replica = replicas.computeIfAbsent(urls.get((offset + i) % urls.size()), Replica::new);
+            if (chosen == null || load(replica) < load(chosen))
+                chosen = replica;
+        }
+        chosen.outstanding.incrementAndGet();
+        return new Route(chosen);
+    }
+
+    private double load(Replica replica) {
+        double latency = replica.latency(clock.getAsLong());
+        if (strategy == Strategy.LEAST_OUTSTANDING)
+            return replica.outstanding.get() + latency / 1e9;
+        return latency * (replica.outstanding.get() + 1);
+    }
+
+    /**
+     * A query in flight to a replica, closed once its response has been consumed.
+     */
+    public final class Route implements AutoCloseable {
+        private final Replica replica;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Route(Replica replica) { this.replica = replica; }
+
+        public String getUrl() { return replica.url; }
+
+        public void recordSuccess(long elapsedNanos) {
+            replica.update(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        }
+
+        public void recordFailure(long elapsedNanos) {
+            replica.penalize(Math.max(TimeUnit.NANOSECONDS.toMillis(elapsedNanos), failurePenalty),
+                    clock.getAsLong());
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true))
+                replica.outstanding.decrementAndGet();
+        }
+    }
+
+    private final class Replica {
+        private final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double ewma;
+        private double penalty;
+        private long penalizedAt;
+
+        Replica(String url) { this.url = url; }
+
+        synchronized void update(long latency) {
+            ewma = ewma == 0 ? latency : ewmaWeight * latency + (1 - ewmaWeight) * ewma;
+        }
+
+        synchronized void penalize(long latency, long now) {
+            penalty = Math.max(penalty(now), latency);
+            penalizedAt = now;
+        }
+
+        /**
+         * The recent latency, in milliseconds, plus what remains of the penalty for failures.
+         */
+        synchronized double latency(long now) {
+            return ewma + penalty(now);
+        }
+
+        private double penalty(long now) {
+            if (penalty == 0)
+                return 0;
+            double halfLives = (double) (now - penalizedAt) / TimeUnit.MILLISECONDS.toNanos(penaltyHalfLife);
+            return penalty * Math.pow(0.5, halfLives);
+        }
+    }
+}
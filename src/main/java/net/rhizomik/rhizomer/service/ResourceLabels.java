@@ -0,0 +1,163 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetCloseable;
+import org.apache.jena.rdf.model.Literal;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.vocabulary.RDFS;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Labels of the resources in a dataset, served from the labels cache and resolving the missing
+ * ones with a single query per batch of resources. Only the labels found when all the endpoints
+ * answered are cached, so resources without labels, or missing some of them because an endpoint
+ * did not answer, are looked up again.
+ */
+@Service
+public class ResourceLabels {
+    @Value("${rhizomer.cache.labels.batch-size:200}")
+    private int batchSize = 200;
+
+    @Autowired private SPARQLService sparqlService;
+    @Autowired private EndPointFanOut fanOut;
+    @Autowired private SPARQLEndPointRepository endPointRepository;
+    @Autowired private QueryResultCaches caches;
+    @Autowired private DatasetGenerations generations;
+    @Autowired private Queries queries;
+
+    public Map<String, List<Literal>> resolve(Dataset dataset, Collection<String> resourceUris) {
+        Map<String, List<Literal>> labels = new HashMap<>();
+        long generation = generations.current(dataset);
+        List<String> missing = cached(dataset, generation, resourceUris, labels);
+        if (missing.isEmpty())
+            return labels;
+        List<SPARQLEndPoint> endPoints = endPointRepository.findByDataset(dataset);
+        for (List<String> batch : batches(missing)) {
+            EndPointFanOut.Collected<List<QuerySolution>> endPointsSolutions = QueryKind.DESCRIBE.call(() -> fanOut.collect(
+                    endPoints, endPoint -> {
+                List<QuerySolution> solutions = new ArrayList<>();
+                try (ResultSetCloseable result = sparqlService.querySelectStream(endPoint,
+                        queries.getQueryResourcesLabels(batch), endPoint.getGraphs(), endPoint.getOntologyGraphs())) {
+                    result.forEachRemaining(solutions::add);
+                }
+                return solutions;
+            }));
+            store(dataset, generation, batch, endPointsSolutions, labels);
+        }
+        return labels;
+    }
+
+    /**
+     * Like {@link #resolve(Dataset, Collection)} without blocking the calling thread, which might
+     * not be a request thread, so the endpoints of the dataset are provided already loaded.
+     */
+    public CompletableFuture<Map<String, List<Literal>>> resolveAsync(Dataset dataset, List<SPARQLEndPoint> endPoints,
+                                                                     Collection<String> resourceUris) {
+        Map<String, List<Literal>> labels = new HashMap<>();
+        long generation = generations.current(dataset);
+        List<String> missing = cached(dataset, generation, resourceUris, labels);
+        if (missing.isEmpty())
+            return CompletableFuture.completedFuture(labels);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (List<String> batch : batches(missing))
+            batches.add(QueryKind.DESCRIBE.call(() -> fanOut.collectAsync(endPoints, endPoint ->
+                    sparqlService.querySelectAsync(endPoint, queries.getQueryResourcesLabels(batch),
+                            endPoint.getGraphs(), endPoint.getOntologyGraphs(), dataset.isHedgedReads())
+                        .thenApply(ResourceLabels::solutions)))
+                .thenAccept(endPointsSolutions -> {
+                    synchronized (labels) {
+                        store(dataset, generation, batch, endPointsSolutions, labels);
+                    }
+                }));
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(done -> labels);
+    }
+
+    /**
+     * Adds to the model the labels of all the resources in it.
+     */
+    public void addLabels(Dataset dataset, Model model) {
+        Set<String> resourceUris = new LinkedHashSet<>();
+        model.listStatements().forEachRemaining(statement -> {
+            if (statement.getSubject().isURIResource())
+                resourceUris.add(statement.getSubject().getURI());
+            resourceUris.add(statement.getPredicate().getURI());
+            if (statement.getObject().isURIResource())
+                resourceUris.add(statement.getObject().asResource().getURI());
+        });
+        resolve(dataset, resourceUris).forEach((uri, labels) ->
+                labels.forEach(label -> model.add(model.createResource(uri), RDFS.label, label)));
+    }
+
+    /**
+     * Labels in the format returned by the queries that concatenate them, "label@lang || label".
+     */
+    public static String joined(List<Literal> labels) {
+        if (labels == null || labels.isEmpty())
+            return null;
+        return labels.stream().map(label -> label.getLexicalForm() +
+                (label.getLanguage().isEmpty() ? "" : "@" + label.getLanguage()))
+                .collect(Collectors.joining(" || "));
+    }
+
+    private List<String> cached(Dataset dataset, long generation, Collection<String> resourceUris,
+                                Map<String, List<Literal>> labels) {
+        List<String> missing = new ArrayList<>();
+        for (String uri : new LinkedHashSet<>(resourceUris)) {
+            List<Literal> cached = caches.labels().get(dataset.getId(), generation, uri);
+            if (cached != null)
+                labels.put(uri, cached);
+            else
+                missing.add(uri);
+        }
+        return missing;
+    }
+
+    private List<List<String>> batches(List<String> resourceUris) {
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < resourceUris.size(); i += batchSize)
+            batches.add(resourceUris.subList(i, Math.min(i + batchSize, resourceUris.size())));
+        return batches;
+    }
+
+    private void store(Dataset dataset, long generation, List<String> batch,
+                       EndPointFanOut.Collected<List<QuerySolution>> endPointsSolutions,
+                       Map<String, List<Literal>> labels) {
+        Map<String, Set<Literal>> found = new HashMap<>();
+        endPointsSolutions.forEach(solutions -> solutions.forEach(soln -> {
+            RDFNode resource = soln.get("?resource");
+            RDFNode label = soln.get("?label");
+            if (resource != null && resource.isURIResource() && label != null && label.isLiteral())
+                found.computeIfAbsent(resource.asResource().getURI(), uri -> new LinkedHashSet<>())
+                        .add(label.asLiteral());
+        }));
+        for (String uri : batch) {
+            List<Literal> resourceLabels = List.copyOf(found.getOrDefault(uri, Set.of()));
+            if (endPointsSolutions.isComplete() && !resourceLabels.isEmpty())
+                caches.labels().put(dataset.getId(), generation, uri, resourceLabels);
+            labels.put(uri, resourceLabels);
+        }
+    }
+
+    private static List<QuerySolution> solutions(ResultSet result) {
+        List<QuerySolution> solutions = new ArrayList<>();
+        result.forEachRemaining(solutions::add);
+        return solutions;
+    }
+}
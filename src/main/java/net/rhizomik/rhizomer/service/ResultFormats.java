@@ -0,0 +1,46 @@
+package net.rhizomik.rhizomer.service;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.resultset.ResultSetLang;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Result formats asked to SPARQL endpoints, from the most compact and fastest to parse to the
+ * most widely supported.
+ */
+public final class ResultFormats {
+    public static final List<Lang> SELECT = List.of(
+            ResultSetLang.RS_Thrift, ResultSetLang.RS_TSV, ResultSetLang.RS_JSON, ResultSetLang.RS_XML);
+    public static final List<Lang> GRAPH = List.of(
+            RDFLanguages.RDFTHRIFT, RDFLanguages.NTRIPLES, RDFLanguages.TURTLE, RDFLanguages.RDFXML);
+
+    private ResultFormats() {}
+
+    /**
+     * Accept header listing the formats in decreasing order of preference.
+     */
+    public static String acceptHeader(List<Lang> formats) {
+        return IntStream.range(0, formats.size())
+                .mapToObj(i -> formats.get(i).getContentType().getContentTypeStr() +
+                        (i == 0 ? "" : String.format(Locale.ROOT, ";q=%.1f", Math.max(0.1, 1 - 0.1 * i))))
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * The format among the given ones with that content type, or null if none.
+     */
+    public static Lang lang(List<Lang> formats, String contentType) {
+        if (contentType == null)
+            return null;
+        String mediaType = contentType.split(";")[0].trim();
+        return formats.stream()
+                .filter(format -> format.getContentType().getContentTypeStr().equalsIgnoreCase(mediaType) ||
+                        format.getAltContentTypes().stream().anyMatch(mediaType::equalsIgnoreCase))
+                .findFirst().orElse(null);
+    }
+}
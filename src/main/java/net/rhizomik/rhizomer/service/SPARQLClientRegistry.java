@@ -0,0 +1,218 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived HTTP clients for SPARQL endpoints, one per endpoint and credentials, so connections
+ * are kept alive and reused across queries instead of being opened for every request.
+ */
+@Service
+public class SPARQLClientRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(SPARQLClientRegistry.class);
+
+    @Value("${rhizomer.sparql-client.connect-timeout:10000}")
+    private long connectTimeout;
+    @Value("${rhizomer.sparql-client.http2:true}")
+    private boolean http2;
+
+    private final Map<ClientKey, HttpClient> clients = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryNamed("sparql-http"));
+
+    public HttpClient queryClient(SPARQLEndPoint endPoint) {
+        return client(endPoint.getId(), endPoint.getQueryUsername(), endPoint.getQueryPassword());
+    }
+
+    public HttpClient updateClient(SPARQLEndPoint endPoint) {
+        return client(endPoint.getId(), endPoint.getUpdateUsername(), endPoint.getUpdatePassword());
+    }
+
+    public void evict(SPARQLEndPoint endPoint) {
+        evict(endPoint.getId());
+    }
+
+    public void evict(Integer endPointId) {
+        if (clients.keySet().removeIf(key -> Objects.equals(key.endPointId, endPointId)))
+            logger.info("Evicted HTTP clients for endpoint {}", endPointId);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        clients.clear();
+        executor.shutdownNow();
+    }
+
+    private HttpClient client(Integer endPointId, String username, String password) {
+        Validate.notNull(endPointId, "The endpoint should be saved before querying it");
+        ClientKey key = new ClientKey(endPointId, username, password);
+        return clients.computeIfAbsent(key, k -> {
+            logger.info("Creating HTTP client for endpoint {}", endPointId);
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofMillis(connectTimeout))
+                    .executor(executor);
+            if (username != null && password != null)
+                builder.authenticator(new Authenticator() {
+                    @Override
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        return new PasswordAuthentication(username, password.toCharArray());
+                    }
+                });
+            return new EndPointHttpClient(builder.build());
+        });
+    }
+
+    private static final class ClientKey {
+        private final Integer endPointId;
+        private final String username;
+        private final String password;
+
+        ClientKey(Integer endPointId, String username, String password) {
+            this.endPointId = endPointId;
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientKey)) return false;
+            ClientKey that = (ClientKey) o;
+            return Objects.equals(endPointId, that.endPointId) && Objects.equals(username, that.username) &&
+                    Objects.equals(password, that.password);
+        }
+
+        @Override
+        public int hashCode() { return Objects.hash(endPointId, username, password); }
+    }
+
+    static final class ThreadFactoryNamed implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        ThreadFactoryNamed(String prefix) { this.prefix = prefix; }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Notes the responses of endpoints for {@link QueryRetry}. Concurrency is not limited here,
+     * {@link EndPointBulkhead} is the single admission point for the queries, and thus the
+     * connections, of each endpoint.
+     *
+     * Virtuoso answers a query that exceeds its timeout with the results found so far, a 200
+     * flagged with {@code X-SQL-State: S1TAT}. Such responses fail with a timeout instead, so
+     * partial results are never taken for the answer of a query.
+     */
+    static final class EndPointHttpClient extends HttpClient {
+        private final HttpClient delegate;
+
+        EndPointHttpClient(HttpClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+                throws IOException, InterruptedException {
+            HttpResponse<T> response = delegate.send(request, handler);
+            QueryRetry.noteResponse(response);
+            if (isPartial(response)) {
+                close(response);
+                throw partialResults(request);
+            }
+            return response;
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                                HttpResponse.BodyHandler<T> handler) {
+            return sendAsync(request, handler, null);
+        }
+
+        /**
+         * Cancelling the returned future cancels the exchange, and a response that arrives
+         * afterwards has its streamed body closed.
+         */
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                HttpResponse.BodyHandler<T> handler, HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+            CompletableFuture<HttpResponse<T>> exchange = delegate.sendAsync(request, handler, pushPromiseHandler);
+            CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+            exchange.whenComplete((response, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else if (isPartial(response)) {
+                    close(response);
+                    result.completeExceptionally(partialResults(request));
+                } else if (!result.complete(response))
+                    close(response);
+            });
+            result.whenComplete((response, error) -> {
+                if (result.isCancelled())
+                    exchange.cancel(true);
+            });
+            return result;
+        }
+
+        static boolean isPartial(HttpResponse<?> response) {
+            return response.headers().firstValue("X-SQL-State").map("S1TAT"::equalsIgnoreCase).orElse(false);
+        }
+
+        private static HttpTimeoutException partialResults(HttpRequest request) {
+            return new HttpTimeoutException("Partial results after timeout from " + request.uri());
+        }
+
+        private static void close(HttpResponse<?> response) {
+            if (response.body() instanceof InputStream)
+                try {
+                    ((InputStream) response.body()).close();
+                } catch (IOException e) {
+                    logger.debug("Body of discarded response not closed: {}", e.getMessage());
+                }
+        }
+
+        @Override public Optional<CookieHandler> cookieHandler() { return delegate.cookieHandler(); }
+        @Override public Optional<Duration> connectTimeout() { return delegate.connectTimeout(); }
+        @Override public Redirect followRedirects() { return delegate.followRedirects(); }
+        @Override public Optional<ProxySelector> proxy() { return delegate.proxy(); }
+        @Override public SSLContext sslContext() { return delegate.sslContext(); }
+        @Override public SSLParameters sslParameters() { return delegate.sslParameters(); }
+        @Override public Optional<Authenticator> authenticator() { return delegate.authenticator(); }
+        @Override public Version version() { return delegate.version(); }
+        @Override public Optional<Executor> executor() { return delegate.executor(); }
+    }
+}
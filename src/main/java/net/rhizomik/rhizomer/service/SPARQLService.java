@@ -4,12 +4,19 @@ import net.rhizomik.rhizomer.model.Dataset;
 import net.rhizomik.rhizomer.model.SPARQLEndPoint;
 import net.rhizomik.rhizomer.repository.SPARQLEndPointRepository;
 
-import java.net.URI;
-import java.net.http.HttpClient;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.atlas.web.HttpException;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
 import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
 import org.apache.jena.sparql.exec.http.QueryExecutionHTTPBuilder;
 import org.apache.jena.sparql.exec.http.UpdateExecutionHTTPBuilder;
@@ -18,12 +25,31 @@ import org.apache.jena.update.UpdateRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringWriter;
-import java.net.URL;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by http://rhizomik.net/~roberto/
@@ -33,78 +59,495 @@ public class SPARQLService {
     private static final Logger logger = LoggerFactory.getLogger(SPARQLService.class);
 
     @Autowired SPARQLEndPointRepository endPointRepository;
+    @Autowired SPARQLClientRegistry clientRegistry;
+    @Autowired QueryCoalescer coalescer;
+    @Autowired EndPointBulkhead bulkhead;
+    @Autowired EndPointCircuitBreaker circuitBreaker;
+    @Autowired ReplicaRouter replicaRouter;
+    @Autowired QueryHedging hedging;
+    @Autowired QueryTimeouts timeouts;
+    @Autowired QueryRetry retry;
     @Autowired Queries queries;
 
-    public ResultSet querySelect(URL sparqlEndpoint, String timeout, Query query, HttpClient creds) {
-        return this.querySelect(sparqlEndpoint, timeout, query, new ArrayList<>(), new ArrayList<>(), creds);
+    @Value("${rhizomer.sparql-client.gzip:true}")
+    private boolean gzip = true;
+
+    public ResultSet querySelect(SPARQLEndPoint endPoint, Query query) {
+        return this.querySelect(endPoint, query, new ArrayList<>(), new ArrayList<>());
+    }
+
+    public ResultSet querySelect(SPARQLEndPoint endPoint, Query query, List<String> graphs) {
+        return this.querySelect(endPoint, query, graphs, new ArrayList<>());
+    }
+
+    public ResultSet querySelect(SPARQLEndPoint endPoint, Query query, List<String> graphs,
+                                 List<String> namedGraphs) {
+        try (ResultSetCloseable results = querySelectStream(endPoint, query, graphs, namedGraphs)) {
+            return ResultSetFactory.copyResults(results);
+        }
+    }
+
+    public ResultSetCloseable querySelectStream(SPARQLEndPoint endPoint, Query query) {
+        return this.querySelectStream(endPoint, query, new ArrayList<>(), new ArrayList<>());
     }
 
-    public ResultSet querySelect(URL sparqlEndpoint, String timeout, Query query, List<String> graphs, HttpClient creds) {
-        return this.querySelect(sparqlEndpoint, timeout, query, graphs, new ArrayList<>(), creds);
+    public ResultSetCloseable querySelectStream(SPARQLEndPoint endPoint, Query query, List<String> graphs) {
+        return this.querySelectStream(endPoint, query, graphs, new ArrayList<>());
     }
 
-    public ResultSet querySelect(URL sparqlEndpoint, String timeout, Query query, List<String> graphs,
-                                 List<String> namedGraphs, HttpClient creds) {
+    public ResultSetCloseable querySelectStream(SPARQLEndPoint endPoint, Query query, List<String> graphs,
+                                                List<String> namedGraphs) {
+        return this.querySelectStream(endPoint, query, graphs, namedGraphs, false);
+    }
+
+    /**
+     * Rows are parsed from the HTTP response as they are consumed, so callers must close the
+     * returned result set, which also closes the remote query execution. Bounded queries, those
+     * with a limit or a single aggregated row, are read in full and shared with identical
+     * concurrent requests, and only those are hedged when requested.
+     */
+    public ResultSetCloseable querySelectStream(SPARQLEndPoint endPoint, Query query, List<String> graphs,
+                                                List<String> namedGraphs, boolean hedged) {
         graphs.forEach(query::addGraphURI);
         namedGraphs.forEach(query::addNamedGraphURI);
-        logger.info("Sending to {} query: \n{}", sparqlEndpoint, query);
-        QueryExecutionHTTPBuilder qBuilder = QueryExecutionHTTPBuilder.create();
-        qBuilder.query(query).endpoint(sparqlEndpoint.toString()).httpClient(creds);
-        if (timeout != null)
-            qBuilder.param("timeout", timeout);
-        QueryExecutionHTTP qExec = qBuilder.build();
-        ResultSet result = ResultSetFactory.copyResults(qExec.execSelect());
-        qExec.close();
-        return result;
+        if (query.hasLimit() || (query.hasAggregators() && !query.hasGroupBy())) {
+            SelectRows rows = coalescer.coalesce(coalescer.key(endPoint, query), () -> hedged ?
+                    hedging.execute(endPoint, () -> selectRows(endPoint, query)) : selectRows(endPoint, query));
+            return rows.resultSet();
+        }
+        return execSelect(endPoint, query);
     }
 
-    public Model queryDescribe(SPARQLEndPoint endpoint, String timeout, Query query, List<String> graphs,
-                               HttpClient creds) {
-        graphs.forEach(query::addGraphURI);
-        String queryString = query.toString();
-        if (endpoint.getType() == SPARQLEndPoint.ServerType.VIRTUOSO) {
-            queryString = "DEFINE sql:describe-mode \"CBD\" \n" + queryString;
-        } else if (endpoint.getType() == SPARQLEndPoint.ServerType.STARDOG) {
-            queryString = "#pragma describe.strategy cbd \n" + queryString;
+    private SelectRows selectRows(SPARQLEndPoint endPoint, Query query) {
+        try (ResultSetCloseable results = execSelect(endPoint, query)) {
+            return new SelectRows(results);
         }
-        logger.info("Sending to {} query: \n{}", endpoint.getQueryEndPoint(), queryString);
-        QueryExecutionHTTPBuilder qBuilder = QueryExecutionHTTPBuilder.create();
-        qBuilder.query(query).endpoint(endpoint.getQueryEndPoint().toString()).httpClient(creds);
-        if (timeout != null)
-            qBuilder.param("timeout", timeout);
-        if (endpoint.getType() == SPARQLEndPoint.ServerType.MARKLOGIC)
-            qBuilder.acceptHeader("application/n-triples"); // Workaround for MarkLogic
-        return qBuilder.build().execDescribe();
     }
 
-    public Model queryConstruct(SPARQLEndPoint endpoint, String timeout, Query query, List<String> graphs,
-                                List<String> namedGraphs, HttpClient creds) {
+    private ResultSetCloseable execSelect(SPARQLEndPoint endPoint, Query query) {
+        return retry.execute(endPoint, () -> attemptSelect(endPoint, query));
+    }
+
+    private ResultSetCloseable attemptSelect(SPARQLEndPoint endPoint, Query query) {
+        QueryCancellation cancellation = QueryCancellation.current();
+        cancellation.checkCancelled();
+        QueryKind kind = QueryTimeouts.currentKind();
+        circuitBreaker.checkAvailable(endPoint);
+        QueryCancellation.Registration registration = cancellation.interruptOnCancel();
+        EndPointBulkhead.Permit permit = null;
+        ReplicaRouter.Route route = null;
+        QueryExecutionHTTP qExec = null;
+        long start = System.nanoTime();
+        try {
+            permit = bulkhead.acquire(endPoint);
+            route = replicaRouter.route(endPoint);
+            logger.debug("Sending to {} query: \n{}", route.getUrl(), query);
+            qExec = queryBuilder(endPoint, route.getUrl(), query).build();
+            start = System.nanoTime();
+            ResultSet results = qExec.execSelect();
+            circuitBreaker.recordSuccess(endPoint, System.nanoTime() - start);
+            route.recordSuccess(System.nanoTime() - start);
+            timeouts.record(endPoint, kind, System.nanoTime() - start);
+            EndPointBulkhead.Permit heldPermit = permit;
+            ReplicaRouter.Route heldRoute = route;
+            return new ResultSetCloseable(results, qExec) {
+                @Override
+                public void close() {
+                    try { super.close(); } finally { heldRoute.close(); heldPermit.close(); registration.close(); }
+                }
+            };
+        } catch (RuntimeException e) {
+            RuntimeException failure = cancellation.failure(e);
+            circuitBreaker.recordFailure(endPoint, System.nanoTime() - start, failure);
+            if (qExec != null)
+                qExec.close();
+            if (route != null) {
+                if (!cancellation.isCancelled())
+                    route.recordFailure(System.nanoTime() - start);
+                route.close();
+            }
+            if (permit != null)
+                permit.close();
+            registration.close();
+            throw timedOut(endPoint, kind, System.nanoTime() - start, failure);
+        }
+    }
+
+    public Model queryDescribe(SPARQLEndPoint endpoint, Query query, List<String> graphs) {
+        return this.queryDescribe(endpoint, query, graphs, false);
+    }
+
+    public Model queryDescribe(SPARQLEndPoint endpoint, Query query, List<String> graphs, boolean hedged) {
+        graphs.forEach(query::addGraphURI);
+        return executeRead(endpoint, hedged, url -> {
+            if (logger.isDebugEnabled()) {
+                String queryString = query.toString();
+                if (endpoint.getType() == SPARQLEndPoint.ServerType.VIRTUOSO) {
+                    queryString = "DEFINE sql:describe-mode \"CBD\" \n" + queryString;
+                } else if (endpoint.getType() == SPARQLEndPoint.ServerType.STARDOG) {
+                    queryString = "#pragma describe.strategy cbd \n" + queryString;
+                }
+                logger.debug("Sending to {} query: \n{}", url, queryString);
+            }
+            QueryExecutionHTTPBuilder qBuilder = queryBuilder(endpoint, url, query);
+            if (endpoint.getType() == SPARQLEndPoint.ServerType.MARKLOGIC)
+                qBuilder.acceptHeader("application/n-triples"); // Workaround for MarkLogic
+            return qBuilder.build().execDescribe();
+        });
+    }
+
+    public Model queryConstruct(SPARQLEndPoint endpoint, Query query, List<String> graphs,
+                                List<String> namedGraphs) {
+        return this.queryConstruct(endpoint, query, graphs, namedGraphs, false);
+    }
+
+    /**
+     * Identical concurrent construct queries share a single execution, each caller gets its own copy.
+     */
+    public Model queryConstruct(SPARQLEndPoint endpoint, Query query, List<String> graphs,
+                                List<String> namedGraphs, boolean hedged) {
         logger.info("INSIDE4");
         graphs.forEach(query::addGraphURI);
         logger.info("INSIDE5");
         //namedGraphs.forEach(query::addNamedGraphURI);
-        logger.info("Sending to {} query: \n{}", endpoint.getQueryEndPoint(), query);
-        QueryExecutionHTTPBuilder qBuilder = QueryExecutionHTTPBuilder.create();
-        qBuilder.query(query).endpoint(endpoint.getQueryEndPoint().toString()).httpClient(creds);
-        if (timeout != null)
-            qBuilder.param("timeout", timeout);
-        if (endpoint.getType() == SPARQLEndPoint.ServerType.MARKLOGIC)
-            qBuilder.acceptHeader("application/n-triples"); // Workaround for MarkLogic
-        return qBuilder.build().execConstruct();
+        Model shared = coalescer.coalesce(coalescer.key(endpoint, query), () -> execConstruct(endpoint, query, hedged));
+        return ModelFactory.createDefaultModel().add(shared);
+    }
+
+    private Model execConstruct(SPARQLEndPoint endpoint, Query query, boolean hedged) {
+        return executeRead(endpoint, hedged, url -> {
+            logger.debug("Sending to {} query: \n{}", url, query);
+            QueryExecutionHTTPBuilder qBuilder = queryBuilder(endpoint, url, query);
+            if (endpoint.getType() == SPARQLEndPoint.ServerType.MARKLOGIC)
+                qBuilder.acceptHeader("application/n-triples"); // Workaround for MarkLogic
+            return qBuilder.build().execConstruct();
+        });
     }
 
-    public void queryUpdate(URL sparqlEndpoint, UpdateRequest update, HttpClient creds) {
-        logger.info("Sending to {} query: \n{}", sparqlEndpoint, update.toString());
+    /**
+     * Non-blocking counterpart of {@link #querySelect(SPARQLEndPoint, Query, List, List)}, no
+     * thread waits while the query is queued or sent. The result is read in full.
+     */
+    public CompletableFuture<ResultSet> querySelectAsync(SPARQLEndPoint endPoint, Query query, List<String> graphs,
+                                                         List<String> namedGraphs) {
+        return querySelectAsync(endPoint, query, graphs, namedGraphs, false);
+    }
+
+    public CompletableFuture<ResultSet> querySelectAsync(SPARQLEndPoint endPoint, Query query, List<String> graphs,
+                                                         List<String> namedGraphs, boolean hedged) {
+        graphs.forEach(query::addGraphURI);
+        namedGraphs.forEach(query::addNamedGraphURI);
+        CompletableFuture<SelectRows> rows = coalescer.coalesceAsync(coalescer.key(endPoint, query), () ->
+                executeAsync(endPoint, query, hedged, response -> {
+                    Lang lang = WebContent.contentTypeToLangResultSet(contentType(response));
+                    try (InputStream body = body(response)) {
+                        return new SelectRows(ResultSetMgr.read(body, lang != null ? lang : ResultSetLang.RS_XML));
+                    }
+                }));
+        return rows.thenApply(selectRows -> selectRows.resultSet());
+    }
+
+    public CompletableFuture<Model> queryConstructAsync(SPARQLEndPoint endpoint, Query query, List<String> graphs,
+                                                        List<String> namedGraphs) {
+        return queryConstructAsync(endpoint, query, graphs, namedGraphs, false);
+    }
+
+    public CompletableFuture<Model> queryConstructAsync(SPARQLEndPoint endpoint, Query query, List<String> graphs,
+                                                        List<String> namedGraphs, boolean hedged) {
+        graphs.forEach(query::addGraphURI);
+        CompletableFuture<Model> shared = coalescer.coalesceAsync(coalescer.key(endpoint, query), () ->
+                executeAsync(endpoint, query, hedged, SPARQLService::parseGraph));
+        return shared.thenApply(model -> ModelFactory.createDefaultModel().add(model));
+    }
+
+    public CompletableFuture<Model> queryDescribeAsync(SPARQLEndPoint endpoint, Query query, List<String> graphs) {
+        return queryDescribeAsync(endpoint, query, graphs, false);
+    }
+
+    public CompletableFuture<Model> queryDescribeAsync(SPARQLEndPoint endpoint, Query query, List<String> graphs,
+                                                       boolean hedged) {
+        graphs.forEach(query::addGraphURI);
+        return executeAsync(endpoint, query, hedged, SPARQLService::parseGraph);
+    }
+
+    private <T> CompletableFuture<T> executeAsync(SPARQLEndPoint endPoint, Query query, boolean hedged,
+                                                  ResponseParser<T> parser) {
+        QueryKind kind = QueryTimeouts.currentKind();
+        QueryPriority priority = QueryPriority.current();
+        Supplier<CompletableFuture<T>> read = () -> {
+            QueryCancellation cancellation = QueryCancellation.current();
+            return retry.executeAsync(endPoint, () -> attemptAsync(endPoint, query, kind, priority, cancellation, parser));
+        };
+        return hedged ? hedging.executeAsync(endPoint, read) : read.get();
+    }
+
+    /**
+     * Same admission, routing and accounting as {@link #attemptSelect(SPARQLEndPoint, Query)}, but
+     * the query is sent with {@link HttpClient#sendAsync} and parsed once the whole response body
+     * has arrived.
+     */
+    private <T> CompletableFuture<T> attemptAsync(SPARQLEndPoint endPoint, Query query, QueryKind kind,
+                                                  QueryPriority priority, QueryCancellation cancellation,
+                                                  ResponseParser<T> parser) {
+        try {
+            cancellation.checkCancelled();
+            circuitBreaker.checkAvailable(endPoint);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<EndPointBulkhead.Permit> admission = bulkhead.acquireAsync(endPoint, priority);
+        QueryCancellation.Registration queued = cancellation.register(() -> admission.cancel(false));
+        return admission.whenComplete((permit, e) -> {
+            queued.close();
+            if (e != null)
+                circuitBreaker.recordFailure(endPoint, 0, cancellation.failure(QueryRetry.unwrap(e)));
+        }).thenCompose(permit -> {
+            ReplicaRouter.Route route;
+            try {
+                route = replicaRouter.route(endPoint);
+            } catch (RuntimeException e) {
+                circuitBreaker.release(endPoint);
+                permit.close();
+                throw e;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<byte[]>> exchange;
+            try {
+                long budget = timeouts.budget(endPoint, kind);
+                logger.debug("Sending to {} query: \n{}", route.getUrl(), query);
+                exchange = clientRegistry.queryClient(endPoint)
+                        .sendAsync(asyncRequest(endPoint, route.getUrl(), query, budget), HttpResponse.BodyHandlers.ofByteArray());
+            } catch (RuntimeException e) {
+                exchange = CompletableFuture.failedFuture(e);
+            }
+            CompletableFuture<HttpResponse<byte[]>> sent = exchange;
+            QueryCancellation.Registration registration = cancellation.register(() -> sent.cancel(true));
+            return sent.handle((response, error) -> {
+                long elapsed = System.nanoTime() - start;
+                try {
+                    if (error != null)
+                        throw exchangeFailure(error);
+                    if (response.statusCode() >= 300)
+                        throw new QueryRetry.ResponseException(response, String.format("%d from %s",
+                                response.statusCode(), route.getUrl()));
+                    T result = parser.parse(response);
+                    circuitBreaker.recordSuccess(endPoint, elapsed);
+                    route.recordSuccess(elapsed);
+                    timeouts.record(endPoint, kind, elapsed);
+                    return result;
+                } catch (RuntimeException | IOException e) {
+                    RuntimeException failure = cancellation.failure(exchangeFailure(e));
+                    circuitBreaker.recordFailure(endPoint, elapsed, failure);
+                    if (!cancellation.isCancelled())
+                        route.recordFailure(elapsed);
+                    throw timedOut(endPoint, kind, elapsed, failure);
+                } finally {
+                    registration.close();
+                    route.close();
+                    permit.close();
+                }
+            });
+        });
+    }
+
+    private HttpRequest asyncRequest(SPARQLEndPoint endPoint, String url, Query query, long budget) {
+        String format = query.isSelectType() ? endPoint.getSelectFormat() : endPoint.getGraphFormat();
+        if (!query.isSelectType() && endPoint.getType() == SPARQLEndPoint.ServerType.MARKLOGIC)
+            format = "application/n-triples"; // Workaround for MarkLogic
+        else if (format == null)
+            format = query.isSelectType() ? WebContent.defaultSparqlResultsHeader : WebContent.defaultGraphAcceptHeader;
+        String form = "query=" + URLEncoder.encode(query.serialize(), StandardCharsets.UTF_8) +
+                "&timeout=" + URLEncoder.encode(QueryTimeouts.serverTimeout(endPoint, budget), StandardCharsets.UTF_8);
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis(timeouts.clientTimeout(budget)))
+                .header("Content-Type", WebContent.contentTypeHTMLForm)
+                .header("Accept", format)
+                .POST(HttpRequest.BodyPublishers.ofString(form));
+        if (gzip)
+            request.header("Accept-Encoding", "gzip");
+        return request.build();
+    }
+
+    private static RuntimeException exchangeFailure(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof IOException)
+            return new QueryExceptionHTTP(cause);
+        return QueryRetry.unwrap(cause);
+    }
+
+    private static Model parseGraph(HttpResponse<byte[]> response) throws IOException {
+        String contentType = contentType(response);
+        Lang lang = contentType != null ? RDFLanguages.contentTypeToLang(contentType) : null;
+        if (lang == null)
+            throw new QueryException("Endpoint returned Content-Type: " + contentType + " which is not supported");
+        Model model = ModelFactory.createDefaultModel();
+        try (InputStream body = body(response)) {
+            RDFDataMgr.read(model, body, lang);
+        }
+        return model;
+    }
+
+    private static String contentType(HttpResponse<?> response) {
+        return response.headers().firstValue("Content-Type").map(value -> value.split(";")[0].trim()).orElse(null);
+    }
+
+    private static InputStream body(HttpResponse<byte[]> response) throws IOException {
+        InputStream body = new ByteArrayInputStream(response.body());
+        if (response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false))
+            return new GZIPInputStream(body);
+        return body;
+    }
+
+    @FunctionalInterface
+    private interface ResponseParser<T> {
+        T parse(HttpResponse<byte[]> response) throws IOException;
+    }
+
+    public void queryUpdate(SPARQLEndPoint endPoint, UpdateRequest update) {
+        logger.info("Sending to {} query: \n{}", endPoint.getUpdateEndPoint(), update.toString());
         UpdateExecutionHTTPBuilder uBuilder = UpdateExecutionHTTPBuilder.create();
-        uBuilder.update(update).endpoint(sparqlEndpoint.toString()).httpClient(creds);
+        uBuilder.update(update).endpoint(endPoint.getUpdateEndPoint().toString())
+                .httpClient(clientRegistry.updateClient(endPoint));
         UpdateProcessor processor = uBuilder.build();
-        processor.execute();
+        execute(endPoint, () -> { processor.execute(); return null; });
+    }
+
+    private QueryExecutionHTTPBuilder queryBuilder(SPARQLEndPoint endPoint, String url, Query query) {
+        QueryExecutionHTTPBuilder qBuilder = QueryExecutionHTTPBuilder.create();
+        qBuilder.query(query).endpoint(url).httpClient(clientRegistry.queryClient(endPoint));
+        long budget = timeouts.budget(endPoint, QueryTimeouts.currentKind());
+        qBuilder.param("timeout", QueryTimeouts.serverTimeout(endPoint, budget));
+        qBuilder.timeout(timeouts.clientTimeout(budget), TimeUnit.MILLISECONDS);
+        String format = query.isSelectType() ? endPoint.getSelectFormat() : endPoint.getGraphFormat();
+        if (format != null)
+            qBuilder.acceptHeader(format);
+        if (gzip)
+            qBuilder.httpHeader("Accept-Encoding", "gzip");
+        return qBuilder;
     }
 
-    public long countGraphTriples(URL sparqlEndPoint, String timeout, String graph, HttpClient creds) {
+    /**
+     * Finds out the most compact result formats the endpoint answers with, for select and for
+     * construct or describe queries, and records them in the endpoint so later queries ask just
+     * for them. Formats that the endpoint answers with but cannot be parsed are discarded.
+     */
+    public void negotiateResultFormats(SPARQLEndPoint endPoint) {
+        endPoint.setSelectFormat(null);
+        endPoint.setGraphFormat(null);
+        Query select = QueryFactory.create("SELECT * WHERE { ?s ?p ?o } LIMIT 1");
+        Query construct = QueryFactory.create("CONSTRUCT WHERE { ?s ?p ?o } LIMIT 1");
+        endPoint.getGraphs().forEach(graph -> { select.addGraphURI(graph); construct.addGraphURI(graph); });
+        endPoint.setSelectFormat(probeFormat(endPoint, select, ResultFormats.SELECT,
+                qExec -> ResultSetFormatter.consume(qExec.execSelect())));
+        endPoint.setGraphFormat(probeFormat(endPoint, construct, ResultFormats.GRAPH, QueryExecution::execConstruct));
+        logger.info("Endpoint {} answers select queries as {} and graphs as {}",
+                endPoint.getQueryEndPoint(), endPoint.getSelectFormat(), endPoint.getGraphFormat());
+    }
+
+    private String probeFormat(SPARQLEndPoint endPoint, Query query, List<Lang> formats,
+                               Consumer<QueryExecutionHTTP> execution) {
+        List<Lang> candidates = new ArrayList<>(formats);
+        while (!candidates.isEmpty()) {
+            QueryExecutionHTTPBuilder qBuilder = queryBuilder(endPoint, endPoint.getQueryEndPoint().toString(), query)
+                    .acceptHeader(ResultFormats.acceptHeader(candidates));
+            try (EndPointBulkhead.Permit permit = bulkhead.acquire(endPoint);
+                 QueryExecutionHTTP qExec = qBuilder.build()) {
+                try {
+                    execution.accept(qExec);
+                } catch (QueryExceptionHTTP | HttpException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    Lang failed = ResultFormats.lang(candidates, qExec.getHttpResponseContentType());
+                    if (failed == null)
+                        return null;
+                    logger.info("Discarding format {} for endpoint {}: {}",
+                            failed, endPoint.getQueryEndPoint(), e.getMessage());
+                    candidates.remove(failed);
+                    continue;
+                }
+                Lang answered = ResultFormats.lang(candidates, qExec.getHttpResponseContentType());
+                return answered == null ? null : answered.getContentType().getContentTypeStr();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a remote execution once the endpoint circuit is closed and there is a free slot for it,
+     * recording its outcome in the endpoint health.
+     */
+    private <T> T execute(SPARQLEndPoint endPoint, Supplier<T> execution) {
+        circuitBreaker.checkAvailable(endPoint);
+        long start = System.nanoTime();
+        try (EndPointBulkhead.Permit permit = bulkhead.acquire(endPoint)) {
+            start = System.nanoTime();
+            T result = execution.get();
+            circuitBreaker.recordSuccess(endPoint, System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            RuntimeException failure = QueryCancellation.current().failure(e);
+            circuitBreaker.recordFailure(endPoint, System.nanoTime() - start, failure);
+            throw failure;
+        }
+    }
+
+    private <T> T executeRead(SPARQLEndPoint endPoint, boolean hedged, Function<String, T> execution) {
+        if (hedged)
+            return hedging.execute(endPoint, () -> executeRead(endPoint, execution));
+        return executeRead(endPoint, execution);
+    }
+
+    /**
+     * Like {@link #execute(SPARQLEndPoint, Supplier)} but sent to the query URL of the endpoint
+     * chosen among its read replicas, and aborted if the current {@link QueryCancellation} is
+     * cancelled meanwhile. Transient failures are retried.
+     */
+    private <T> T executeRead(SPARQLEndPoint endPoint, Function<String, T> execution) {
+        return retry.execute(endPoint, () -> attemptRead(endPoint, execution));
+    }
+
+    private <T> T attemptRead(SPARQLEndPoint endPoint, Function<String, T> execution) {
+        QueryCancellation cancellation = QueryCancellation.current();
+        cancellation.checkCancelled();
+        QueryKind kind = QueryTimeouts.currentKind();
+        long queued = System.nanoTime();
+        try (QueryCancellation.Registration registration = cancellation.interruptOnCancel()) {
+            return execute(endPoint, () -> {
+                try (ReplicaRouter.Route route = replicaRouter.route(endPoint)) {
+                    long start = System.nanoTime();
+                    try {
+                        T result = execution.apply(route.getUrl());
+                        route.recordSuccess(System.nanoTime() - start);
+                        timeouts.record(endPoint, kind, System.nanoTime() - start);
+                        return result;
+                    } catch (RuntimeException e) {
+                        if (!cancellation.isCancelled())
+                            route.recordFailure(System.nanoTime() - start);
+                        throw e;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            throw timedOut(endPoint, kind, System.nanoTime() - queued, e);
+        }
+    }
+
+    /**
+     * Queries that exceed their timeout budget are reported as a gateway timeout, once their
+     * failure has been recorded in the endpoint health.
+     */
+    private RuntimeException timedOut(SPARQLEndPoint endPoint, QueryKind kind, long elapsedNanos, RuntimeException e) {
+        if (!QueryTimeouts.isTimeout(e))
+            return e;
+        timeouts.record(endPoint, kind, elapsedNanos);
+        return new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT,
+                String.format("SPARQL endpoint %s did not answer %s query in time", endPoint.getQueryEndPoint(), kind), e);
+    }
+
+    public long countGraphTriples(SPARQLEndPoint endPoint, String graph) {
         Query countTriples = queries.getQueryCountTriples();
         countTriples.addGraphURI(graph);
-        ResultSet result = querySelect(sparqlEndPoint, timeout, countTriples, creds);
+        ResultSet result = querySelect(endPoint, countTriples);
         long count = 0;
         while (result.hasNext()) {
             QuerySolution soln = result.nextSolution();
@@ -114,31 +557,54 @@ public class SPARQLService {
         return count;
     }
 
-    public void loadURI(URL sparqlEndpoint, SPARQLEndPoint.ServerType endPointType, String graph, String uri, HttpClient creds) {
+    public void loadURI(SPARQLEndPoint endPoint, String graph, String uri) {
         Model model = RDFDataMgr.loadModel(uri);
-        loadModel(sparqlEndpoint, endPointType, graph, model, creds);
+        loadModel(endPoint, graph, model);
     }
 
-    public void loadModel(URL sparqlEndPoint, SPARQLEndPoint.ServerType endPointType, String graph, Model model, HttpClient creds) {
+    public void loadModel(SPARQLEndPoint endPoint, String graph, Model model) {
         StringWriter out = new StringWriter();
         RDFDataMgr.write(out, model, Lang.NTRIPLES);
-        queryUpdate(sparqlEndPoint, queries.getInsertData(endPointType, graph, out.toString()), creds);
+        QueryPriority.BULK.run(() ->
+                queryUpdate(endPoint, queries.getInsertData(endPoint.getType(), graph, out.toString())));
     }
 
-    public void clearGraph(URL sparqlEndPoint, String graph, HttpClient creds) {
+    public void clearGraph(SPARQLEndPoint endPoint, String graph) {
         UpdateRequest clearGraph = queries.getClearGraph(graph);
-        queryUpdate(sparqlEndPoint, clearGraph, creds);
+        queryUpdate(endPoint, clearGraph);
     }
 
-    public void dropGraph(URL sparqlEndPoint, String graph, HttpClient creds) {
+    public void dropGraph(SPARQLEndPoint endPoint, String graph) {
         UpdateRequest clearGraph = queries.getDropGraph(graph);
-        queryUpdate(sparqlEndPoint, clearGraph, creds);
+        queryUpdate(endPoint, clearGraph);
     }
 
-    public void inferTypes(String targetGraph, SPARQLEndPoint endPoint, HttpClient creds) {
+    public void inferTypes(String targetGraph, SPARQLEndPoint endPoint) {
         List<String> sourceGraphs = endPoint.getGraphs();
         sourceGraphs.addAll(endPoint.getOntologyGraphs());
         UpdateRequest update = queries.getUpdateInferTypes(sourceGraphs, targetGraph);
-        queryUpdate(endPoint.getUpdateEndPoint(), update, creds);
+        QueryPriority.BULK.run(() -> queryUpdate(endPoint, update));
+    }
+
+    /**
+     * Immutable copy of a select result that can be iterated independently by several callers.
+     */
+    private static final class SelectRows {
+        private final List<String> vars;
+        private final List<Binding> bindings = new ArrayList<>();
+
+        SelectRows(ResultSet results) {
+            this.vars = results.getResultVars();
+            while (results.hasNext())
+                bindings.add(results.nextBinding());
+        }
+
+        ResultSetCloseable resultSet() {
+            ResultSet results = ResultSetStream.create(vars, ModelFactory.createDefaultModel(), bindings.iterator());
+            return new ResultSetCloseable(results, null) {
+                @Override
+                public void close() { }
+            };
+        }
     }
 }
@@ -700,9 +700,12 @@ public class APIStepdefs {
 
     @When("^I retrieve facet range \"([^\"]*)\" values$")
     public void iRetrieveFacetRangeValues(String facetRangeId, List<ExpectedRangeValue> expectedRangeValues) throws Throwable {
-        String json = mockMvc.perform(get(facetRangeId + "/values")
+        MvcResult started = mockMvc.perform(get(facetRangeId + "/values")
                 .accept(MediaType.APPLICATION_JSON)
                 .with(authenticate()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        String json = mockMvc.perform(asyncDispatch(started))
                 .andDo(MockMvcResultHandlers.print())
                 .andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
@@ -1,12 +1,20 @@
 package net.rhizomik.rhizomer.model;
 
+import net.rhizomik.rhizomer.service.Filters;
 import net.rhizomik.rhizomer.service.Queries;
 import net.rhizomik.rhizomer.service.OptimizedQueries;
+import net.rhizomik.rhizomer.service.QueryTemplate;
+import org.apache.jena.query.ParameterizedSparqlString;
+import org.apache.jena.query.Query;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.Matchers;
 import org.junit.Test;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
 
+import java.util.List;
+
 import static org.hamcrest.MatcherAssert.*;
 
 /**
@@ -73,4 +81,70 @@ public class QueriesTest {
         assertThat(StringUtils.countOccurrencesOf(selectsUnion, "\n"), Matchers.is(0));
         assertThat(selectsUnion, Matchers.is(""));
     }
+
+    @Test
+    public void testResourcesLabelsInOneQuery() throws Exception {
+        String query = queries.getQueryResourcesLabels(
+                List.of("http://example.org/a", "http://example.org/b")).toString();
+        assertThat(StringUtils.countOccurrencesOf(query, "VALUES"), Matchers.is(1));
+        assertThat(query, Matchers.containsString("<http://example.org/a>"));
+        assertThat(query, Matchers.containsString("<http://example.org/b>"));
+    }
+
+    @Test
+    public void testTemplateBindsLikeParameterizedQuery() throws Exception {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add("http://example.org/city", "\"Barcelona\"");
+        Filters filters = Filters.of(parameters);
+        Query templated = queries.getQueryClassInstancesCount(null, "http://example.org/Person", filters);
+
+        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
+        pQuery.setCommandText(Queries.prefixes +
+                "SELECT (COUNT(DISTINCT ?instance) AS ?n) \n" +
+                "WHERE { \n" +
+                "\t ?instance a ?class . \n" +
+                queries.getFilterPatterns(null, filters) +
+                "}");
+        pQuery.setIri("class", "http://example.org/Person");
+        assertThat(templated, Matchers.equalTo(pQuery.asQuery()));
+    }
+
+    @Test
+    public void testTemplateParsedOnceAndNotModifiedByBoundQueries() throws Exception {
+        String text = "SELECT ?s WHERE { ?s a ?type }";
+        QueryTemplate template = QueryTemplate.of(text);
+        assertThat(QueryTemplate.of(text), Matchers.sameInstance(template));
+
+        Query first = template.bind("type", "http://example.org/A");
+        first.setLimit(10);
+        Query second = template.bind("type", "http://example.org/B");
+        assertThat(second.hasLimit(), Matchers.is(false));
+        assertThat(second.toString(), Matchers.containsString("<http://example.org/B>"));
+        assertThat(second.toString(), Matchers.not(Matchers.containsString("?type")));
+    }
+
+    @Test
+    public void testFacetsValuesInOneQuery() throws Exception {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add("http://example.org/city", "\"Barcelona\"");
+        String query = queries.getQueryFacetsValues(null, "http://example.org/Person",
+                List.of("http://example.org/name", "http://example.org/knows"), Filters.of(parameters), 5)
+                .toString().replaceAll("\\s+", " ");
+        assertThat(StringUtils.countOccurrencesOf(query, "SELECT DISTINCT ?instance"), Matchers.is(1));
+        assertThat(StringUtils.countOccurrencesOf(query, "Barcelona"), Matchers.is(1));
+        assertThat(StringUtils.countOccurrencesOf(query, "VALUES"), Matchers.is(1));
+        assertThat(StringUtils.countOccurrencesOf(query, "UNION"), Matchers.is(0));
+        assertThat(query, Matchers.containsString("<http://example.org/name>"));
+        assertThat(query, Matchers.containsString("<http://example.org/knows>"));
+        assertThat(query, Matchers.containsString("DESC(?count)"));
+    }
+
+    @Test
+    public void testFacetsValuesLimitedForAllFacets() throws Exception {
+        Query query = queries.getQueryFacetsValues(null, "http://example.org/Person",
+                List.of("http://example.org/name", "http://example.org/knows", "http://example.org/age"),
+                Filters.NONE, 5);
+        assertThat(query.getLimit(), Matchers.is(3L * 5 * Queries.FACETS_VALUES_OVERFETCH));
+        assertThat(StringUtils.countOccurrencesOf(query.toString(), "GROUP BY"), Matchers.is(1));
+    }
 }
@@ -0,0 +1,121 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.handler.ClientConnectionValve;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientDisconnectDetectorTest {
+    private final ClientDisconnectDetector detector = new ClientDisconnectDetector();
+    private final CompletableFuture<Void> exchange = new CompletableFuture<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private Tomcat tomcat;
+
+    @Before
+    public void setUp() throws Exception {
+        ReflectionTestUtils.setField(detector, "interval", 50L);
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+        tomcat.setPort(0);
+        Context context = tomcat.addContext("", null);
+        context.getPipeline().addValve(new ClientConnectionValve());
+        Wrapper wrapper = Tomcat.addServlet(context, "query", new QueryServlet());
+        wrapper.setAsyncSupported(true);
+        context.addServletMappingDecoded("/", "query");
+        tomcat.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        detector.shutdown();
+    }
+
+    @Test
+    public void testQueriesCancelledWhenClientDisconnectsMidQuery() throws Exception {
+        try (Socket client = new Socket("localhost", tomcat.getConnector().getLocalPort())) {
+            OutputStream out = client.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+        }
+        try {
+            exchange.get(5, TimeUnit.SECONDS);
+            fail("The exchange should be cancelled");
+        } catch (CancellationException e) {
+            assertTrue(exchange.isCancelled());
+        }
+    }
+
+    @Test
+    public void testQueriesNotCancelledWhileClientWaits() throws Exception {
+        try (Socket client = new Socket("localhost", tomcat.getConnector().getLocalPort())) {
+            OutputStream out = client.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Thread.sleep(500);
+            assertFalse(exchange.isDone());
+            exchange.complete(null);
+        }
+    }
+
+    /**
+     * Streams a response whose query, the exchange, only finishes when completed or cancelled.
+     */
+    private final class QueryServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+            StreamingResponseBody body;
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+            try {
+                body = detector.cancelOnDisconnect(outputStream -> {
+                    try (QueryCancellation.Registration registration =
+                                 QueryCancellation.current().register(() -> exchange.cancel(true))) {
+                        started.countDown();
+                        exchange.join();
+                    }
+                });
+            } finally {
+                RequestContextHolder.resetRequestAttributes();
+            }
+            AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            async.start(() -> {
+                try {
+                    body.writeTo(response.getOutputStream());
+                } catch (IOException e) {
+                    // The client is gone
+                } finally {
+                    async.complete();
+                }
+            });
+        }
+    }
+}
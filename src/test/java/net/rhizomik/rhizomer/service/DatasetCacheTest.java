@@ -0,0 +1,83 @@
+package net.rhizomik.rhizomer.service;
+
+import org.junit.Test;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DatasetCacheTest {
+
+    @Test
+    public void testEntriesExpireAndLeastRecentlyUsedAreEvicted() {
+        AtomicLong now = new AtomicLong();
+        DatasetCache<String> cache = new DatasetCache<>(2, 1000, 0, now::get);
+        cache.put("d1", 0, "a", "A");
+        cache.put("d1", 0, "b", "B");
+        assertEquals("A", cache.get("d1", 0, "a"));
+        cache.put("d1", 0, "c", "C");
+        assertNull(cache.get("d1", 0, "b"));
+        assertEquals("A", cache.get("d1", 0, "a"));
+        now.set(1000);
+        assertNull(cache.get("d1", 0, "c"));
+        assertEquals(2, cache.getStats("d1").getHits());
+        assertEquals(2, cache.getStats("d1").getMisses());
+    }
+
+    @Test
+    public void testStaleEntriesServedUntilMaxStaleAndRefreshedOnce() {
+        AtomicLong now = new AtomicLong();
+        DatasetCache<String> cache = new DatasetCache<>(10, 1000, 500, now::get);
+        cache.put("d1", 0, "a", "A");
+        assertFalse(cache.lookup("d1", 0, "a").claimRefresh());
+        now.set(1200);
+        assertNull(cache.get("d1", 0, "a"));
+        DatasetCache.Hit<String> stale = cache.lookup("d1", 0, "a");
+        assertEquals("A", stale.getValue());
+        assertEquals(1200, stale.getAge());
+        assertTrue(stale.claimRefresh());
+        assertFalse(cache.lookup("d1", 0, "a").claimRefresh());
+        stale.releaseRefresh();
+        assertTrue(cache.lookup("d1", 0, "a").claimRefresh());
+        now.set(1500);
+        assertNull(cache.lookup("d1", 0, "a"));
+        assertEquals(3, cache.getStats("d1").getStaleHits());
+    }
+
+    @Test
+    public void testEvictOnlyFlushesTheDataset() {
+        DatasetCache<String> cache = new DatasetCache<>(10, 1000);
+        cache.put("d1", 0, "a", "A");
+        cache.put("d2", 0, "a", "A");
+        cache.evict("d1");
+        assertNull(cache.get("d1", 0, "a"));
+        assertEquals("A", cache.get("d2", 0, "a"));
+    }
+
+    @Test
+    public void testEntriesOfPreviousGenerationsNotReturned() {
+        DatasetCache<String> cache = new DatasetCache<>(10, 1000);
+        cache.put("d1", 0, "a", "A");
+        assertNull(cache.get("d1", 1, "a"));
+        cache.put("d1", 1, "a", "B");
+        assertEquals("B", cache.get("d1", 1, "a"));
+    }
+
+    @Test
+    public void testCanonicalFiltersIgnoreOrder() {
+        MultiValueMap<String, String> filters = new LinkedMultiValueMap<>();
+        filters.add("rdf:type", "foaf:Person");
+        filters.add("foaf:name", "b");
+        filters.add("foaf:name", "a");
+        MultiValueMap<String, String> reordered = new LinkedMultiValueMap<>();
+        reordered.add("foaf:name", "a");
+        reordered.add("foaf:name", "b");
+        reordered.add("rdf:type", "foaf:Person");
+        assertEquals(QueryResultCaches.canonical(filters), QueryResultCaches.canonical(reordered));
+    }
+}
@@ -0,0 +1,89 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EndPointBulkheadTest {
+
+    EndPointBulkhead bulkhead;
+    SPARQLEndPoint endPoint;
+
+    @Before
+    public void setUp() {
+        bulkhead = new EndPointBulkhead();
+        endPoint = new SPARQLEndPoint();
+        endPoint.setId(1);
+    }
+
+    @Test
+    public void testInteractiveQueriesGoBeforeQueuedAnalysis() throws Exception {
+        List<EndPointBulkhead.Permit> running = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 8; i++)
+            running.add(bulkhead.acquire(endPoint, QueryPriority.ANALYSIS));
+        List<QueryPriority> admitted = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> analysis = CompletableFuture.runAsync(() -> {
+            EndPointBulkhead.Permit permit = bulkhead.acquire(endPoint, QueryPriority.ANALYSIS);
+            admitted.add(QueryPriority.ANALYSIS);
+            permit.close();
+        });
+        waitForQueued(QueryPriority.ANALYSIS);
+        CompletableFuture<Void> interactive = CompletableFuture.runAsync(() -> {
+            EndPointBulkhead.Permit permit = bulkhead.acquire(endPoint, QueryPriority.INTERACTIVE);
+            admitted.add(QueryPriority.INTERACTIVE);
+            permit.close();
+        });
+        waitForQueued(QueryPriority.INTERACTIVE);
+        running.remove(0).close();
+        CompletableFuture.allOf(analysis, interactive).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(QueryPriority.INTERACTIVE, QueryPriority.ANALYSIS), admitted);
+        assertEquals(1, bulkhead.getStats(endPoint).get(QueryPriority.INTERACTIVE).getAdmitted());
+        running.forEach(EndPointBulkhead.Permit::close);
+    }
+
+    @Test
+    public void testAsyncWaitersAreAdmittedOrGiveUpTheirPlace() throws Exception {
+        List<EndPointBulkhead.Permit> running = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 8; i++)
+            running.add(bulkhead.acquire(endPoint, QueryPriority.ANALYSIS));
+        CompletableFuture<EndPointBulkhead.Permit> cancelled = bulkhead.acquireAsync(endPoint, QueryPriority.INTERACTIVE);
+        CompletableFuture<EndPointBulkhead.Permit> queued = bulkhead.acquireAsync(endPoint, QueryPriority.INTERACTIVE);
+        assertEquals(2, bulkhead.getStats(endPoint).get(QueryPriority.INTERACTIVE).getWaiting());
+        cancelled.cancel(false);
+        assertEquals(1, bulkhead.getStats(endPoint).get(QueryPriority.INTERACTIVE).getWaiting());
+        running.remove(0).close();
+        queued.get(5, TimeUnit.SECONDS).close();
+        assertEquals(0, bulkhead.getStats(endPoint).get(QueryPriority.INTERACTIVE).getWaiting());
+        assertEquals(1, bulkhead.getStats(endPoint).get(QueryPriority.INTERACTIVE).getAdmitted());
+        running.forEach(EndPointBulkhead.Permit::close);
+        bulkhead.acquireAsync(endPoint, QueryPriority.INTERACTIVE).get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    public void testBusyOnlyWhileQueriesAreWaiting() throws Exception {
+        List<EndPointBulkhead.Permit> running = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 8; i++)
+            running.add(bulkhead.acquire(endPoint, QueryPriority.BULK));
+        assertFalse(bulkhead.isBusy(endPoint));
+        CompletableFuture<EndPointBulkhead.Permit> queued = bulkhead.acquireAsync(endPoint, QueryPriority.INTERACTIVE);
+        assertTrue(bulkhead.isBusy(endPoint));
+        running.remove(0).close();
+        queued.get(5, TimeUnit.SECONDS).close();
+        assertFalse(bulkhead.isBusy(endPoint));
+        running.forEach(EndPointBulkhead.Permit::close);
+    }
+
+    private void waitForQueued(QueryPriority priority) throws InterruptedException {
+        while (bulkhead.getStats(endPoint).get(priority).getWaiting() == 0)
+            Thread.sleep(10);
+    }
+}
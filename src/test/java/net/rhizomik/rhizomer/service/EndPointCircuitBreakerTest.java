@@ -0,0 +1,79 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.EndPointHealth;
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class EndPointCircuitBreakerTest {
+
+    EndPointCircuitBreaker circuitBreaker;
+    SPARQLEndPoint endPoint;
+
+    @Before
+    public void setUp() {
+        circuitBreaker = new EndPointCircuitBreaker();
+        endPoint = new SPARQLEndPoint();
+        endPoint.setId(1);
+    }
+
+    @Test
+    public void testOpensWhenMostQueriesFail() {
+        failQueries(10);
+        assertEquals(EndPointHealth.State.OPEN, circuitBreaker.getHealth(endPoint).getState());
+        try {
+            circuitBreaker.checkAvailable(endPoint);
+            fail("Expected ResponseStatusException");
+        } catch (ResponseStatusException e) {
+            assertEquals(503, e.getStatus().value());
+        }
+    }
+
+    @Test
+    public void testClientErrorsDoNotCount() {
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.checkAvailable(endPoint);
+            circuitBreaker.recordFailure(endPoint, 0, new QueryExceptionHTTP(400, "Bad Request"));
+        }
+        assertEquals(EndPointHealth.State.CLOSED, circuitBreaker.getHealth(endPoint).getState());
+    }
+
+    @Test
+    public void testSuccessfulTrialQueryClosesCircuit() {
+        ReflectionTestUtils.setField(circuitBreaker, "openDuration", 0L);
+        failQueries(10);
+        assertEquals(EndPointHealth.State.HALF_OPEN, circuitBreaker.getHealth(endPoint).getState());
+        circuitBreaker.checkAvailable(endPoint);
+        try {
+            circuitBreaker.checkAvailable(endPoint);
+            fail("Only one trial query expected while half open");
+        } catch (ResponseStatusException expected) {
+        }
+        circuitBreaker.recordSuccess(endPoint, 1000000);
+        assertEquals(EndPointHealth.State.CLOSED, circuitBreaker.getHealth(endPoint).getState());
+    }
+
+    @Test
+    public void testReleasedTrialQueryLetsAnotherThrough() {
+        ReflectionTestUtils.setField(circuitBreaker, "openDuration", 0L);
+        failQueries(10);
+        circuitBreaker.checkAvailable(endPoint);
+        circuitBreaker.release(endPoint);
+        circuitBreaker.checkAvailable(endPoint);
+        circuitBreaker.recordSuccess(endPoint, 1000000);
+        assertEquals(EndPointHealth.State.CLOSED, circuitBreaker.getHealth(endPoint).getState());
+    }
+
+    private void failQueries(int count) {
+        for (int i = 0; i < count; i++) {
+            circuitBreaker.checkAvailable(endPoint);
+            circuitBreaker.recordFailure(endPoint, 0, new QueryExceptionHTTP(503, "Service Unavailable"));
+        }
+    }
+}
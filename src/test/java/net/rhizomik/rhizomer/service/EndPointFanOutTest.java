@@ -0,0 +1,65 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import net.rhizomik.rhizomer.model.Value;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EndPointFanOutTest {
+
+    @Test
+    public void testMergeValuesAddsUpCountsOfSharedValues() {
+        List<Value> merged = EndPointFanOut.mergeValues(Arrays.asList(
+                Arrays.asList(new Value("a", 5, null, null, null), new Value("b", 3, null, null, null)),
+                Arrays.asList(new Value("b", 4, null, null, null), new Value("c", 1, null, null, null))));
+        assertEquals(3, merged.size());
+        assertEquals("b", merged.get(0).getValue());
+        assertEquals(7, merged.get(0).getCount());
+        assertEquals("a", merged.get(1).getValue());
+        assertEquals("c", merged.get(2).getValue());
+    }
+
+    @Test
+    public void testMergeValuesUsesUriAsIdentity() {
+        List<Value> merged = EndPointFanOut.mergeValues(Arrays.asList(
+                Arrays.asList(new Value("http://ex.org/a", 2, "http://ex.org/a", "ex:a", "A@en")),
+                Arrays.asList(new Value("http://ex.org/a", 1, "http://ex.org/a", "ex:a", null))));
+        assertEquals(1, merged.size());
+        assertEquals(3, merged.get(0).getCount());
+        assertEquals("A", merged.get(0).getLabel("en"));
+    }
+
+    @Test
+    public void testEndPointsMissingTheDeadlineMakeResultsIncomplete() throws Exception {
+        SPARQLEndPoint answering = new SPARQLEndPoint();
+        SPARQLEndPoint silent = new SPARQLEndPoint();
+        QueryCompleteness completeness = QueryCompleteness.track();
+        EndPointFanOut.Collected<Integer> counts = completeness.call(() -> new EndPointFanOut().collectAsync(
+                Arrays.asList(answering, silent), endPoint -> endPoint == answering ?
+                        CompletableFuture.completedFuture(3) : new CompletableFuture<>()))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(3), counts);
+        assertFalse(counts.isComplete());
+        assertFalse(completeness.isComplete());
+    }
+
+    @Test
+    public void testAllEndPointsAnsweringMakeResultsComplete() throws Exception {
+        QueryCompleteness completeness = QueryCompleteness.track();
+        EndPointFanOut.Collected<Integer> counts = completeness.call(() -> new EndPointFanOut().collectAsync(
+                Arrays.asList(new SPARQLEndPoint(), new SPARQLEndPoint()),
+                endPoint -> CompletableFuture.completedFuture(1)))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(2, counts.size());
+        assertTrue(counts.isComplete());
+        assertTrue(completeness.isComplete());
+    }
+}
@@ -0,0 +1,120 @@
+package net.rhizomik.rhizomer.service;
+
+import org.apache.jena.query.QueryFactory;
+import org.junit.Test;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FiltersTest {
+    private static final String NAME = "http://xmlns.com/foaf/0.1/name";
+    private static final String KNOWS = "http://xmlns.com/foaf/0.1/knows";
+    private static final String INTEGER = "http://www.w3.org/2001/XMLSchema#integer";
+
+    @Test
+    public void testSameFiltersInAnyOrderAreEqual() {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add(NAME, "\"b\" \"a\"");
+        parameters.add(KNOWS, "<http://example.org/b>");
+        parameters.add(KNOWS, "<http://example.org/a>");
+        MultiValueMap<String, String> reordered = new LinkedMultiValueMap<>();
+        reordered.add(KNOWS, "<http://example.org/a>");
+        reordered.add(KNOWS, "<http://example.org/b>");
+        reordered.add(NAME, "AND(\"a\" \"b\")");
+
+        assertEquals(Filters.of(parameters), Filters.of(reordered));
+        assertEquals(Filters.of(parameters).canonical(), Filters.of(reordered).canonical());
+        Queries queries = new OptimizedQueries();
+        assertEquals(queries.getFilterPatterns(null, Filters.of(parameters)),
+                queries.getFilterPatterns(null, Filters.of(reordered)));
+    }
+
+    @Test
+    public void testAlternativesAndRequiredValues() {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add(KNOWS, "OR(<http://example.org/a> !<http://example.org/b>)");
+        parameters.add(NAME, "\"a b\"");
+        List<Filters.Filter> filters = list(Filters.of(parameters));
+
+        assertTrue(filters.get(0).isOr());
+        assertEquals(KNOWS, filters.get(0).getProperty());
+        assertEquals("v0", filters.get(0).variable());
+        Filters.Term negated = filters.get(0).getValues().get(0);
+        assertTrue(negated.isNegated());
+        assertTrue(negated.isIri());
+        assertEquals("http://example.org/b", negated.getIri());
+
+        assertFalse(filters.get(1).isOr());
+        assertEquals(1, filters.get(1).getValues().size());
+        assertEquals("\"a b\"", filters.get(1).getValues().get(0).getText());
+        assertEquals("v1_0", filters.get(1).variable(0));
+    }
+
+    @Test
+    public void testRangesAndBounds() {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add(NAME + " " + INTEGER, "\"≧10\"");
+        Filters.Filter filter = list(Filters.of(parameters)).get(0);
+        assertEquals(NAME, filter.getProperty());
+        assertEquals(INTEGER, filter.getRange());
+        assertEquals(">=", filter.getValues().get(0).getBoundOperator());
+        assertEquals("10", filter.getValues().get(0).getBoundValue());
+        assertNull(list(Filters.of(single(NAME, "\"10\""))).get(0).getValues().get(0).getBoundOperator());
+    }
+
+    @Test
+    public void testRenderedWithoutHashedVariables() {
+        Queries queries = new DetailedQueries();
+        String patterns = queries.getFilterPatterns(null, Filters.of(single(NAME, "null")));
+        assertEquals("\t ?instance <" + NAME + "> ?v0_0 . \n", patterns);
+        patterns = queries.getFilterPatterns(null, Filters.of(single(NAME, "!\"a\" \"b\"")));
+        assertEquals("FILTER NOT EXISTS { \t ?instance <" + NAME + "> ?v0_0 . \n" +
+                "\t FILTER( STR(?v0_0) = \"a\" )\n }" +
+                "\t ?instance <" + NAME + "> ?v0_1 . \n" +
+                "\t FILTER( STR(?v0_1) = \"b\" )\n", patterns);
+        assertTrue(Filters.NONE.isEmpty());
+        assertEquals("", queries.getFilterPatterns(null, Filters.NONE));
+    }
+
+    @Test
+    public void testNegatedAlternativesRenderedAsNotExists() {
+        MultiValueMap<String, String> parameters = single(KNOWS, "OR(<http://example.org/a> !<http://example.org/b>)");
+        for (Queries queries : List.of(new OptimizedQueries(), new DetailedQueries())) {
+            String patterns = queries.getFilterPatterns(null, Filters.of(parameters));
+            assertFalse(patterns.contains(" IN ("));
+            assertTrue(patterns.startsWith("FILTER ( NOT EXISTS { \t ?instance <" + KNOWS + "> ?v0_0 . \n"));
+            assertTrue(patterns.contains(" || EXISTS { \t ?instance <" + KNOWS + "> ?v0_1 . \n"));
+            QueryFactory.create("SELECT ?instance WHERE { ?instance a ?class . \n" + patterns + "}");
+        }
+    }
+
+    @Test
+    public void testAllBoundsOfAlternativesApplied() {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add(NAME + " " + INTEGER, "\"≧10\"");
+        parameters.add(NAME + " " + INTEGER, "\"≦20\"");
+        String patterns = new DetailedQueries().getFilterPatterns(null, Filters.of(parameters));
+        assertTrue(patterns.contains("?v0 >= \"10\"^^<" + INTEGER + ">"));
+        assertTrue(patterns.contains("?v0 <= \"20\"^^<" + INTEGER + ">"));
+        assertFalse(patterns.contains(" IN ("));
+    }
+
+    private static MultiValueMap<String, String> single(String key, String value) {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add(key, value);
+        return parameters;
+    }
+
+    private static List<Filters.Filter> list(Filters filters) {
+        List<Filters.Filter> list = new ArrayList<>();
+        filters.forEach(list::add);
+        return list;
+    }
+}
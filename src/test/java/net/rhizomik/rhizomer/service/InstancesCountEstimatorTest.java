@@ -0,0 +1,65 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.Class;
+import net.rhizomik.rhizomer.model.Dataset;
+import net.rhizomik.rhizomer.model.Facet;
+import net.rhizomik.rhizomer.model.Range;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class InstancesCountEstimatorTest {
+    private static final String NAME = "http://xmlns.com/foaf/0.1/name";
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private Class person;
+    private InstancesCountEstimator estimator;
+
+    @Before
+    public void setUp() {
+        person = new Class(new Dataset("test"), URI.create("http://xmlns.com/foaf/0.1/Person"), "Person", 1000);
+        Facet name = new Facet(person, URI.create(NAME), "name");
+        name.addRange(new Range(name, URI.create(STRING), "string", 500, 100, true, false));
+        person.setFacets(List.of(name));
+        estimator = new InstancesCountEstimator();
+    }
+
+    @Test
+    public void testWithoutFiltersAllInstances() {
+        assertEquals(1000, estimator.estimate(person, Filters.NONE));
+    }
+
+    @Test
+    public void testValuesFromRangeStatistics() {
+        MultiValueMap<String, String> filters = new LinkedMultiValueMap<>();
+        filters.add(NAME + " " + STRING, "\"a\"");
+        assertEquals(5, estimator.estimate(person, Filters.of(filters)));
+        filters.add(NAME + " " + STRING, "\"b\"");
+        assertEquals(10, estimator.estimate(person, Filters.of(filters)));
+        filters.set(NAME + " " + STRING, "null");
+        assertEquals(500, estimator.estimate(person, Filters.of(filters)));
+    }
+
+    @Test
+    public void testNegatedValuesAndSingleParameterAlternatives() {
+        MultiValueMap<String, String> filters = new LinkedMultiValueMap<>();
+        filters.add(NAME, "!null");
+        assertEquals(500, estimator.estimate(person, Filters.of(filters)));
+        filters.set(NAME, "OR(\"a\" \"b\")");
+        assertEquals(10, estimator.estimate(person, Filters.of(filters)));
+    }
+
+    @Test
+    public void testUnknownFacetsAreNotConsidered() {
+        MultiValueMap<String, String> filters = new LinkedMultiValueMap<>();
+        filters.add("urn:rhz:contains", "\"alice\"");
+        filters.add("http://example.org/unknown", "\"x\"");
+        assertEquals(1000, estimator.estimate(person, Filters.of(filters)));
+    }
+}
@@ -0,0 +1,141 @@
+package net.rhizomik.rhizomer.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong();
+    private Path directory;
+    private MappedFileCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("responses").toPath();
+        cache = new MappedFileCache(directory, 10, 1000, now::get);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void testHitsWrittenFromTheMappedFile() throws IOException {
+        Path file = payload("abcd");
+        cache.put("d1", 0, "a", file);
+        assertFalse(Files.exists(file));
+        assertEquals("abcd", read(cache.get("d1", 0, "a")));
+        assertEquals("abcd", read(cache.get("d1", 0, "a")));
+        assertNull(cache.get("d1", 1, "a"));
+        assertEquals(2, cache.getStats("d1").getHits());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvictedByTotalBytes() throws IOException {
+        cache.put("d1", 0, "a", payload("aaaa"));
+        cache.put("d1", 0, "b", payload("bbbb"));
+        cache.get("d1", 0, "a").close();
+        cache.put("d1", 0, "c", payload("cccc"));
+        assertNull(cache.get("d1", 0, "b"));
+        assertEquals("aaaa", read(cache.get("d1", 0, "a")));
+        assertEquals(8, cache.getTotalBytes());
+        cache.put("d1", 0, "d", payload("ddddddddddd"));
+        assertNull(cache.get("d1", 0, "d"));
+        assertEquals(8, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testExpiredAndEvictedSegmentsAreDeleted() throws IOException {
+        cache.put("d1", 0, "a", payload("aaaa"));
+        cache.put("d2", 0, "a", payload("aaaa"));
+        MappedFileCache.Lease mapped = cache.get("d1", 0, "a");
+        cache.evict("d1");
+        assertEquals("aaaa", read(mapped.getPayload()));
+        mapped.close();
+        assertNull(cache.get("d1", 0, "a"));
+        now.set(1000);
+        assertNull(cache.get("d2", 0, "a"));
+        assertEquals(0, cache.getTotalBytes());
+        try (Stream<Path> segments = Files.list(cache.getDirectory())) {
+            assertEquals(0, segments.filter(file -> file.toString().endsWith(".seg")).count());
+        }
+    }
+
+    @Test
+    public void testEvictedSegmentsCountedUntilTheirReadersClose() throws IOException {
+        cache.put("d1", 0, "a", payload("aaaa"));
+        MappedFileCache.Lease first = cache.get("d1", 0, "a");
+        MappedFileCache.Lease second = cache.get("d1", 0, "a");
+        cache.evict("d1");
+        assertEquals(4, cache.getTotalBytes());
+        cache.put("d1", 0, "b", payload("bbbb"));
+        cache.put("d1", 0, "c", payload("cccc"));
+        assertNull(cache.get("d1", 0, "b"));
+        assertEquals("cccc", read(cache.get("d1", 0, "c")));
+        first.close();
+        first.close();
+        assertEquals(8, cache.getTotalBytes());
+        assertEquals("aaaa", read(second.getPayload()));
+        second.close();
+        assertEquals(4, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testOnlyFilesOfInstancesNoLongerRunningDeletedOnStartup() throws IOException {
+        Path abandoned = Files.createDirectory(directory.resolve("instance1"));
+        Files.write(abandoned.resolve(".lock"), new byte[0]);
+        Files.write(abandoned.resolve("segment1.seg"), new byte[1]);
+        Files.createTempFile(abandoned, "response", ".tmp");
+        Path other = Files.write(directory.resolve("notes.txt"), new byte[1]);
+        cache.put("d1", 0, "a", payload("aaaa"));
+        MappedFileCache second = new MappedFileCache(directory, 10, 1000, now::get);
+        try {
+            assertFalse(Files.exists(abandoned));
+            assertTrue(Files.exists(other));
+            assertEquals("aaaa", read(cache.get("d1", 0, "a")));
+            assertTrue(Files.isDirectory(second.getDirectory()));
+            assertFalse(second.getDirectory().equals(cache.getDirectory()));
+        } finally {
+            second.close();
+        }
+        assertFalse(Files.exists(second.getDirectory()));
+        assertTrue(Files.exists(cache.getDirectory()));
+    }
+
+    private Path payload(String content) throws IOException {
+        Path file = Files.createTempFile(cache.getDirectory(), "response", ".tmp");
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(MappedFileCache.Lease lease) throws IOException {
+        try (lease) {
+            return read(lease.getPayload());
+        }
+    }
+
+    private static String read(ByteBuffer payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CachedResponses.write(payload, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
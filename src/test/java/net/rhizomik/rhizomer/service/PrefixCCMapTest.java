@@ -4,6 +4,11 @@ import org.apache.jena.atlas.lib.Pair;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -136,4 +141,68 @@ public class PrefixCCMapTest {
         String curie = "foaf:Agent";
         assertEquals("http://xmlns.com/foaf/0.1/Agent", prefixcc.expand(curie));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExpandPrefixFromSnapshot() throws Exception {
+        assertEquals("http://purl.org/dc/terms/title", prefixcc.expand("dcterms:title"));
+        assertEquals(null, prefixcc.expand("nonexisting:title"));
+    }
+
+    @Test
+    public void testLearnedPrefixesNotified() throws Exception {
+        Map<String, String> learned = new HashMap<>();
+        prefixcc.setLearnedListener(learned::put);
+        prefixcc.load("loaded", "http://loaded.org/");
+        assertEquals("loaded:test", prefixcc.abbreviate("http://loaded.org/test"));
+        assertEquals("testing:test", prefixcc.abbreviate("http://testing.org/test"));
+        assertEquals(Map.of("testing", "http://testing.org/"), learned);
+    }
+
+    @Test
+    public void testGeneratedPrefixKeptWhenRemoteOneFound() throws Exception {
+        Map<String, String> learned = new HashMap<>();
+        List<Runnable> lookups = new ArrayList<>();
+        prefixcc = new RemotePrefixCCMap(Map.of("http://testing.org/", "tst"));
+        prefixcc.setLearnedListener(learned::put);
+        prefixcc.setRemoteLookups(lookups::add);
+        assertEquals("testing:test", prefixcc.abbreviate("http://testing.org/test"));
+        assertEquals(Map.of("testing", "http://testing.org/"), learned);
+        lookups.forEach(Runnable::run);
+        assertEquals("testing:test", prefixcc.abbreviate("http://testing.org/test"));
+        assertEquals("http://testing.org/test", prefixcc.expand("testing:test"));
+        assertEquals("http://testing.org/test", prefixcc.expand("tst:test"));
+        assertEquals(Map.of("testing", "http://testing.org/"), learned);
+    }
+
+    @Test
+    public void testGeneratedPrefixLearnedBeforeRemoteLookup() throws Exception {
+        Map<String, String> learned = new HashMap<>();
+        List<Runnable> lookups = new ArrayList<>();
+        prefixcc = new RemotePrefixCCMap(Map.of());
+        prefixcc.setLearnedListener(learned::put);
+        prefixcc.setRemoteLookups(lookups::add);
+        assertEquals("testing:test", prefixcc.abbreviate("http://testing.org/test"));
+        assertEquals(Map.of("testing", "http://testing.org/"), learned);
+        lookups.forEach(Runnable::run);
+        assertEquals("testing:test", prefixcc.abbreviate("http://testing.org/test"));
+        assertEquals(Map.of("testing", "http://testing.org/"), learned);
+    }
+
+    private static class RemotePrefixCCMap extends PrefixCCMap {
+        private final Map<String, String> remotePrefixes;
+
+        RemotePrefixCCMap(Map<String, String> remotePrefixes) {
+            this.remotePrefixes = remotePrefixes;
+        }
+
+        @Override
+        protected String remoteSnapshot() {
+            return null;
+        }
+
+        @Override
+        protected String remoteReverseLookup(String namespace) {
+            return remotePrefixes.get(namespace);
+        }
+    }
+}
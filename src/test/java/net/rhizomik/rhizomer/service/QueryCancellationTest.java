@@ -0,0 +1,79 @@
+package net.rhizomik.rhizomer.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryCancellationTest {
+
+    @Test
+    public void testCancelInterruptsRegisteredQuery() throws Exception {
+        QueryCancellation cancellation = new QueryCancellation();
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean interruptCleared = new AtomicBoolean();
+        CompletableFuture<Void> query = CompletableFuture.runAsync(() -> cancellation.call(() -> {
+            try (QueryCancellation.Registration registration = cancellation.interruptOnCancel()) {
+                started.countDown();
+                while (!Thread.currentThread().isInterrupted())
+                    Thread.onSpinWait();
+            }
+            interruptCleared.set(!Thread.currentThread().isInterrupted());
+            return null;
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        cancellation.cancel();
+        query.get(5, TimeUnit.SECONDS);
+        assertTrue(interruptCleared.get());
+    }
+
+    @Test
+    public void testSharedQueryCancelledOnlyWhenAllCallersAre() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        QueryCancellation first = new QueryCancellation();
+        QueryCancellation second = new QueryCancellation();
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> leader = CompletableFuture.supplyAsync(() -> first.call(() ->
+                coalescer.coalesce("q", () -> {
+                    try (QueryCancellation.Registration registration =
+                                 QueryCancellation.current().interruptOnCancel()) {
+                        started.countDown();
+                        Thread.sleep(5000);
+                        return "result";
+                    } catch (InterruptedException e) {
+                        throw new CancellationException("Query cancelled");
+                    }
+                })));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> follower = CompletableFuture.supplyAsync(() -> second.call(() ->
+                coalescer.coalesce("q", () -> "other")));
+        while (coalescer.getCoalesced() == 0)
+            Thread.sleep(10);
+
+        first.cancel();
+        Thread.sleep(100);
+        assertFalse(leader.isDone());
+        second.cancel();
+        assertCancelled(follower);
+        assertCancelled(leader);
+        assertEquals(1, coalescer.getExecuted());
+    }
+
+    private static void assertCancelled(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected CancellationException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CancellationException);
+        }
+    }
+}
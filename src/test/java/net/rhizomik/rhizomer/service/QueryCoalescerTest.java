@@ -0,0 +1,73 @@
+package net.rhizomik.rhizomer.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryCoalescerTest {
+
+    QueryCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new QueryCoalescer();
+    }
+
+    @Test
+    public void testConcurrentIdenticalQueriesShareExecution() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger executions = new AtomicInteger();
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> coalescer.coalesce("q", () -> {
+            executions.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "result";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> coalescer.coalesce("q", () -> {
+            executions.incrementAndGet();
+            return "other";
+        }));
+        while (coalescer.getCoalesced() == 0 && !second.isDone())
+            Thread.sleep(10);
+        release.countDown();
+        assertEquals("result", first.get(5, TimeUnit.SECONDS));
+        assertEquals("result", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    public void testSequentialQueriesAreExecutedAgain() {
+        AtomicInteger executions = new AtomicInteger();
+        coalescer.coalesce("q", executions::incrementAndGet);
+        coalescer.coalesce("q", executions::incrementAndGet);
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void testFailureIsRethrown() {
+        try {
+            coalescer.coalesce("q", () -> { throw new IllegalStateException("endpoint down"); });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("endpoint down", e.getMessage());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryHedgingTest {
+
+    QueryHedging hedging;
+    EndPointCircuitBreaker circuitBreaker;
+    SPARQLEndPoint endPoint;
+
+    @Before
+    public void setUp() {
+        circuitBreaker = new EndPointCircuitBreaker();
+        hedging = new QueryHedging();
+        ReflectionTestUtils.setField(hedging, "circuitBreaker", circuitBreaker);
+        endPoint = new SPARQLEndPoint();
+        endPoint.setId(1);
+    }
+
+    @After
+    public void tearDown() {
+        hedging.shutdown();
+    }
+
+    @Test
+    public void testNoHedgingWithoutLatencyHistory() {
+        AtomicInteger executions = new AtomicInteger();
+        assertEquals(1, (int) hedging.execute(endPoint, executions::incrementAndGet));
+        assertEquals(0, hedging.getHedgesIssued(endPoint));
+    }
+
+    @Test
+    public void testSlowQueryIsHedgedAndHedgeWins() {
+        for (int i = 0; i < 20; i++) {
+            circuitBreaker.checkAvailable(endPoint);
+            circuitBreaker.recordSuccess(endPoint, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        AtomicInteger executions = new AtomicInteger();
+        String result = hedging.execute(endPoint, () -> {
+            if (executions.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    return "cancelled";
+                }
+                return "primary";
+            }
+            return "hedge";
+        });
+        assertEquals("hedge", result);
+        assertEquals(1, hedging.getHedgesIssued(endPoint));
+        assertEquals(1, hedging.getHedgesWon(endPoint));
+    }
+
+    @Test
+    public void testFailedHedgeDoesNotWin() {
+        for (int i = 0; i < 20; i++) {
+            circuitBreaker.checkAvailable(endPoint);
+            circuitBreaker.recordSuccess(endPoint, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        AtomicInteger executions = new AtomicInteger();
+        String result = hedging.execute(endPoint, () -> {
+            if (executions.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return "cancelled";
+                }
+                return "primary";
+            }
+            throw new IllegalStateException("replica down");
+        });
+        assertEquals("primary", result);
+        assertEquals(1, hedging.getHedgesIssued(endPoint));
+        assertEquals(0, hedging.getHedgesWon(endPoint));
+    }
+}
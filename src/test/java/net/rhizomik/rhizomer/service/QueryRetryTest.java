@@ -0,0 +1,90 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class QueryRetryTest {
+
+    QueryRetry retry;
+    SPARQLEndPoint endPoint;
+
+    @Before
+    public void setUp() {
+        retry = new QueryRetry();
+        ReflectionTestUtils.setField(retry, "initialBackoff", 1L);
+        endPoint = new SPARQLEndPoint();
+        endPoint.setId(1);
+    }
+
+    @Test
+    public void testOverloadedEndpointIsRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        String result = retry.execute(endPoint, () -> {
+            if (attempts.incrementAndGet() < 3)
+                throw new QueryExceptionHTTP(503, "Service Unavailable");
+            return "result";
+        });
+        assertEquals("result", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testAsyncReadIsRetriedWithoutBlocking() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> result = retry.executeAsync(endPoint, () ->
+                attempts.incrementAndGet() < 3 ?
+                        CompletableFuture.failedFuture(new QueryExceptionHTTP(503, "Service Unavailable")) :
+                        CompletableFuture.completedFuture("result"));
+        assertEquals("result", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            retry.execute(endPoint, () -> {
+                attempts.incrementAndGet();
+                throw new QueryExceptionHTTP(400, "Bad Request");
+            });
+            fail("Expected QueryExceptionHTTP");
+        } catch (QueryExceptionHTTP e) {
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testRetriesLimitedByBudget() {
+        ReflectionTestUtils.setField(retry, "budgetSize", 2.0);
+        AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            try {
+                retry.execute(endPoint, () -> {
+                    attempts.incrementAndGet();
+                    throw new QueryExceptionHTTP(503, "Service Unavailable");
+                });
+                fail("Expected QueryExceptionHTTP");
+            } catch (QueryExceptionHTTP ignored) {
+            }
+        }
+        assertEquals(3 + 2, attempts.get());
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        assertEquals(Long.valueOf(2000), QueryRetry.parseRetryAfter("2"));
+        assertEquals(Long.valueOf(0), QueryRetry.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertNull(QueryRetry.parseRetryAfter("soon"));
+    }
+}
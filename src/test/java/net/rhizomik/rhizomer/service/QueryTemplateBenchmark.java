@@ -0,0 +1,84 @@
+package net.rhizomik.rhizomer.service;
+
+import org.apache.jena.query.ParameterizedSparqlString;
+import org.apache.jena.query.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the facet range values query from a bound {@link QueryTemplate} compared to parsing
+ * its text for each request, as it was built before. Not run with the tests, run its main method
+ * from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryTemplateBenchmark {
+    private static final String PERSON = "http://xmlns.com/foaf/0.1/Person";
+    private static final String KNOWS = "http://xmlns.com/foaf/0.1/knows";
+    private static final String NAME = "http://xmlns.com/foaf/0.1/name";
+
+    private final OptimizedQueries queries = new OptimizedQueries();
+    private Filters filters;
+
+    @Setup
+    public void setUp() {
+        MultiValueMap<String, String> parameters = new LinkedMultiValueMap<>();
+        parameters.add(NAME, "\"a\"");
+        parameters.add(KNOWS, "OR(<http://example.org/a> <http://example.org/b>)");
+        filters = Filters.of(parameters);
+    }
+
+    @Benchmark
+    public Query parsedPerRequest() {
+        ParameterizedSparqlString pQuery = new ParameterizedSparqlString();
+        pQuery.setCommandText(Queries.prefixes +
+            "SELECT ?value ?count ?resource \n" +
+            "\t WHERE { \n" +
+            "\t { SELECT ?resource (COUNT(?resource) AS ?count) \n" +
+            "\t\t WHERE { \n" +
+            "\t\t { SELECT DISTINCT ?instance " +
+            "\t\t\t WHERE { \n" +
+            "\t\t\t\t ?instance a ?class . \n" +
+            queries.getFilterPatterns(null, filters) +
+            "\t\t\t } \n" +
+            "\t\t } \n" +
+            "\t\t ?instance ?property ?resource . \n" +
+            "\t\t } GROUP BY ?resource } \n" +
+            "\t BIND(str(?resource) AS ?value) \n" +
+            "}");
+        pQuery.setIri("class", PERSON);
+        pQuery.setIri("property", KNOWS);
+        Query query = pQuery.asQuery();
+        query.setLimit(10);
+        query.addOrderBy("count", -1);
+        return query;
+    }
+
+    @Benchmark
+    public Query boundTemplate() {
+        return queries.getQueryFacetRangeValues(null, PERSON, KNOWS, null, filters, false, 10, 0, true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(QueryTemplateBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,49 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryTimeoutsTest {
+
+    QueryTimeouts timeouts;
+    SPARQLEndPoint endPoint;
+
+    @Before
+    public void setUp() {
+        timeouts = new QueryTimeouts();
+        endPoint = new SPARQLEndPoint();
+        endPoint.setId(1);
+        endPoint.setTimeout("300000");
+    }
+
+    @Test
+    public void testBudgetAdaptsToObservedLatencies() {
+        assertEquals(30000, timeouts.budget(endPoint, QueryKind.COUNT));
+        for (int i = 0; i < 20; i++)
+            timeouts.record(endPoint, QueryKind.COUNT, TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(1500, timeouts.budget(endPoint, QueryKind.COUNT));
+        for (int i = 0; i < 100; i++)
+            timeouts.record(endPoint, QueryKind.COUNT, TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(1000, timeouts.budget(endPoint, QueryKind.COUNT));
+        assertEquals(300000, timeouts.budget(endPoint, QueryKind.ANALYSIS));
+    }
+
+    @Test
+    public void testAnalysisLaneQueriesGetAnalysisBudget() {
+        assertEquals(QueryKind.OTHER, QueryTimeouts.currentKind());
+        assertEquals(QueryKind.ANALYSIS, QueryPriority.ANALYSIS.call(QueryTimeouts::currentKind));
+        assertEquals(QueryKind.COUNT, QueryPriority.ANALYSIS.call(() -> QueryKind.COUNT.call(QueryTimeouts::currentKind)));
+    }
+
+    @Test
+    public void testServerTimeoutInSecondsForFuseki() {
+        assertEquals("1500", QueryTimeouts.serverTimeout(endPoint, 1500));
+        endPoint.setType(SPARQLEndPoint.ServerType.FUSEKI);
+        assertEquals("1.500", QueryTimeouts.serverTimeout(endPoint, 1500));
+    }
+}
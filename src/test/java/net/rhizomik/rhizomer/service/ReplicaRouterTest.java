@@ -0,0 +1,77 @@
+package net.rhizomik.rhizomer.service;
+
+import net.rhizomik.rhizomer.model.SPARQLEndPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ReplicaRouterTest {
+
+    ReplicaRouter router;
+    SPARQLEndPoint endPoint;
+    final AtomicLong now = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        router = new ReplicaRouter(now::get);
+        endPoint = new SPARQLEndPoint();
+        endPoint.setQueryEndPoint(new URL("http://primary.example.org/sparql"));
+        endPoint.setQueryReplicas(Set.of("http://replica.example.org/sparql"));
+    }
+
+    @Test
+    public void testRoutesToFasterReplica() {
+        measure("http://primary.example.org/sparql", 500);
+        measure("http://replica.example.org/sparql", 50);
+        for (int i = 0; i < 10; i++)
+            try (ReplicaRouter.Route route = router.route(endPoint)) {
+                assertEquals("http://replica.example.org/sparql", route.getUrl());
+            }
+    }
+
+    @Test
+    public void testAvoidsReplicaWithOutstandingQueries() {
+        measure("http://primary.example.org/sparql", 100);
+        measure("http://replica.example.org/sparql", 100);
+        try (ReplicaRouter.Route busy = router.route(endPoint)) {
+            try (ReplicaRouter.Route next = router.route(endPoint)) {
+                assertNotEquals(busy.getUrl(), next.getUrl());
+            }
+        }
+    }
+
+    @Test
+    public void testFailurePenaltyDecaysOverTime() {
+        measure("http://primary.example.org/sparql", 100);
+        measure("http://replica.example.org/sparql", 50);
+        try (ReplicaRouter.Route route = router.route(endPoint)) {
+            assertEquals("http://replica.example.org/sparql", route.getUrl());
+            route.recordFailure(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        try (ReplicaRouter.Route route = router.route(endPoint)) {
+            assertEquals("http://primary.example.org/sparql", route.getUrl());
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(100));
+        try (ReplicaRouter.Route route = router.route(endPoint)) {
+            assertEquals("http://replica.example.org/sparql", route.getUrl());
+        }
+    }
+
+    private void measure(String url, long latencyMillis) {
+        while (true) {
+            try (ReplicaRouter.Route route = router.route(endPoint)) {
+                if (route.getUrl().equals(url)) {
+                    route.recordSuccess(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.rhizomik.rhizomer.service;
+
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResultFormatsTest {
+
+    @Test
+    public void testAcceptHeaderInPreferenceOrder() {
+        assertEquals("application/sparql-results+thrift, text/tab-separated-values;q=0.9, " +
+                        "application/sparql-results+json;q=0.8, application/sparql-results+xml;q=0.7",
+                ResultFormats.acceptHeader(ResultFormats.SELECT));
+    }
+
+    @Test
+    public void testLangFromResponseContentType() {
+        assertEquals(ResultSetLang.RS_TSV,
+                ResultFormats.lang(ResultFormats.SELECT, "text/tab-separated-values; charset=utf-8"));
+        assertEquals(RDFLanguages.NTRIPLES, ResultFormats.lang(ResultFormats.GRAPH, "text/plain"));
+        assertNull(ResultFormats.lang(ResultFormats.SELECT, "text/html"));
+        assertNull(ResultFormats.lang(ResultFormats.GRAPH, null));
+    }
+}
@@ -0,0 +1,116 @@
+package net.rhizomik.rhizomer.service;
+
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SPARQLClientRegistryTest {
+    private final HttpRequest request = HttpRequest.newBuilder(URI.create("http://example.org/sparql")).build();
+
+    @Test
+    public void testAsyncSendReturnsWithoutWaitingForTheResponse() {
+        StubHttpClient stub = new StubHttpClient();
+        HttpClient client = new SPARQLClientRegistry.EndPointHttpClient(stub);
+        CompletableFuture<HttpResponse<byte[]>> sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        assertFalse(sent.isDone());
+        assertNotNull(stub.exchange);
+    }
+
+    @Test
+    public void testCancellingAsyncSendCancelsTheExchange() {
+        StubHttpClient stub = new StubHttpClient();
+        HttpClient client = new SPARQLClientRegistry.EndPointHttpClient(stub);
+        CompletableFuture<HttpResponse<byte[]>> sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        sent.cancel(true);
+        assertTrue(stub.exchange.isCancelled());
+    }
+
+    @Test
+    public void testPartialResultsAfterTimeoutFail() throws Exception {
+        StubHttpClient stub = new StubHttpClient();
+        HttpClient client = new SPARQLClientRegistry.EndPointHttpClient(stub);
+        CompletableFuture<HttpResponse<byte[]>> sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        stub.exchange.complete(new StubHttpResponse(request, Map.of("X-SQL-State", List.of("S1TAT"))));
+        try {
+            sent.get(5, TimeUnit.SECONDS);
+            fail("Partial results should fail");
+        } catch (ExecutionException e) {
+            assertTrue(QueryTimeouts.isTimeout(e));
+        }
+    }
+
+    private static final class StubHttpResponse implements HttpResponse<byte[]> {
+        private final HttpRequest request;
+        private final HttpHeaders headers;
+
+        StubHttpResponse(HttpRequest request, Map<String, List<String>> headers) {
+            this.request = request;
+            this.headers = HttpHeaders.of(headers, (name, value) -> true);
+        }
+
+        @Override public int statusCode() { return 200; }
+        @Override public HttpRequest request() { return request; }
+        @Override public Optional<HttpResponse<byte[]>> previousResponse() { return Optional.empty(); }
+        @Override public HttpHeaders headers() { return headers; }
+        @Override public byte[] body() { return new byte[0]; }
+        @Override public Optional<SSLSession> sslSession() { return Optional.empty(); }
+        @Override public URI uri() { return request.uri(); }
+        @Override public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+    }
+
+    private static final class StubHttpClient extends HttpClient {
+        private CompletableFuture<HttpResponse<?>> exchange;
+
+        @Override
+        public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+            return sendAsync(request, handler, null);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                                HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+            CompletableFuture<HttpResponse<T>> pending = new CompletableFuture<>();
+            exchange = (CompletableFuture<HttpResponse<?>>) (CompletableFuture<?>) pending;
+            return pending;
+        }
+
+        @Override public Optional<CookieHandler> cookieHandler() { return Optional.empty(); }
+        @Override public Optional<Duration> connectTimeout() { return Optional.empty(); }
+        @Override public Redirect followRedirects() { return Redirect.NEVER; }
+        @Override public Optional<ProxySelector> proxy() { return Optional.empty(); }
+        @Override public SSLContext sslContext() { return null; }
+        @Override public SSLParameters sslParameters() { return null; }
+        @Override public Optional<Authenticator> authenticator() { return Optional.empty(); }
+        @Override public Version version() { return Version.HTTP_1_1; }
+        @Override public Optional<Executor> executor() { return Optional.empty(); }
+    }
+}
@@ -1,18 +1,21 @@
 package net.rhizomik.rhizomer.service;
 
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyList;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.when;
 
-import java.net.URL;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import net.rhizomik.rhizomer.model.SPARQLEndPoint;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSetCloseable;
+import org.apache.jena.query.ResultSetFactory;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.riot.RDFDataMgr;
@@ -44,29 +47,29 @@ public class SPARQLServiceMockFactory {
         Queries queries = new OptimizedQueries();
         SPARQLService mock = Mockito.mock(SPARQLService.class);
 
-        when(mock.querySelect(any(URL.class), anyString(), any(Query.class), any()))
+        when(mock.querySelect(any(SPARQLEndPoint.class), any(Query.class)))
                 .thenAnswer(invocationOnMock -> {
-                    Query query = invocationOnMock.getArgument(2);
+                    Query query = invocationOnMock.getArgument(1);
                     logger.info("Sending to {} query: \n{}", "mockServer", query);
                     QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
                     return qexec.execSelect();
                 });
 
-        when(mock.querySelect(any(URL.class), anyString(), any(Query.class), anyList(), any()))
+        when(mock.querySelect(any(SPARQLEndPoint.class), any(Query.class), anyList()))
                 .thenAnswer(invocationOnMock -> {
-                    Query query = invocationOnMock.getArgument(2);
-                    List<String> graphs = invocationOnMock.getArgument(3);
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
                     graphs.forEach(query::addGraphURI);
                     logger.info("Sending to {} query: \n{}", "mockServer", query);
                     QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
                     return qexec.execSelect();
                 });
 
-        when(mock.querySelect(any(URL.class), anyString(), any(Query.class), anyList(), anyList(), any()))
+        when(mock.querySelect(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyList()))
                 .thenAnswer(invocationOnMock -> {
-                    Query query = invocationOnMock.getArgument(2);
-                    List<String> graphs = invocationOnMock.getArgument(3);
-                    List<String> namedGraphs = invocationOnMock.getArgument(4);
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    List<String> namedGraphs = invocationOnMock.getArgument(3);
                     graphs.forEach(query::addGraphURI);
                     namedGraphs.forEach(query::addNamedGraphURI);
                     logger.info("Sending to {} query: \n{}", "mockServer", query);
@@ -74,21 +77,97 @@ public class SPARQLServiceMockFactory {
                     return qexec.execSelect();
                 });
 
-        when(mock.queryDescribe(any(SPARQLEndPoint.class), anyString(), any(Query.class), anyList(), any()))
+        when(mock.querySelectStream(any(SPARQLEndPoint.class), any(Query.class)))
                 .thenAnswer(invocationOnMock -> {
-                    Query query = invocationOnMock.getArgument(2);
-                    List<String> graphs = invocationOnMock.getArgument(3);
+                    Query query = invocationOnMock.getArgument(1);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return ResultSetCloseable.closeableResultSet(qexec);
+                });
+
+        when(mock.querySelectStream(any(SPARQLEndPoint.class), any(Query.class), anyList()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    graphs.forEach(query::addGraphURI);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return ResultSetCloseable.closeableResultSet(qexec);
+                });
+
+        when(mock.querySelectStream(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyList()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    List<String> namedGraphs = invocationOnMock.getArgument(3);
+                    graphs.forEach(query::addGraphURI);
+                    namedGraphs.forEach(query::addNamedGraphURI);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return ResultSetCloseable.closeableResultSet(qexec);
+                });
+
+        when(mock.querySelectStream(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyList(), anyBoolean()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    List<String> namedGraphs = invocationOnMock.getArgument(3);
+                    graphs.forEach(query::addGraphURI);
+                    namedGraphs.forEach(query::addNamedGraphURI);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return ResultSetCloseable.closeableResultSet(qexec);
+                });
+
+        when(mock.querySelectAsync(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyList(), anyBoolean()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    List<String> namedGraphs = invocationOnMock.getArgument(3);
+                    graphs.forEach(query::addGraphURI);
+                    namedGraphs.forEach(query::addNamedGraphURI);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return CompletableFuture.completedFuture(ResultSetFactory.copyResults(qexec.execSelect()));
+                });
+
+        when(mock.queryDescribe(any(SPARQLEndPoint.class), any(Query.class), anyList()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    graphs.forEach(query::addGraphURI);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return qexec.execDescribe();
+                });
+
+        when(mock.queryDescribe(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyBoolean()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
                     graphs.forEach(query::addGraphURI);
                     logger.info("Sending to {} query: \n{}", "mockServer", query);
                     QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
                     return qexec.execDescribe();
                 });
 
-        when(mock.queryConstruct(any(SPARQLEndPoint.class), anyString(), any(Query.class), anyList(), anyList(), any()))
+        when(mock.queryConstruct(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyList()))
+                .thenAnswer(invocationOnMock -> {
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    List<String> namedGraphs = invocationOnMock.getArgument(3);
+                    graphs.forEach(query::addGraphURI);
+                    namedGraphs.forEach(query::addNamedGraphURI);
+                    logger.info("Sending to {} query: \n{}", "mockServer", query);
+                    QueryExecution qexec = QueryExecutionFactory.create(query, dataset);
+                    return qexec.execConstruct();
+                });
+
+        when(mock.queryConstruct(any(SPARQLEndPoint.class), any(Query.class), anyList(), anyList(), anyBoolean()))
                 .thenAnswer(invocationOnMock -> {
-                    Query query = invocationOnMock.getArgument(2);
-                    List<String> graphs = invocationOnMock.getArgument(3);
-                    List<String> namedGraphs = invocationOnMock.getArgument(4);
+                    Query query = invocationOnMock.getArgument(1);
+                    List<String> graphs = invocationOnMock.getArgument(2);
+                    List<String> namedGraphs = invocationOnMock.getArgument(3);
                     graphs.forEach(query::addGraphURI);
                     namedGraphs.forEach(query::addNamedGraphURI);
                     logger.info("Sending to {} query: \n{}", "mockServer", query);
@@ -101,11 +180,11 @@ public class SPARQLServiceMockFactory {
             logger.debug("Sending to {} query: \n{}", "mockServer", update.toString());
             UpdateAction.execute(update, dataset);
             return null;
-        }).when(mock).queryUpdate(any(URL.class), any(UpdateRequest.class), any());
+        }).when(mock).queryUpdate(any(SPARQLEndPoint.class), any(UpdateRequest.class));
 
-        when(mock.countGraphTriples(any(URL.class), anyString(), anyString(), any()))
+        when(mock.countGraphTriples(any(SPARQLEndPoint.class), anyString()))
                 .thenAnswer(invocationOnMock -> {
-                    String graph = invocationOnMock.getArgument(2);
+                    String graph = invocationOnMock.getArgument(1);
                     if (dataset.containsNamedModel(graph))
                         return dataset.getNamedModel(graph).size();
                     else
@@ -113,28 +192,27 @@ public class SPARQLServiceMockFactory {
                 });
 
         doAnswer(invocationOnMock -> {
-            URL sparqlEndPoint = invocationOnMock.getArgument(0);
-            SPARQLEndPoint.ServerType type = invocationOnMock.getArgument(1);
-            String graph = invocationOnMock.getArgument(2);
-            String uri = invocationOnMock.getArgument(3);
+            SPARQLEndPoint endPoint = invocationOnMock.getArgument(0);
+            String graph = invocationOnMock.getArgument(1);
+            String uri = invocationOnMock.getArgument(2);
             Model model = RDFDataMgr.loadModel(uri);
-            mock.loadModel(sparqlEndPoint, type, graph, model, null);
+            mock.loadModel(endPoint, graph, model);
             return null;
-        }).when(mock).loadURI(any(URL.class), any(SPARQLEndPoint.ServerType.class), anyString(), anyString(), any());
+        }).when(mock).loadURI(any(SPARQLEndPoint.class), anyString(), anyString());
 
         doAnswer(invocationOnMock -> {
-            String graph = invocationOnMock.getArgument(2);
-            Model model = invocationOnMock.getArgument(3);
+            String graph = invocationOnMock.getArgument(1);
+            Model model = invocationOnMock.getArgument(2);
             dataset.addNamedModel(graph, model);
             return null;
-        }).when(mock).loadModel(any(URL.class), any(), anyString(), any(Model.class), any());
+        }).when(mock).loadModel(any(SPARQLEndPoint.class), anyString(), any(Model.class));
 
         doAnswer(invocationOnMock -> {
             String graph = invocationOnMock.getArgument(1);
             Model blankModel = ModelFactory.createDefaultModel();
             dataset.replaceNamedModel(graph, blankModel);
             return null;
-        }).when(mock).clearGraph(any(URL.class), anyString(), any());
+        }).when(mock).clearGraph(any(SPARQLEndPoint.class), anyString());
 
         doAnswer(invocationOnMock -> {
             String targetGraph = invocationOnMock.getArgument(0);
@@ -142,9 +220,9 @@ public class SPARQLServiceMockFactory {
             List<String> targetGraphs = endPoint.getGraphs();
             targetGraphs.addAll(endPoint.getOntologyGraphs());
             UpdateRequest update = queries.getUpdateInferTypes(targetGraphs, targetGraph);
-            mock.queryUpdate(endPoint.getQueryEndPoint(), update, null);
+            mock.queryUpdate(endPoint, update);
             return null;
-        }).when(mock).inferTypes(any(String.class), any(SPARQLEndPoint.class), any());
+        }).when(mock).inferTypes(any(String.class), any(SPARQLEndPoint.class));
 
         return mock;
     }